@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ohdsi.circe.check.Check;
+import org.ohdsi.circe.check.Checker;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionGenerator;
+import org.ohdsi.circe.helper.ResourceHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Latency of the whole Checker and of each individual check, either over the expressions of the checker
+ * tests or over one large synthetic expression. Several checker fixtures are deliberately incomplete (ie: no
+ * primary criteria) and only fed to the check they test, so a check runs on the fixtures it accepts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CheckBenchmark {
+
+  private static final String[] CHECKER_FIXTURES = {
+    "additionalCriteriaCheckValueCorrect.json", "additionalCriteriaCheckValueIncorrect.json",
+    "attributeVisitCriterion.json", "censoringEventCheckValueCorrect.json",
+    "censoringEventCheckValueIncorrect.json", "childGroupExpression.json",
+    "conceptSetCriteriaCheckCorrect.json", "conceptSetCriteriaCheckIncorrect.json",
+    "conceptSetWithDuplicateItems.json", "contradictionsCriteriaCheckCorrect.json",
+    "contradictionsCriteriaCheckIncorrect.json", "deathTimeWindowCheckCorrect.json",
+    "deathTimeWindowCheckIncorrect.json", "domainTypeCheckCorrect.json", "domainTypeCheckIncorrect.json",
+    "drugDomainCheckCorrect.json", "drugDomainCheckIncorrect.json", "drugEraCheckCorrect.json",
+    "drugEraCheckIncorrect.json", "duplicatesConceptSetCheckCorrect.json",
+    "duplicatesConceptSetCheckIncorrect.json", "duplicatesCriteriaCheckCorrect.json",
+    "duplicatesCriteriaCheckIncorrect.json", "emptyCensoringCriteriaList.json",
+    "emptyCorrelatedCriteria.json", "emptyDemographicCheckCorrect.json",
+    "emptyDemographicCheckIncorrect.json", "emptyInclusionRules.json", "emptyPrimaryCriteriaList.json",
+    "eventsProgressionCheckCorrect.json", "eventsProgressionCheckIncorrect.json",
+    "inclusionRulesCheckValueCorrect.json", "inclusionRulesCheckValueIncorrect.json",
+    "nestedVisitCriterion.json", "noExitCriteriaCheck.json", "noExitCriteriaCheckEarliestEvent.json",
+    "primaryCriteriaCheckValueCorrect.json", "primaryCriteriaCheckValueIncorrect.json",
+    "timePatternCheckCorrect.json", "timePatternCheckIncorrect.json", "unusedConceptSet.json",
+    "unusedConceptSetCorrect.json"
+  };
+
+  @Param({
+    "Checker", "AttributeCheck", "ConceptCheck", "ConceptSetCriteriaCheck", "ConceptSetSelectionCheck",
+    "CriteriaContradictionsCheck", "DeathTimeWindowCheck", "DomainTypeCheck", "DrugDomainCheck", "DrugEraCheck",
+    "DuplicatesConceptSetCheck", "DuplicatesCriteriaCheck", "EmptyConceptSetCheck", "EventsProgressionCheck",
+    "ExitCriteriaCheck", "ExitCriteriaDaysOffsetCheck", "FirstTimeInHistoryCheck", "IncompleteRuleCheck",
+    "InitialEventCheck", "NestedVisitOccurrenceCheck", "NoExitCriteriaCheck", "OcurrenceCheck", "RangeCheck",
+    "TextCheck", "TimePatternCheck", "TimeWindowCheck", "UnusedConceptsCheck"
+  })
+  public String check;
+
+  /**
+   * "checkers" runs the check once on each checker test expression, "synthetic" on a single expression
+   * with 200 concept sets and 300 correlated criteria in 20 inclusion rules.
+   */
+  @Param({"checkers", "synthetic"})
+  public String expressions;
+
+  private Check instance;
+  private List<CohortExpression> cohortExpressions;
+
+  @Setup
+  public void setup() throws ReflectiveOperationException {
+    instance = "Checker".equals(check)
+            ? new Checker()
+            : (Check) Class.forName("org.ohdsi.circe.check.checkers." + check).getDeclaredConstructor().newInstance();
+    cohortExpressions = new ArrayList<>();
+    if ("synthetic".equals(expressions)) {
+      CohortExpressionGenerator.Options options = new CohortExpressionGenerator.Options();
+      options.conceptSetCount = 200;
+      options.inclusionRuleCount = 20;
+      options.correlatedCriteriaPerGroup = 5;
+      options.groupDepth = 3;
+      cohortExpressions.add(new CohortExpressionGenerator(ScaledCohortBenchmark.SEED).generate(options));
+    } else {
+      for (String fixture : CHECKER_FIXTURES) {
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/checkers/" + fixture));
+        try {
+          instance.check(expression);
+          cohortExpressions.add(expression);
+        } catch (RuntimeException e) {
+          // not an expression this check accepts
+        }
+      }
+      if (cohortExpressions.isEmpty()) {
+        throw new RuntimeException(String.format("%s accepts none of the checker test expressions", check));
+      }
+    }
+  }
+
+  @Benchmark
+  public void check(Blackhole blackhole) {
+    for (CohortExpression expression : cohortExpressions) {
+      blackhole.consume(instance.check(expression));
+    }
+  }
+}
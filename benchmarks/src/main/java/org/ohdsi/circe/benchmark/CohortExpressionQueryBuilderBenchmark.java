@@ -0,0 +1,113 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionQueryBuilder;
+import org.ohdsi.circe.cohortdefinition.CriteriaGroup;
+import org.ohdsi.circe.cohortdefinition.InclusionRule;
+import org.ohdsi.circe.helper.ResourceHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cohort SQL generation for the expressions of the cohort generation tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CohortExpressionQueryBuilderBenchmark {
+
+  static final String EVENT_TABLE = "#qualified_events";
+
+  @Param({
+    "/cohortgeneration/allCriteria/allCriteriaExpression.json",
+    "/cohortgeneration/censorWindow/censorWindowExpression.json",
+    "/cohortgeneration/correlatedCriteria/countsExpression.json",
+    "/cohortgeneration/correlatedCriteria/groupExpression.json",
+    "/cohortgeneration/correlatedCriteria/visitExpression.json",
+    "/cohortgeneration/eraDupes/eraDupesExpression.json",
+    "/cohortgeneration/exits/censorEventExpression.json",
+    "/cohortgeneration/exits/continuousExposureCensorExpression.json",
+    "/cohortgeneration/exits/continuousExposureExpression.json",
+    "/cohortgeneration/exits/fixedOffsetCensorExpression.json",
+    "/cohortgeneration/exits/fixedOffsetExpression.json",
+    "/cohortgeneration/firstOccurrence/firstOccurrenceTestExpression.json",
+    "/cohortgeneration/inclusionRules/simpleInclusionRule.json",
+    "/cohortgeneration/limits/limitExpression.json",
+    "/cohortgeneration/mixedConceptsets/mixedConceptsetsExpression.json"
+  })
+  public String fixture;
+
+  private CohortExpressionQueryBuilder queryBuilder;
+  private CohortExpression expression;
+  private List<CriteriaGroup> criteriaGroups;
+
+  @Setup
+  public void setup() {
+    queryBuilder = new CohortExpressionQueryBuilder();
+    expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString(fixture));
+    criteriaGroups = getCriteriaGroups(expression);
+  }
+
+  static List<CriteriaGroup> getCriteriaGroups(CohortExpression expression) {
+    List<CriteriaGroup> groups = new ArrayList<>();
+    if (expression.additionalCriteria != null) {
+      groups.add(expression.additionalCriteria);
+    }
+    for (InclusionRule rule : expression.inclusionRules) {
+      groups.add(rule.expression);
+    }
+    return groups;
+  }
+
+  @Benchmark
+  public String buildExpressionQuery() {
+    return queryBuilder.buildExpressionQuery(expression, null);
+  }
+
+  @Benchmark
+  public String getCodesetQuery() {
+    return queryBuilder.getCodesetQuery(expression.conceptSets);
+  }
+
+  /**
+   * Renders the additional criteria and every inclusion rule of the expression.
+   */
+  @Benchmark
+  public void getCriteriaGroupQuery(Blackhole blackhole) {
+    for (CriteriaGroup group : criteriaGroups) {
+      blackhole.consume(queryBuilder.getCriteriaGroupQuery(group, EVENT_TABLE));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionQueryBuilder;
+import org.ohdsi.circe.cohortdefinition.Criteria;
+import org.ohdsi.circe.cohortdefinition.Window;
+import org.ohdsi.circe.cohortdefinition.WindowedCriteria;
+import org.ohdsi.circe.cohortdefinition.builders.CareSiteSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.ConditionEraSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.ConditionOccurrenceSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.CriteriaSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.DeathSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.DeviceExposureSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.DoseEraSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.DrugEraSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.DrugExposureSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.LocationRegionSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.MeasurementSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.ObservationPeriodSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.ObservationSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.PayerPlanPeriodSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.ProcedureOccurrenceSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.SpecimenSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.VisitDetailSqlBuilder;
+import org.ohdsi.circe.cohortdefinition.builders.VisitOccurrenceSqlBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Domain criteria SQL, one builder per run, with the criteria of the criteria and windowcriteria tests: a
+ * concept set criteria, the same criteria with a date adjustment, and a criteria windowed 365 days before
+ * the index event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CriteriaSqlBuilderBenchmark {
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  @Param({
+    "CareSite", "ConditionEra", "ConditionOccurrence", "Death", "DeviceExposure", "DoseEra", "DrugEra",
+    "DrugExposure", "LocationRegion", "Measurement", "Observation", "ObservationPeriod", "PayerPlanPeriod",
+    "ProcedureOccurrence", "Specimen", "VisitDetail", "VisitOccurrence"
+  })
+  public String domain;
+
+  @Param({"conceptSet", "dateAdjustment"})
+  public String variant;
+
+  private CriteriaSqlBuilder<Criteria> builder;
+  private Criteria criteria;
+  private CohortExpressionQueryBuilder queryBuilder;
+  private WindowedCriteria windowedCriteria;
+
+  @Setup
+  public void setup() throws IOException {
+    builder = getBuilder(domain);
+    criteria = JSON_MAPPER.readValue(getCriteriaJson(domain, variant), Criteria.class);
+    queryBuilder = new CohortExpressionQueryBuilder();
+    windowedCriteria = new WindowedCriteria();
+    windowedCriteria.criteria = criteria;
+    windowedCriteria.startWindow = getPrior365Window();
+  }
+
+  private static String getCriteriaJson(String domain, String variant) {
+    StringBuilder attributes = new StringBuilder();
+    if (!"ObservationPeriod".equals(domain) && !"PayerPlanPeriod".equals(domain)) {
+      attributes.append("\"CodesetId\":1");
+    }
+    if ("dateAdjustment".equals(variant)) {
+      attributes.append(attributes.length() > 0 ? "," : "")
+              .append("\"DateAdjustment\":{\"StartWith\":\"START_DATE\",\"StartOffset\":15,\"EndWith\":\"END_DATE\",\"EndOffset\":-10}");
+    }
+    return String.format("{\"%s\":{%s}}", domain, attributes);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static CriteriaSqlBuilder<Criteria> getBuilder(String domain) {
+    CriteriaSqlBuilder<?> builder;
+    switch (domain) {
+      case "CareSite": builder = new CareSiteSqlBuilder<>(); break;
+      case "ConditionEra": builder = new ConditionEraSqlBuilder<>(); break;
+      case "ConditionOccurrence": builder = new ConditionOccurrenceSqlBuilder<>(); break;
+      case "Death": builder = new DeathSqlBuilder<>(); break;
+      case "DeviceExposure": builder = new DeviceExposureSqlBuilder<>(); break;
+      case "DoseEra": builder = new DoseEraSqlBuilder<>(); break;
+      case "DrugEra": builder = new DrugEraSqlBuilder<>(); break;
+      case "DrugExposure": builder = new DrugExposureSqlBuilder<>(); break;
+      case "LocationRegion": builder = new LocationRegionSqlBuilder<>(); break;
+      case "Measurement": builder = new MeasurementSqlBuilder<>(); break;
+      case "Observation": builder = new ObservationSqlBuilder<>(); break;
+      case "ObservationPeriod": builder = new ObservationPeriodSqlBuilder<>(); break;
+      case "PayerPlanPeriod": builder = new PayerPlanPeriodSqlBuilder<>(); break;
+      case "ProcedureOccurrence": builder = new ProcedureOccurrenceSqlBuilder<>(); break;
+      case "Specimen": builder = new SpecimenSqlBuilder<>(); break;
+      case "VisitDetail": builder = new VisitDetailSqlBuilder<>(); break;
+      case "VisitOccurrence": builder = new VisitOccurrenceSqlBuilder<>(); break;
+      default:
+        throw new RuntimeException("Unknown criteria domain: " + domain);
+    }
+    return (CriteriaSqlBuilder<Criteria>) builder;
+  }
+
+  private static Window getPrior365Window() {
+    Window window = new Window();
+    window.start = new Window.Endpoint();
+    window.start.coeff = -1;
+    window.start.days = 365;
+    window.end = new Window.Endpoint();
+    window.end.coeff = -1;
+    window.end.days = 0;
+    return window;
+  }
+
+  @Benchmark
+  public String getCriteriaSql() {
+    return builder.getCriteriaSql(criteria);
+  }
+
+  @Benchmark
+  public String getWindowedCriteriaQuery() {
+    return queryBuilder.getWindowedCriteriaQuery(windowedCriteria, CohortExpressionQueryBuilderBenchmark.EVENT_TABLE);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.util.concurrent.TimeUnit;
+import org.ohdsi.analysis.Utils;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.cohortdefinition.ConceptSet;
+import org.ohdsi.circe.cohortdefinition.printfriendly.MarkdownRender;
+import org.ohdsi.circe.helper.ResourceHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Print friendly rendering of the expressions of the print friendly tests. conceptSetList.json is a list of
+ * concept sets rather than a cohort, so it is only rendered by renderConceptSetList.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class MarkdownRenderBenchmark {
+
+  private static final MarkdownRender MARKDOWN_RENDER = new MarkdownRender();
+
+  @State(Scope.Benchmark)
+  public static class CohortFixture {
+
+    @Param({
+      "allAttributes.json", "anyCondition.json", "censorCriteria.json", "conceptSet_simple.json",
+      "conditionEra.json", "conditionOccurrence.json", "continuousObservation_none.json",
+      "continuousObservation_post.json", "continuousObservation_prior.json", "continuousObservation_priorpost.json",
+      "countCriteria.json", "countDistinctCriteria.json", "customEraExit.json", "dateAdjust.json", "dateOffset.json",
+      "death.json", "deviceExposure.json", "doseEra.json", "drugEra.json", "drugExposure.json",
+      "emptyConceptList.json", "measurement.json", "noCensorCriteria.json", "nullCodesetId.json", "observation.json",
+      "observationPeriod_1.json", "procedureOccurrence.json", "specimen.json", "visit.json", "visitDetail.json"
+    })
+    public String cohort;
+
+    private CohortExpression expression;
+
+    @Setup
+    public void setup() {
+      expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/printfriendly/" + cohort));
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ConceptSetListFixture {
+
+    /**
+     * conceptSetList.json, or the concept sets of one of the cohort fixtures.
+     */
+    @Param({
+      "conceptSetList.json", "allAttributes.json", "censorCriteria.json", "conceptSet_simple.json",
+      "emptyConceptList.json"
+    })
+    public String conceptSetList;
+
+    private ConceptSet[] conceptSets;
+
+    @Setup
+    public void setup() {
+      String json = ResourceHelper.GetResourceAsString("/printfriendly/" + conceptSetList);
+      conceptSets = "conceptSetList.json".equals(conceptSetList)
+              ? Utils.deserialize(json, new TypeReference<ConceptSet[]>() {})
+              : CohortExpression.fromJson(json).conceptSets;
+    }
+  }
+
+  @Benchmark
+  public String renderCohort(CohortFixture fixture) {
+    return MARKDOWN_RENDER.renderCohort(fixture.expression);
+  }
+
+  @Benchmark
+  public String renderConceptSetList(ConceptSetListFixture fixture) {
+    return MARKDOWN_RENDER.renderConceptSetList(fixture.conceptSets);
+  }
+}
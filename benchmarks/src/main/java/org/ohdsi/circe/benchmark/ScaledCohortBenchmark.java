@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionGenerator;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionQueryBuilder;
+import org.ohdsi.circe.cohortdefinition.CriteriaGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cohort SQL generation for generated expressions, scaled by concept sets, inclusion rules and criteria group
+ * nesting. The depth parameter covers deeply nested groups, whose rendering used to copy the SQL of every
+ * level into the level above.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ScaledCohortBenchmark {
+
+  static final long SEED = 20240601L;
+
+  @Param({"10", "100"})
+  public int conceptSetCount;
+
+  @Param({"20"})
+  public int conceptsPerSet;
+
+  @Param({"1"})
+  public int primaryCriteriaCount;
+
+  @Param({"1", "10"})
+  public int inclusionRuleCount;
+
+  @Param({"3"})
+  public int correlatedCriteriaPerGroup;
+
+  @Param({"1", "6", "12", "24"})
+  public int groupDepth;
+
+  private CohortExpressionQueryBuilder queryBuilder;
+  private CohortExpression expression;
+  private List<CriteriaGroup> criteriaGroups;
+
+  @Setup
+  public void setup() {
+    CohortExpressionGenerator.Options options = new CohortExpressionGenerator.Options();
+    options.conceptSetCount = conceptSetCount;
+    options.conceptsPerSet = conceptsPerSet;
+    options.primaryCriteriaCount = primaryCriteriaCount;
+    options.inclusionRuleCount = inclusionRuleCount;
+    options.correlatedCriteriaPerGroup = correlatedCriteriaPerGroup;
+    options.groupDepth = groupDepth;
+    queryBuilder = new CohortExpressionQueryBuilder();
+    expression = new CohortExpressionGenerator(SEED).generate(options);
+    criteriaGroups = CohortExpressionQueryBuilderBenchmark.getCriteriaGroups(expression);
+  }
+
+  @Benchmark
+  public String buildExpressionQuery() {
+    return queryBuilder.buildExpressionQuery(expression, null);
+  }
+
+  @Benchmark
+  public String getCodesetQuery() {
+    return queryBuilder.getCodesetQuery(expression.conceptSets);
+  }
+
+  @Benchmark
+  public void getCriteriaGroupQuery(Blackhole blackhole) {
+    for (CriteriaGroup group : criteriaGroups) {
+      blackhole.consume(queryBuilder.getCriteriaGroupQuery(group, CohortExpressionQueryBuilderBenchmark.EVENT_TABLE));
+    }
+  }
+}
@@ -20,21 +20,38 @@ package org.ohdsi.circe.cohortdefinition;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.builders.*;
+import org.ohdsi.circe.helper.ExpressionFingerprint;
+import org.ohdsi.circe.helper.QueryCache;
 import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
+import org.ohdsi.circe.vocabulary.ConceptSetExpression;
 import org.ohdsi.circe.vocabulary.ConceptSetExpressionQueryBuilder;
+import org.ohdsi.circe.vocabulary.ConceptSetResolver;
 
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.buildDateRangeClause;
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.buildNumericRangeClause;
+import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.buildRangeInClause;
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.dateStringToSql;
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getCodesetInExpression;
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptIdsFromConcepts;
+import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.MAX_IN_LENGTH;
 
 /**
  *
@@ -43,30 +60,62 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher, IGetEndStrategySqlDispatcher {
 
   private final static ConceptSetExpressionQueryBuilder conceptSetQueryBuilder = new ConceptSetExpressionQueryBuilder();
-  private final static String CODESET_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/codesetQuery.sql");
-
-  private final static String COHORT_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/generateCohort.sql");
-
-  private final static String PRIMARY_EVENTS_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/primaryEventsQuery.sql");
-
-  private final static String WINDOWED_CRITERIA_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/windowedCriteria.sql");
-  private final static String ADDITIONAL_CRITERIA_INNER_TEMPLATE = StringUtils.replace(ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/additionalCriteriaInclude.sql"), "@windowedCriteria", WINDOWED_CRITERIA_TEMPLATE);
-  private final static String ADDITIONAL_CRITERIA_LEFT_TEMPLATE = StringUtils.replace(ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/additionalCriteriaExclude.sql"), "@windowedCriteria", WINDOWED_CRITERIA_TEMPLATE);
-  private final static String GROUP_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/groupQuery.sql");
-
-  private final static String INCLUSION_RULE_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/inclusionrule.sql");
-  private final static String INCLUSION_RULE_TEMP_TABLE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/inclusionRuleTempTable.sql");
-  private final static String CENSORING_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/censoringInsert.sql");
+  private final static SqlTemplate CODESET_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/codesetQuery.sql");
+  private final static SqlTemplate STAGED_CODESET_INSERTS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/stagedCodesetInserts.sql");
+  private final static int DEFAULT_SEED_BATCH_SIZE = 1000;
+  private final static SqlTemplate BATCH_CODESET_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/batchCodesetQuery.sql");
+
+  private final static SqlTemplate COHORT_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/generateCohort.sql");
+  private final static SqlTemplate COHORT_EVENT_STAGES_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/cohortEventStages.sql");
+  private final static SqlTemplate EVENT_STAGES_CLEANUP_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/eventStagesCleanup.sql");
+
+  private final static SqlTemplate PRIMARY_EVENTS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/primaryEventsQuery.sql");
+
+  private final static String WINDOWED_CRITERIA_SQL = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/windowedCriteria.sql");
+  private final static SqlTemplate WINDOWED_CRITERIA_TEMPLATE = SqlTemplate.compile(WINDOWED_CRITERIA_SQL);
+  private final static Map<String, SqlTemplate> WINDOWED_TEMPLATES = new ConcurrentHashMap<>(); // templates passed to getWindowedCriteriaQuery, compiled once
+  private final static SqlTemplate ADDITIONAL_CRITERIA_INNER_TEMPLATE = SqlTemplate.compile(StringUtils.replace(ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/additionalCriteriaInclude.sql"), "@windowedCriteria", WINDOWED_CRITERIA_SQL));
+  private final static SqlTemplate ADDITIONAL_CRITERIA_LEFT_TEMPLATE = SqlTemplate.compile(StringUtils.replace(ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/additionalCriteriaExclude.sql"), "@windowedCriteria", WINDOWED_CRITERIA_SQL));
+  private final static SqlTemplate ADDITIONAL_CRITERIA_EXISTS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/additionalCriteriaExists.sql");
+  private final static SqlTemplate GROUP_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/groupQuery.sql");
+  private final static SqlTemplate GROUP_QUERY_EXISTS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/groupQueryExists.sql");
+  private final static SqlTemplate EMPTY_GROUP_QUERY_TEMPLATE = SqlTemplate.compile("-- Begin Criteria Group\n select @indexId as index_id, person_id, event_id FROM @eventTable\n-- End Criteria Group\n");
+
+  private final static SqlTemplate INCLUSION_RULE_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionrule.sql");
+  private final static SqlTemplate INCLUSION_RULES_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionRules.sql");
+  private final static SqlTemplate INCLUSION_RULE_TEMP_TABLE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionRuleTempTable.sql");
+  private final static SqlTemplate CENSORING_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/censoringInsert.sql");
+
+  private final static SqlTemplate SHARED_CRITERIA_TABLE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/sharedCriteriaTable.sql");
+  private final static SqlTemplate DOMAIN_SCAN_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/domainScan.sql");
+  private final static SqlTemplate CORRELATED_EVENTS_TABLE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/correlatedEventsTable.sql");
+  private final static SqlTemplate EVENT_TABLE_EXPRESSION_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/eventTableExpression.sql");
+  private final static SqlTemplate DEMOGRAPHIC_CRITERIA_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/demographicCriteria.sql");
+
+  private final static SqlTemplate COHORT_INCLUSION_ANALYSIS_TEMPALTE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/cohortInclusionAnalysis.sql");
+  private final static SqlTemplate INCLUSION_IMPACT_ANALYSIS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionImpactAnalysis.sql");
+  private final static SqlTemplate INCLUSION_BUCKET_COUNTS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionBucketCounts.sql");
+  private final static SqlTemplate INCLUSION_BUCKET_TOTALS_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/inclusionBucketTotals.sql");
+  private final static String INCLUSION_BUCKET_COUNTS_TABLES = "CREATE TABLE #inclusion_mask_counts (mode_id int, inclusion_rule_mask bigint, person_count bigint);\n"
+          + "CREATE TABLE #inclusion_rule_counts (mode_id int, inclusion_rule_id int, person_count bigint);\n";
+  private final static String COHORT_CENSORED_STATS_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/cohortCensoredStats.sql");
 
-  private final static String EVENT_TABLE_EXPRESSION_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/eventTableExpression.sql");
-  private final static String DEMOGRAPHIC_CRITERIA_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/demographicCriteria.sql");
+  private final static SqlTemplate FINAL_COHORT_QUERY_TEMPLATE = SqlTemplate.compile("select @target_cohort_id as @cohort_id_field_name, person_id, @start_date, @end_date \n"
+          + "FROM #final_cohort CO");
+  private final static SqlTemplate FINAL_COHORT_CENSORED_QUERY_TEMPLATE = SqlTemplate.compile("select @target_cohort_id as @cohort_id_field_name, person_id, @start_date, @end_date \n"
+          + "FROM #final_cohort CO"
+          + "\nWHERE @start_date <= @end_date");
 
-  private final static String COHORT_INCLUSION_ANALYSIS_TEMPALTE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/cohortInclusionAnalysis.sql");
-  private final static String COHORT_CENSORED_STATS_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/cohortCensoredStats.sql");
+  // CURRENT_TIMESTAMP is left as is by SqlRender on every dialect, where GETDATE() becomes a date on some
+  private final static SqlTemplate STAGE_START_TEMPLATE = SqlTemplate.compile("INSERT INTO @results_database_schema.cohort_stage_stats (@cohort_id_field_name, stage_sequence, stage_name, start_time)\n"
+          + "SELECT @target_cohort_id, @stageSequence, '@stageName', CURRENT_TIMESTAMP;\n");
+  private final static SqlTemplate STAGE_END_TEMPLATE = SqlTemplate.compile("UPDATE @results_database_schema.cohort_stage_stats\n"
+          + "SET row_count = (SELECT COUNT_BIG(*) FROM @stageTable), end_time = CURRENT_TIMESTAMP\n"
+          + "WHERE @cohort_id_field_name = @target_cohort_id AND stage_sequence = @stageSequence;\n");
 
   // Strategy templates
-  private final static String DATE_OFFSET_STRATEGY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/dateOffsetStrategy.sql");
-  private final static String CUSTOM_ERA_STRATEGY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/customEraStrategy.sql");
+  private final static SqlTemplate DATE_OFFSET_STRATEGY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/dateOffsetStrategy.sql");
+  private final static SqlTemplate CUSTOM_ERA_STRATEGY_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/customEraStrategy.sql");
 
   private final static String DEFAULT_DRUG_EXPOSURE_END_DATE_EXPRESSION = "COALESCE(DRUG_EXPOSURE_END_DATE, DATEADD(day,DAYS_SUPPLY,DRUG_EXPOSURE_START_DATE), DATEADD(day,1,DRUG_EXPOSURE_START_DATE))";
   
@@ -89,6 +138,9 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
   private final static VisitDetailSqlBuilder<VisitDetail> visitDetailSqlBuilder = new VisitDetailSqlBuilder<>();
   private final static ConditionEraSqlBuilder<ConditionEra> conditionEraSqlBuilder = new ConditionEraSqlBuilder<>();
   private final static String DEFAULT_COHORT_ID_FIELD_NAME = "cohort_definition_id";
+  // every token getOptionParams may bind
+  final static String[] OPTION_TOKENS = {"@cdm_database_schema", "@target_database_schema.@target_cohort_table", "@results_database_schema",
+    "@vocabulary_database_schema", "@target_cohort_id", "@generateStats", "@cohort_id_field_name"};
 
   public static class BuildExpressionQueryOptions {
 
@@ -115,6 +167,42 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
     @JsonProperty("generateStats")
     public boolean generateStats;
 
+    // writes each criteria with correlated criteria into a temp table once, instead of repeating its query
+    @JsonProperty("materializeCorrelatedCriteria")
+    public boolean materializeCorrelatedCriteria;
+
+    // resolves the items of all concept sets together, from one seed table, instead of one vocabulary query per concept set; always on when a concept set lists more concepts than fit one IN list
+    @JsonProperty("stagedCodesetResolution")
+    public boolean stagedCodesetResolution;
+
+    // rows per INSERT ... VALUES of literal concept ids (default 1000); only used when the codesets are staged or resolved by a ConceptSetResolver
+    @JsonProperty("seedBatchSize")
+    public Integer seedBatchSize;
+
+    // records the row count, start and end of each stage into @results_database_schema.cohort_stage_stats
+    @JsonProperty("instrumentStages")
+    public boolean instrumentStages;
+
+    // when more than 1, generates the cohort in this many buckets of persons (person_id modulo the bucket count)
+    @JsonProperty("personBuckets")
+    public Integer personBuckets;
+
+    // restricts correlated criteria on an index event table to its persons and the dates its windows can reach; materializes the primary events for the additional criteria
+    @JsonProperty("boundCorrelatedCriteria")
+    public boolean boundCorrelatedCriteria;
+
+    // reads a CDM table with several distinct reads, all by codeset, once into a temp table of the rows in those codesets
+    @JsonProperty("consolidateDomainScans")
+    public boolean consolidateDomainScans;
+
+    // writes a criteria query built more than once into a temp table, which each of its uses reads
+    @JsonProperty("shareCriteriaQueries")
+    public boolean shareCriteriaQueries;
+
+    // evaluates all inclusion rules into #inclusion_events with one statement, instead of a temp table per rule
+    @JsonProperty("singleStatementInclusionRules")
+    public boolean singleStatementInclusionRules;
+
     public static CohortExpressionQueryBuilder.BuildExpressionQueryOptions fromJson(String json) {
       try {
         CohortExpressionQueryBuilder.BuildExpressionQueryOptions options
@@ -125,6 +213,109 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
       }
     }
 
+    public static String toJson(CohortExpressionQueryBuilder.BuildExpressionQueryOptions options) {
+      try {
+        return JSON_MAPPER.writeValueAsString(options);
+      } catch (Exception e) {
+        throw new RuntimeException("Error serializing expression query options", e);
+      }
+    }
+
+  }
+
+  /**
+   * State of a single buildExpressionQuery call: the options that select the generation modes, and the
+   * statements collected while the criteria queries are built.
+   */
+  private static class BuildContext {
+
+    private final BuildExpressionQueryOptions options;
+    private final List<String> criteriaTables = new ArrayList<>(); // temp tables in the order they must be created
+    private final List<String> criteriaTableInserts = new ArrayList<>();
+    private final Map<String, Set<DomainScan>> domainScans = new LinkedHashMap<>(); // the distinct reads of each CDM table, over all buckets
+    private final Map<String, String> criteriaQueryTokens = new LinkedHashMap<>(); // token by criteria query, in the bucket being built
+    private final Map<String, Integer> criteriaQueryUses = new HashMap<>();
+    private final Map<String, String> criteriaQueryBindings = new HashMap<>(); // the query or shared table of each token, over all buckets
+
+    private BuildContext(BuildExpressionQueryOptions options) {
+      this.options = options;
+    }
+
+    private int stageSequence;
+    private int criteriaQuerySequence;
+    private Integer personBucket; // the bucket being built, or null in a single pass
+
+    private boolean materializeCorrelatedCriteria() {
+      return options != null && options.materializeCorrelatedCriteria;
+    }
+
+    private boolean instrumentStages() {
+      return options != null && options.instrumentStages;
+    }
+
+    private boolean boundCorrelatedCriteria() {
+      return options != null && options.boundCorrelatedCriteria;
+    }
+
+    private boolean consolidateDomainScans() {
+      return options != null && options.consolidateDomainScans;
+    }
+
+    private boolean shareCriteriaQueries() {
+      return options != null && options.shareCriteriaQueries;
+    }
+
+    private boolean singleStatementInclusionRules() {
+      return options != null && options.singleStatementInclusionRules;
+    }
+
+    private int personBuckets() {
+      return options != null && options.personBuckets != null ? options.personBuckets : 1;
+    }
+
+    // the criteria temp tables are made again in each bucket, so their names are reused
+    private void startBucket(int bucket) {
+      personBucket = bucket;
+      criteriaTables.clear();
+      criteriaTableInserts.clear();
+    }
+
+    private String personBucketFilter(String personId) {
+      return String.format("%s %% %d = %d", personId, personBuckets(), personBucket);
+    }
+  }
+
+  private final BuildContext context;
+  private final ConceptSetResolver conceptSetResolver;
+  private final QueryCache queryCache;
+
+  public CohortExpressionQueryBuilder() {
+    this((BuildContext) null);
+  }
+
+  /**
+   * Creates a builder that resolves concept sets against a local vocabulary, so #Codesets is filled with
+   * literal concept ids instead of queries against the vocabulary tables.
+   */
+  public CohortExpressionQueryBuilder(ConceptSetResolver conceptSetResolver) {
+    this(conceptSetResolver, null);
+  }
+
+  /**
+   * @param conceptSetResolver resolves concept sets to literal concept ids, or null to resolve them in SQL
+   * @param queryCache caches the scripts returned by buildExpressionQuery, or null. The cache key does not
+   * cover the resolver, so a cache must not be shared by builders with different resolvers.
+   */
+  public CohortExpressionQueryBuilder(ConceptSetResolver conceptSetResolver, QueryCache queryCache) {
+    this.context = null;
+    this.conceptSetResolver = conceptSetResolver;
+    this.queryCache = queryCache;
+  }
+
+  private CohortExpressionQueryBuilder(BuildContext context) {
+    this.context = context;
+    this.conceptSetResolver = null;
+    this.queryCache = null;
   }
 
   private String getOccurrenceOperator(int type) {
@@ -142,14 +333,114 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
   }
   
+  // EXISTS for at least 1 occurrence, NOT EXISTS for none (exactly or at most 0), otherwise null: the occurrences must be counted
+  private static String getExistsOperator(int type, int count) {
+    if (type == Occurrence.AT_LEAST && count == 1) {
+      return "EXISTS";
+    }
+    if ((type == Occurrence.EXACTLY || type == Occurrence.AT_MOST) && count == 0) {
+      return "NOT EXISTS";
+    }
+    return null;
+  }
+
   private String getAdditionalColumns(List<CriteriaColumn> columns, String prefix) {
     return String.join(",", columns.stream().map((column) -> { return prefix + column.columnName();}).collect(Collectors.toList()));
   }
 
+  // the statement that records the start of the next stage, or an empty string if the stages are not instrumented
+  private String getStageStart(String stageName) {
+    if (!context.instrumentStages()) {
+      return "";
+    }
+    Map<String, String> params = new HashMap<>();
+    params.put("@stageSequence", Integer.toString(++context.stageSequence));
+    params.put("@stageName", stageName);
+    return STAGE_START_TEMPLATE.render(params);
+  }
+
+  // the statement that records the row count and end of the current stage
+  private String getStageEnd(String stageTable) {
+    if (!context.instrumentStages()) {
+      return "";
+    }
+    Map<String, String> params = new HashMap<>();
+    params.put("@stageSequence", Integer.toString(context.stageSequence));
+    params.put("@stageTable", stageTable);
+    return "\n" + STAGE_END_TEMPLATE.render(params);
+  }
+
+  private static String getDomainTableToken(String table) {
+    return "@domainTable_" + table;
+  }
+
+  // the token a criteria query reads its domain table through, bound once the reads of every criteria are known
+  private String stageDomainScan(DomainScan scan) {
+    if (scan == null) {
+      return null;
+    }
+    context.domainScans.computeIfAbsent(scan.getTable(), t -> new LinkedHashSet<>()).add(scan);
+    return getDomainTableToken(scan.getTable());
+  }
+
+  // the rows of a domain table in any codeset that its reads join to
+  private String getDomainScanQuery(String domainTable, String table, Set<DomainScan> scans) {
+    Map<String, Set<Integer>> codesets = new LinkedHashMap<>();
+    for (DomainScan scan : scans) {
+      scan.getCodesets().forEach((column, codesetId) -> codesets.computeIfAbsent(column, c -> new TreeSet<>()).add(codesetId));
+    }
+    Map<String, String> params = new HashMap<>();
+    params.put("@domainTable", domainTable);
+    params.put("@cdmTable", table);
+    params.put("@codesetFilter", codesets.entrySet().stream()
+            .map(c -> String.format("D.%s in (SELECT concept_id from #Codesets where codeset_id in (%s))", c.getKey(), StringUtils.join(c.getValue(), ",")))
+            .collect(Collectors.joining("\n  OR ")));
+    return DOMAIN_SCAN_TEMPLATE.render(params);
+  }
+
+  // reads a criteria query through a token, bound once the bucket is built: to a shared table if the query was built again
+  private String shareCriteriaQuery(String query) {
+    String token = context.criteriaQueryTokens.computeIfAbsent(query, q -> "@sharedCriteria_" + context.criteriaQuerySequence++);
+    context.criteriaQueryUses.merge(token, 1, Integer::sum);
+    return token;
+  }
+
+  private void bindSharedCriteriaQueries() {
+    List<String> sharedTableInserts = new ArrayList<>();
+    // tokens are bound in the order they were made, so the tokens of nested criteria are bound before the queries holding them
+    context.criteriaQueryTokens.forEach((criteriaQuery, token) -> {
+      String query = SqlTemplate.bind(criteriaQuery, context.criteriaQueryBindings);
+      if (context.criteriaQueryUses.get(token) > 1) {
+        String criteriaTable = String.format("#shared_criteria_%d", context.criteriaTables.size());
+        context.criteriaTables.add(criteriaTable);
+        Map<String, String> params = new HashMap<>();
+        params.put("@criteriaTable", criteriaTable);
+        params.put("@criteriaQuery", query);
+        sharedTableInserts.add(SHARED_CRITERIA_TABLE_TEMPLATE.render(params));
+        context.criteriaQueryBindings.put(token, "select * from " + criteriaTable);
+      } else {
+        context.criteriaQueryBindings.put(token, query);
+      }
+    });
+    // shared queries never read the correlated criteria tables, while those may read a shared table
+    context.criteriaTableInserts.addAll(0, sharedTableInserts);
+    context.criteriaQueryTokens.clear();
+    context.criteriaQueryUses.clear();
+  }
+
   private String wrapCriteriaQuery(String query, CriteriaGroup group) {
-    String eventQuery = StringUtils.replace(EVENT_TABLE_EXPRESSION_TEMPLATE, "@eventQuery", query);
-    String groupQuery = this.getCriteriaGroupQuery(group, String.format("(%s)", eventQuery));
-    groupQuery = StringUtils.replace(groupQuery, "@indexId", "" + 0);
+    if (context != null && context.materializeCorrelatedCriteria()) {
+      String criteriaTable = String.format("#correlated_events_%d", context.criteriaTables.size());
+      context.criteriaTables.add(criteriaTable);
+      Map<String, String> params = new HashMap<>();
+      params.put("@criteriaTable", criteriaTable);
+      params.put("@criteriaQuery", query);
+      params.put("@criteriaTableFilter", context.personBucket != null ? "\nWHERE " + context.personBucketFilter("Q.person_id") : "");
+      context.criteriaTableInserts.add(CORRELATED_EVENTS_TABLE_TEMPLATE.render(params));
+      query = "select person_id, event_id, start_date, end_date, visit_occurrence_id, sort_date from " + criteriaTable;
+    }
+    String eventQuery = EVENT_TABLE_EXPRESSION_TEMPLATE.render(Collections.singletonMap("@eventQuery", query));
+    String groupQuery = this.getCriteriaGroupQuery(group, String.format("(%s)", eventQuery), "0");
     String wrappedQuery = String.format(
             "select PE.person_id, PE.event_id, PE.start_date, PE.end_date, PE.visit_occurrence_id, PE.sort_date FROM (\n%s\n) PE\nJOIN (\n%s) AC on AC.person_id = pe.person_id and AC.event_id = pe.event_id\n",
             query, groupQuery);
@@ -157,40 +448,194 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
   }
 
   public String getCodesetQuery(ConceptSet[] conceptSets) {
+    return getCodesetQuery(conceptSets, null);
+  }
 
-    if (conceptSets == null || conceptSets.length <= 0) {
-      return StringUtils.replace(
-              CODESET_QUERY_TEMPLATE,
-              "@codesetInserts",
-              StringUtils.EMPTY
-      );
+  /**
+   * @return the #Codesets script, resolved as selected by the options (ie: stagedCodesetResolution). The
+   * options are not bound into the script.
+   */
+  public String getCodesetQuery(ConceptSet[] conceptSets, BuildExpressionQueryOptions options) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      CODESET_QUERY_TEMPLATE.writeTo(sb, Collections.singletonMap("@codesetInserts", getCodesetInserts(conceptSets, "#Codesets", options)));
+    } catch (IOException e) {
+      throw new RuntimeException("Error building codeset query", e); // StringBuilder does not throw
     }
+    return sb.toString();
+  }
 
-    String unionSelectsQuery = Arrays.stream(conceptSets)
-            .map(cs -> String.format("SELECT %d as codeset_id, c.concept_id FROM (%s) C", cs.id, conceptSetQueryBuilder.buildExpressionQuery(cs.expression)))
-            .collect(Collectors.joining(" UNION ALL \n"));
+  /**
+   * Concept sets whose items are equal, in any order, resolve to the same concepts. The key ignores
+   * duplicate items, which do not change the resolved set either, and items without a concept, which select
+   * none: a concept set without an expression resolves to no concepts, as in the default codeset query.
+   */
+  private static Set<ConceptSetExpression.ConceptSetItem> getResolutionKey(ConceptSetExpression expression) {
+    if (expression == null || expression.items == null) {
+      return Collections.emptySet();
+    }
+    return Arrays.stream(expression.items)
+            .filter(item -> item != null && item.concept != null && item.concept.conceptId != null)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
 
-    String queryWithInsert = StringUtils.replace(
-            CODESET_QUERY_TEMPLATE,
-            "@codesetInserts",
-            "INSERT INTO #Codesets (codeset_id, concept_id)\n" + unionSelectsQuery + ";"
-    );
-    return queryWithInsert;
+  // groups the codeset ids of equivalent concept sets so each is resolved against the vocabulary once
+  private static Collection<List<ConceptSet>> getDistinctConceptSets(ConceptSet[] conceptSets) {
+    Map<Set<ConceptSetExpression.ConceptSetItem>, List<ConceptSet>> distinctSets = new LinkedHashMap<>();
+    for (ConceptSet cs : conceptSets) {
+      distinctSets.computeIfAbsent(getResolutionKey(cs.expression), k -> new ArrayList<>()).add(cs);
+    }
+    return distinctSets.values();
+  }
+
+  // a concept set the codeset query would match with OR-chained IN lists, which are slow to parse and plan
+  private static boolean hasLongConceptList(ConceptSet[] conceptSets) {
+    return conceptSets != null && Arrays.stream(conceptSets)
+            .anyMatch(cs -> getResolutionKey(cs.expression).size() > MAX_IN_LENGTH);
+  }
+
+  private int getSeedBatchSize(BuildExpressionQueryOptions options) {
+    int batchSize = options != null && options.seedBatchSize != null ? options.seedBatchSize : DEFAULT_SEED_BATCH_SIZE;
+    if (batchSize <= 0) {
+      throw new RuntimeException(String.format("Invalid seed batch size received: %d.", batchSize));
+    }
+    return batchSize;
+  }
+
+  private SqlTemplate.Fragment getCodesetInserts(ConceptSet[] conceptSets, String codesetTable, BuildExpressionQueryOptions options) {
+    if (conceptSetResolver != null) {
+      return getResolvedCodesetInserts(conceptSets, codesetTable, getSeedBatchSize(options));
+    }
+    if ((options != null && options.stagedCodesetResolution) || hasLongConceptList(conceptSets)) {
+      return getStagedCodesetInserts(conceptSets, codesetTable, getSeedBatchSize(options));
+    }
+    return out -> {
+      if (conceptSets == null || conceptSets.length <= 0) {
+        return;
+      }
+
+      out.append("INSERT INTO ").append(codesetTable).append(" (codeset_id, concept_id)\n");
+      boolean first = true;
+      for (List<ConceptSet> sets : getDistinctConceptSets(conceptSets)) {
+        if (!first) {
+          out.append(" UNION ALL \n");
+        }
+        first = false;
+        if (sets.size() == 1) {
+          out.append("SELECT ").append(String.valueOf(sets.get(0).id)).append(" as codeset_id, c.concept_id FROM (");
+          conceptSetQueryBuilder.buildExpressionQuery(sets.get(0).expression, out);
+          out.append(") C");
+        } else {
+          out.append("SELECT D.codeset_id, c.concept_id FROM (");
+          conceptSetQueryBuilder.buildExpressionQuery(sets.get(0).expression, out);
+          out.append(") C CROSS JOIN (");
+          out.append(sets.stream().map(cs -> String.format("SELECT %d as codeset_id", cs.id)).collect(Collectors.joining(" UNION ALL ")));
+          out.append(") D");
+        }
+      }
+      out.append(";");
+    };
+  }
 
+  /**
+   * Writes the concept ids resolved by the conceptSetResolver as literal rows, batchSize rows per statement.
+   */
+  private SqlTemplate.Fragment getResolvedCodesetInserts(ConceptSet[] conceptSets, String codesetTable, int batchSize) {
+    return out -> {
+      if (conceptSets == null || conceptSets.length <= 0) {
+        return;
+      }
+
+      int rows = 0;
+      for (List<ConceptSet> sets : getDistinctConceptSets(conceptSets)) {
+        if (getResolutionKey(sets.get(0).expression).isEmpty()) {
+          continue; // selects no concepts
+        }
+        Set<Long> conceptIds = conceptSetResolver.resolve(sets.get(0).expression);
+        for (ConceptSet cs : sets) {
+          for (Long conceptId : conceptIds) {
+            if (rows % batchSize == 0) {
+              if (rows > 0) {
+                out.append(";\n");
+              }
+              out.append("INSERT INTO ").append(codesetTable).append(" (codeset_id, concept_id)\nVALUES ");
+            } else {
+              out.append(",");
+            }
+            out.append(String.format("(%d,%d)", cs.id, conceptId));
+            rows++;
+          }
+        }
+      }
+      if (rows > 0) {
+        out.append(";");
+      }
+    };
   }
 
+  /**
+   * Stages the items of every concept set into one seed table and resolves descendants, mapped concepts and
+   * exclusions for all of them together, so the vocabulary tables are scanned a fixed number of times no
+   * matter how many concept sets there are.
+   */
+  private SqlTemplate.Fragment getStagedCodesetInserts(ConceptSet[] conceptSets, String codesetTable, int batchSize) {
+    return out -> {
+      if (conceptSets == null || conceptSets.length <= 0) {
+        return;
+      }
+
+      Collection<List<ConceptSet>> distinctSets = getDistinctConceptSets(conceptSets);
+      List<String> copies = new ArrayList<>();
+      for (List<ConceptSet> sets : distinctSets) {
+        for (ConceptSet copy : sets.subList(1, sets.size())) {
+          copies.add(String.format("SELECT %d as codeset_id, concept_id FROM %s WHERE codeset_id = %d", copy.id, codesetTable, sets.get(0).id));
+        }
+      }
+
+      Map<String, Object> params = new HashMap<>();
+      params.put("@codesetTable", codesetTable);
+      params.put("@seedInserts", (SqlTemplate.Fragment) o -> writeSeedInserts(distinctSets, batchSize, o));
+      params.put("@codesetCopies", copies.isEmpty() ? "" : String.format("INSERT INTO %s (codeset_id, concept_id)\n%s;", codesetTable, StringUtils.join(copies, " UNION ALL \n")));
+      STAGED_CODESET_INSERTS_TEMPLATE.writeTo(out, params);
+    };
+  }
+
+  private void writeSeedInserts(Collection<List<ConceptSet>> distinctSets, int batchSize, Appendable out) throws IOException {
+    int rows = 0;
+    for (List<ConceptSet> sets : distinctSets) {
+      ConceptSet cs = sets.get(0);
+      for (ConceptSetExpression.ConceptSetItem item : getResolutionKey(cs.expression)) {
+        if (rows % batchSize == 0) {
+          if (rows > 0) {
+            out.append(";\n");
+          }
+          out.append("INSERT INTO #concept_set_seeds (codeset_id, concept_id, is_excluded, include_descendants, include_mapped)\nVALUES ");
+        } else {
+          out.append(",");
+        }
+        out.append(String.format("(%d,%d,%d,%d,%d)",
+                cs.id, item.concept.conceptId, item.isExcluded ? 1 : 0, item.includeDescendants ? 1 : 0, item.includeMapped ? 1 : 0));
+        rows++;
+      }
+    }
+    if (rows > 0) {
+      out.append(";\n");
+    }
+  }
+
+
   private String getCensoringEventsQuery(Criteria[] censoringCriteria) {
     ArrayList<String> criteriaQueries = new ArrayList<>();
     for (Criteria c : censoringCriteria) {
       String criteriaQuery = c.accept(this);
-      criteriaQueries.add(StringUtils.replace(CENSORING_QUERY_TEMPLATE, "@criteriaQuery", criteriaQuery));
+      criteriaQueries.add(CENSORING_QUERY_TEMPLATE.render(Collections.singletonMap("@criteriaQuery", criteriaQuery)));
     }
 
     return StringUtils.join(criteriaQueries, "\nUNION ALL\n");
   }
 
   public String getPrimaryEventsQuery(PrimaryCriteria primaryCriteria) {
-    String query = PRIMARY_EVENTS_TEMPLATE;
+    Map<String, String> params = new HashMap<>();
 
     ArrayList<String> criteriaQueries = new ArrayList<>();
 
@@ -198,7 +643,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
       criteriaQueries.add(c.accept(this));
     }
 
-    query = StringUtils.replace(query, "@criteriaQueries", StringUtils.join(criteriaQueries, "\nUNION ALL\n"));
+    params.put("@criteriaQueries", StringUtils.join(criteriaQueries, "\nUNION ALL\n"));
 
     ArrayList<String> primaryEventsFilters = new ArrayList<>();
     primaryEventsFilters.add(String.format(
@@ -207,19 +652,21 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
             primaryCriteria.observationWindow.postDays
     )
     );
+    if (context != null && context.personBucket != null) {
+      primaryEventsFilters.add(context.personBucketFilter("E.person_id"));
+    }
 
-    query = StringUtils.replace(query, "@primaryEventsFilter", StringUtils.join(primaryEventsFilters, " AND "));
+    params.put("@primaryEventsFilter", StringUtils.join(primaryEventsFilters, " AND "));
 
-    query = StringUtils.replace(query, "@EventSort", (primaryCriteria.primaryLimit.type != null && primaryCriteria.primaryLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
-    query = StringUtils.replace(query, "@primaryEventLimit", (!primaryCriteria.primaryLimit.type.equalsIgnoreCase("ALL") ? "WHERE P.ordinal = 1" : ""));
+    params.put("@EventSort", (primaryCriteria.primaryLimit.type != null && primaryCriteria.primaryLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
+    params.put("@primaryEventLimit", (!primaryCriteria.primaryLimit.type.equalsIgnoreCase("ALL") ? "WHERE P.ordinal = 1" : ""));
 
-    return query;
+    return PRIMARY_EVENTS_TEMPLATE.render(params);
   }
 
   public String getFinalCohortQuery(Period censorWindow) {
 
-    String query = "select @target_cohort_id as @cohort_id_field_name, person_id, @start_date, @end_date \n"
-            + "FROM #final_cohort CO";
+    SqlTemplate query = FINAL_COHORT_QUERY_TEMPLATE;
 
     String startDate = "start_date";
     String endDate = "end_date";
@@ -233,13 +680,14 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
         String censorEndDate = dateStringToSql(censorWindow.endDate);
         endDate = "CASE WHEN end_date < " + censorEndDate + " THEN end_date ELSE " + censorEndDate + " END";
       }
-      query += "\nWHERE @start_date <= @end_date";
+      query = FINAL_COHORT_CENSORED_QUERY_TEMPLATE;
     }
 
-    query = StringUtils.replace(query, "@start_date", startDate);
-    query = StringUtils.replace(query, "@end_date", endDate);
+    Map<String, String> params = new HashMap<>();
+    params.put("@start_date", startDate);
+    params.put("@end_date", endDate);
 
-    return query;
+    return query.render(params);
   }
 
   private String getInclusionRuleTableSql(CohortExpression expression) {
@@ -251,13 +699,21 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
             .mapToObj(i -> (String)String.format(UNION_TEMPLATE, i))
             .collect(Collectors.toList());
     
-    return StringUtils.replace(INCLUSION_RULE_TEMP_TABLE_TEMPLATE, "@inclusionRuleUnions", StringUtils.join(unionList, " UNION ALL "));
+    return INCLUSION_RULE_TEMP_TABLE_TEMPLATE.render(Collections.singletonMap("@inclusionRuleUnions", StringUtils.join(unionList, " UNION ALL ")));
   }
-  private String getInclusionAnalysisQuery(String eventTable, int modeId) {
-    String resultSql = COHORT_INCLUSION_ANALYSIS_TEMPALTE;
-    resultSql = StringUtils.replace(resultSql, "@inclusionImpactMode", Integer.toString(modeId));
-    resultSql = StringUtils.replace(resultSql, "@eventTable", eventTable);
-    return resultSql;
+  private String getInclusionAnalysisQuery(SqlTemplate analysisTemplate, String eventTable, int modeId) {
+    Map<String, String> params = new HashMap<>();
+    params.put("@inclusionImpactMode", Integer.toString(modeId));
+    params.put("@eventTable", eventTable);
+    return analysisTemplate.render(params);
+  }
+
+  // the impact analysis of both modes: 0 over all qualified events, 1 over the best event of each person
+  private Map<String, String> getInclusionAnalysisParams(SqlTemplate analysisTemplate) {
+    Map<String, String> params = new HashMap<>();
+    params.put("@inclusionImpactAnalysisByEventQuery", getInclusionAnalysisQuery(analysisTemplate, "#qualified_events", 0));
+    params.put("@inclusionImpactAnalysisByPersonQuery", getInclusionAnalysisQuery(analysisTemplate, "#best_events", 1));
+    return params;
   }
 
   public String buildExpressionQuery(String expression, BuildExpressionQueryOptions options) {
@@ -265,41 +721,284 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
   }
 
   public String buildExpressionQuery(CohortExpression expression, BuildExpressionQueryOptions options) {
-    String resultSql = COHORT_QUERY_TEMPLATE;
+    if (queryCache != null) {
+      String key = "cohort:" + ExpressionFingerprint.of(expression) + ":" + BuildExpressionQueryOptions.toJson(options);
+      return queryCache.get(key, () -> generateExpressionQuery(expression, options));
+    }
+    return generateExpressionQuery(expression, options);
+  }
+
+  private String generateExpressionQuery(CohortExpression expression, BuildExpressionQueryOptions options) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      buildExpressionQuery(expression, options, sb);
+    } catch (IOException e) {
+      throw new RuntimeException("Error building expression query", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the cohort generation script to out, binding the options on the way through. Only the codeset
+   * section, which dominates the size of the script for large concept sets, is generated as it is written.
+   * The event stages (primary events, additional criteria, inclusion rules and exit) are built in full before
+   * anything is written: each criteria query is a string, and only the text of nested groups is copied
+   * straight to out. Streamed scripts are not served from the query cache.
+   */
+  public void buildExpressionQuery(CohortExpression expression, BuildExpressionQueryOptions options, Appendable out) throws IOException {
+    // criteria are built through the dispatcher interfaces, so the per-build state is carried by a builder for this call only
+    new CohortExpressionQueryBuilder(new BuildContext(options)).writeExpressionQuery(expression, options, getCodesetInserts(expression.conceptSets, "#Codesets", options), out);
+  }
 
-    String codesetQuery = getCodesetQuery(expression.conceptSets);
-    resultSql = StringUtils.replace(resultSql, "@codesetQuery", codesetQuery);
+  /**
+   * Builds the script once, leaving the schema, cohort table, cohort id and stats tokens unbound, so it can
+   * be bound for any number of data sources with {@link CompiledCohort#bind(BuildExpressionQueryOptions)}.
+   * Only the options that select how the script is generated (ie: stagedCodesetResolution) are used here.
+   */
+  public CompiledCohort compileExpressionQuery(CohortExpression expression, BuildExpressionQueryOptions options) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      new CohortExpressionQueryBuilder(new BuildContext(options)).writeExpressionQuery(expression, getCodesetInserts(expression.conceptSets, "#Codesets", options), Collections.emptyMap(), sb);
+    } catch (IOException e) {
+      throw new RuntimeException("Error compiling expression query", e); // StringBuilder does not throw
+    }
+    return new CompiledCohort(sb.toString());
+  }
+
+  public String buildBatchExpressionQuery(Map<Integer, CohortExpression> cohorts, BuildExpressionQueryOptions options) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      buildBatchExpressionQuery(cohorts, options, sb);
+    } catch (IOException e) {
+      throw new RuntimeException("Error building batch expression query", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes one script that generates every cohort in the map, keyed by cohort id, in the map's iteration
+   * order. Each distinct concept set expression is resolved against the vocabulary once into
+   * #batch_codesets; each cohort then fills its own #Codesets from that table. The options apply to every
+   * cohort, except for the cohort id.
+   */
+  public void buildBatchExpressionQuery(Map<Integer, CohortExpression> cohorts, BuildExpressionQueryOptions options, Appendable out) throws IOException {
+    BuildExpressionQueryOptions baseOptions = options != null ? options : new BuildExpressionQueryOptions();
+
+    // assign a shared codeset id to each distinct expression
+    Map<Set<ConceptSetExpression.ConceptSetItem>, Integer> sharedIds = new LinkedHashMap<>();
+    List<ConceptSet> sharedConceptSets = new ArrayList<>();
+    for (CohortExpression expression : cohorts.values()) {
+      if (expression.conceptSets != null) {
+        for (ConceptSet cs : expression.conceptSets) {
+          Set<ConceptSetExpression.ConceptSetItem> key = getResolutionKey(cs.expression);
+          if (!sharedIds.containsKey(key)) {
+            ConceptSet shared = new ConceptSet();
+            shared.id = sharedIds.size();
+            shared.expression = cs.expression;
+            sharedIds.put(key, shared.id);
+            sharedConceptSets.add(shared);
+          }
+        }
+      }
+    }
+
+    SqlTemplate.BindingAppendable boundOut = SqlTemplate.binding(out, getOptionParams(baseOptions));
+    BATCH_CODESET_QUERY_TEMPLATE.writeTo(boundOut, Collections.singletonMap("@codesetInserts", getCodesetInserts(sharedConceptSets.toArray(new ConceptSet[0]), "#batch_codesets", baseOptions)));
+    boundOut.finish();
+
+    for (Map.Entry<Integer, CohortExpression> cohort : cohorts.entrySet()) {
+      BuildExpressionQueryOptions cohortOptions = BuildExpressionQueryOptions.fromJson(BuildExpressionQueryOptions.toJson(baseOptions));
+      cohortOptions.cohortId = cohort.getKey();
+
+      SqlTemplate.Fragment codesetInserts = getBatchCodesetInserts(cohort.getValue().conceptSets, sharedIds);
+      out.append(String.format("\n-- Cohort %d\n", cohort.getKey()));
+      new CohortExpressionQueryBuilder(new BuildContext(cohortOptions)).writeExpressionQuery(cohort.getValue(), cohortOptions, codesetInserts, out);
+    }
+
+    out.append("\nTRUNCATE TABLE #batch_codesets;\nDROP TABLE #batch_codesets;\n");
+  }
+
+  // fills a cohort's #Codesets from the concept sets already resolved into #batch_codesets
+  private SqlTemplate.Fragment getBatchCodesetInserts(ConceptSet[] conceptSets, Map<Set<ConceptSetExpression.ConceptSetItem>, Integer> sharedIds) {
+    return out -> {
+      if (conceptSets == null || conceptSets.length <= 0) {
+        return;
+      }
+      out.append("INSERT INTO #Codesets (codeset_id, concept_id)\n");
+      for (int i = 0; i < conceptSets.length; i++) {
+        if (i > 0) {
+          out.append(" UNION ALL \n");
+        }
+        out.append(String.format("SELECT %d as codeset_id, concept_id FROM #batch_codesets WHERE codeset_id = %d", conceptSets[i].id, sharedIds.get(getResolutionKey(conceptSets[i].expression))));
+      }
+      out.append(";");
+    };
+  }
+
+  private void writeExpressionQuery(CohortExpression expression, BuildExpressionQueryOptions options, SqlTemplate.Fragment codesetInserts, Appendable out) throws IOException {
+    writeExpressionQuery(expression, codesetInserts, getOptionParams(options), out);
+  }
+
+  private void writeExpressionQuery(CohortExpression expression, SqlTemplate.Fragment codesetInserts, Map<String, String> optionParams, Appendable out) throws IOException {
+    Map<String, Object> params = new HashMap<>();
+
+    params.put("@codesetsStageStart", context.instrumentStages()
+            ? "DELETE FROM @results_database_schema.cohort_stage_stats WHERE @cohort_id_field_name = @target_cohort_id;\n" + getStageStart("codesets")
+            : "");
+    params.put("@codesetQuery", (SqlTemplate.Fragment) o -> CODESET_QUERY_TEMPLATE.writeTo(o, Collections.singletonMap("@codesetInserts", codesetInserts)));
+    params.put("@codesetsStageEnd", getStageEnd("#Codesets"));
+
+    int ruleTotal = expression.inclusionRules.size();
+    if (context.personBuckets() > 1) {
+      // the event stages are built and written once per bucket, each bucket appending its cohort periods to #final_cohort
+      ArrayList<Object> bucketStages = new ArrayList<>(); // Strings and Fragments
+      bucketStages.add("CREATE TABLE #final_cohort (person_id bigint, start_date date, end_date date);\n");
+      if (ruleTotal > 0) {
+        bucketStages.add("{@generateStats != 0}?{\n" + INCLUSION_BUCKET_COUNTS_TABLES + "}\n");
+      }
+      for (int bucket = 0; bucket < context.personBuckets(); bucket++) {
+        context.startBucket(bucket);
+        Map<String, Object> eventParams = getEventStageParams(expression);
+        eventParams.put("@finalCohortInsert", "INSERT INTO #final_cohort (person_id, start_date, end_date)");
+        eventParams.put("@finalCohortInto", "");
+        eventParams.put("@finalCohortCleanup", "");
+        bucketStages.add(String.format("\n-- Person bucket %d of %d\n", bucket + 1, context.personBuckets()));
+        bucketStages.add((SqlTemplate.Fragment) o -> COHORT_EVENT_STAGES_TEMPLATE.writeTo(o, eventParams));
+        if (ruleTotal > 0) {
+          // the inclusion rule stats are added up from the mask and rule counts of each bucket
+          bucketStages.add("\n{@generateStats != 0}?{\n");
+          bucketStages.add(INCLUSION_IMPACT_ANALYSIS_TEMPLATE.render(getInclusionAnalysisParams(INCLUSION_BUCKET_COUNTS_TEMPLATE)));
+          bucketStages.add("}\n");
+        }
+        bucketStages.add("\n");
+        bucketStages.add((SqlTemplate.Fragment) o -> EVENT_STAGES_CLEANUP_TEMPLATE.writeTo(o, eventParams));
+      }
+      bucketStages.add("\n");
+      params.put("@cohortEventStages", SqlTemplate.join(bucketStages, ""));
+      params.put("@inclusionImpactAnalysis", INCLUSION_BUCKET_TOTALS_TEMPLATE.render(Collections.singletonMap("@inclusionImpactMode", "0")) + "\n"
+              + INCLUSION_BUCKET_TOTALS_TEMPLATE.render(Collections.singletonMap("@inclusionImpactMode", "1")) + "\n"
+              + "TRUNCATE TABLE #inclusion_mask_counts;\nDROP TABLE #inclusion_mask_counts;\n\n"
+              + "TRUNCATE TABLE #inclusion_rule_counts;\nDROP TABLE #inclusion_rule_counts;\n");
+      params.put("@eventStagesCleanup", "TRUNCATE TABLE #final_cohort;\nDROP TABLE #final_cohort;\n");
+    } else {
+      Map<String, Object> eventParams = getEventStageParams(expression);
+      eventParams.put("@finalCohortInsert", "");
+      eventParams.put("@finalCohortInto", "into #final_cohort");
+      eventParams.put("@finalCohortCleanup", "\nTRUNCATE TABLE #final_cohort;\nDROP TABLE #final_cohort;\n");
+      params.put("@cohortEventStages", (SqlTemplate.Fragment) o -> COHORT_EVENT_STAGES_TEMPLATE.writeTo(o, eventParams));
+      params.put("@inclusionImpactAnalysis", INCLUSION_IMPACT_ANALYSIS_TEMPLATE.render(getInclusionAnalysisParams(COHORT_INCLUSION_ANALYSIS_TEMPALTE)));
+      params.put("@eventStagesCleanup", (SqlTemplate.Fragment) o -> EVENT_STAGES_CLEANUP_TEMPLATE.writeTo(o, eventParams));
+    }
+
+    // a table with more than one distinct read, all by codeset, is read once into a temp table; other reads go to the CDM table
+    Map<String, String> bindings = new HashMap<>(optionParams);
+    List<String> domainScans = new ArrayList<>();
+    List<String> domainTables = new ArrayList<>();
+    context.domainScans.forEach((table, scans) -> {
+      if (scans.size() > 1 && scans.stream().allMatch(DomainScan::isFiltered)) {
+        String domainTable = "#domain_" + table.toLowerCase();
+        domainScans.add(getDomainScanQuery(domainTable, table, scans));
+        domainTables.add(domainTable);
+        bindings.put(getDomainTableToken(table), domainTable);
+      } else {
+        bindings.put(getDomainTableToken(table), SqlTemplate.bind("@cdm_database_schema." + table, optionParams));
+      }
+    });
+    params.put("@domainScans", domainScans.stream().map(q -> "\n" + q).collect(Collectors.joining()));
+    params.put("@domainScansCleanup", domainTables.stream()
+            .map(t -> String.format("\nTRUNCATE TABLE %s;\nDROP TABLE %s;\n", t, t))
+            .collect(Collectors.joining()));
+
+    params.put("@ruleTotal", String.valueOf(ruleTotal));
+    params.put("@finalCohortQuery", getFinalCohortQuery(expression.censorWindow));
+    params.put("@inclusionRuleTable", getInclusionRuleTableSql(expression));
+    params.put("@cohortCensoredStatsQuery",
+            (expression.censorWindow != null && (!StringUtils.isEmpty(expression.censorWindow.startDate) || !StringUtils.isEmpty(expression.censorWindow.endDate)))
+                    ? COHORT_CENSORED_STATS_TEMPLATE
+                    : "");
+
+    // the remaining tokens come from nested templates (criteria, codesets, stats), so they are bound as the script is written
+    SqlTemplate.BindingAppendable boundOut = SqlTemplate.binding(out, bindings);
+    if (context.criteriaQueryBindings.isEmpty()) {
+      COHORT_QUERY_TEMPLATE.writeTo(boundOut, params);
+    } else {
+      // the criteria queries bound to the tokens still hold option and domain table tokens, so they are bound on the way through boundOut
+      SqlTemplate.BindingAppendable criteriaOut = SqlTemplate.binding(boundOut, context.criteriaQueryBindings);
+      COHORT_QUERY_TEMPLATE.writeTo(criteriaOut, params);
+      criteriaOut.finish();
+    }
+    boundOut.finish();
+  }
+
+  /**
+   * Builds the parameters of the event stages: primary events through #final_cohort, and their cleanup.
+   * These are built again for each person bucket, as the criteria temp tables and stage statements of a
+   * bucket are its own.
+   */
+  private Map<String, Object> getEventStageParams(CohortExpression expression) {
+    Map<String, Object> params = new HashMap<>();
 
     String primaryEventsQuery = getPrimaryEventsQuery(expression.primaryCriteria);
-    resultSql = StringUtils.replace(resultSql, "@primaryEventsQuery", primaryEventsQuery);
+    boolean hasAdditionalCriteria = expression.additionalCriteria != null && !expression.additionalCriteria.isEmpty();
+    // the additional criteria are only bounded by a temp table of the primary events
+    boolean materializePrimaryEvents = context.instrumentStages() || (context.boundCorrelatedCriteria() && hasAdditionalCriteria);
+    String additionalCriteriaEventTable;
+    if (materializePrimaryEvents) {
+      // the primary events are materialized, so they are counted and timed as a stage of their own
+      params.put("@primaryEventsStage", getStageStart("primary_events")
+              + String.format("SELECT event_id, person_id, start_date, end_date, op_start_date, op_end_date, visit_occurrence_id\nINTO #primary_events\nFROM (%s) P;\n", primaryEventsQuery)
+              + getStageEnd("#primary_events"));
+      params.put("@primaryEventsCleanup", "TRUNCATE TABLE #primary_events;\nDROP TABLE #primary_events;\n");
+      primaryEventsQuery = "select event_id, person_id, start_date, end_date, op_start_date, op_end_date, visit_occurrence_id from #primary_events";
+      additionalCriteriaEventTable = "#primary_events";
+    } else {
+      params.put("@primaryEventsStage", "");
+      params.put("@primaryEventsCleanup", "");
+      additionalCriteriaEventTable = String.format("(%s)", primaryEventsQuery);
+    }
+    params.put("@primaryEventsQuery", primaryEventsQuery);
 
-    String additionalCriteriaQuery = "";
-    if (expression.additionalCriteria != null && !expression.additionalCriteria.isEmpty()) {
+    if (hasAdditionalCriteria) {
       CriteriaGroup acGroup = expression.additionalCriteria;
-      String acGroupQuery = this.getCriteriaGroupQuery(acGroup, String.format("(%s)", primaryEventsQuery));//acGroup.accept(this);
-      acGroupQuery = StringUtils.replace(acGroupQuery, "@indexId", "" + 0);
-      additionalCriteriaQuery = "\nJOIN (\n" + acGroupQuery + ") AC on AC.person_id = pe.person_id and AC.event_id = pe.event_id\n";
+      SqlTemplate.Fragment acGroupQuery = this.getCriteriaGroupFragment(acGroup, additionalCriteriaEventTable, "0");//acGroup.accept(this);
+      params.put("@additionalCriteriaQuery", (SqlTemplate.Fragment) o -> {
+        o.append("\nJOIN (\n");
+        acGroupQuery.appendTo(o);
+        o.append(") AC on AC.person_id = pe.person_id and AC.event_id = pe.event_id\n");
+      });
+    } else {
+      params.put("@additionalCriteriaQuery", "");
     }
-    resultSql = StringUtils.replace(resultSql, "@additionalCriteriaQuery", additionalCriteriaQuery);
 
-    resultSql = StringUtils.replace(resultSql, "@QualifiedEventSort", (expression.qualifiedLimit.type != null && expression.qualifiedLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
+    params.put("@qualifiedEventsStageStart", getStageStart("qualified_events"));
+    params.put("@qualifiedEventsStageEnd", getStageEnd("#qualified_events"));
+
+    params.put("@QualifiedEventSort", (expression.qualifiedLimit.type != null && expression.qualifiedLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
 
     // Only apply qualified limit filter if additional criteria is specified.
     if (expression.additionalCriteria != null && expression.qualifiedLimit.type != null && !expression.qualifiedLimit.type.equalsIgnoreCase("ALL")) {
-      resultSql = StringUtils.replace(resultSql, "@QualifiedLimitFilter", "WHERE QE.ordinal = 1");
+      params.put("@QualifiedLimitFilter", "WHERE QE.ordinal = 1");
     } else {
-      resultSql = StringUtils.replace(resultSql, "@QualifiedLimitFilter", "");
+      params.put("@QualifiedLimitFilter", "");
     }
 
-    if (expression.inclusionRules.size() > 0) {
-      ArrayList<String> inclusionRuleInserts = new ArrayList<>();
+    if (expression.inclusionRules.size() > 0 && context.singleStatementInclusionRules()) {
+      SqlTemplate.Fragment inclusionRulesInsert = getInclusionRulesQuery(expression.inclusionRules);
+      params.put("@inclusionCohortInserts", SqlTemplate.join(Arrays.asList(getStageStart("inclusion_rules"), inclusionRulesInsert, getStageEnd("#inclusion_events")), ""));
+    } else if (expression.inclusionRules.size() > 0) {
+      ArrayList<Object> inclusionRuleInserts = new ArrayList<>(); // Strings and Fragments
       ArrayList<String> inclusionRuleTempTables = new ArrayList<>();
 
       for (int i = 0; i < expression.inclusionRules.size(); i++) {
         CriteriaGroup cg = expression.inclusionRules.get(i).expression;
-        String inclusionRuleInsert = getInclusionRuleQuery(cg);
-        inclusionRuleInsert = StringUtils.replace(inclusionRuleInsert, "@inclusion_rule_id", "" + i);
-        inclusionRuleInserts.add(inclusionRuleInsert);
+        SqlTemplate.Fragment inclusionRuleInsert = getInclusionRuleQuery(cg, i);
+        if (context.instrumentStages()) {
+          String stageStart = getStageStart("inclusion_rule_" + i);
+          String stageEnd = getStageEnd(String.format("#Inclusion_%d", i));
+          inclusionRuleInserts.add(SqlTemplate.join(Arrays.asList(stageStart, inclusionRuleInsert, stageEnd), ""));
+        } else {
+          inclusionRuleInserts.add(inclusionRuleInsert);
+        }
         inclusionRuleTempTables.add(String.format("#Inclusion_%d", i));
       }
 
@@ -313,20 +1012,23 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
               .map(d -> String.format("TRUNCATE TABLE %s;\nDROP TABLE %s;\n", d, d))
               .collect(Collectors.toList())
       );
-      resultSql = StringUtils.replace(resultSql, "@inclusionCohortInserts", StringUtils.join(inclusionRuleInserts, "\n"));
+      params.put("@inclusionCohortInserts", SqlTemplate.join(inclusionRuleInserts, "\n"));
     } else {
-      resultSql = StringUtils.replace(resultSql, "@inclusionCohortInserts", "create table #inclusion_events (inclusion_rule_id bigint,\n\tperson_id bigint,\n\tevent_id bigint\n);");
+      params.put("@inclusionCohortInserts", "create table #inclusion_events (inclusion_rule_id bigint,\n\tperson_id bigint,\n\tevent_id bigint\n);");
     }
 
-    resultSql = StringUtils.replace(resultSql, "@IncludedEventSort", (expression.expressionLimit.type != null && expression.expressionLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
+    params.put("@includedEventsStageStart", getStageStart("included_events"));
+    params.put("@includedEventsStageEnd", getStageEnd("#included_events"));
+
+    params.put("@IncludedEventSort", (expression.expressionLimit.type != null && expression.expressionLimit.type.equalsIgnoreCase("LAST")) ? "DESC" : "ASC");
 
     if (expression.expressionLimit.type != null && !expression.expressionLimit.type.equalsIgnoreCase("ALL")) {
-      resultSql = StringUtils.replace(resultSql, "@ResultLimitFilter", "WHERE Results.ordinal = 1");
+      params.put("@ResultLimitFilter", "WHERE Results.ordinal = 1");
     } else {
-      resultSql = StringUtils.replace(resultSql, "@ResultLimitFilter", "");
+      params.put("@ResultLimitFilter", "");
     }
 
-    resultSql = StringUtils.replace(resultSql, "@ruleTotal", String.valueOf(expression.inclusionRules.size()));
+    params.put("@ruleTotal", String.valueOf(expression.inclusionRules.size()));
 
     ArrayList<String> endDateSelects = new ArrayList<>();
 
@@ -336,97 +1038,116 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     if (expression.endStrategy != null) {
       // replace @strategy_ends placeholders with temp table creation and cleanup scripts.
-      resultSql = StringUtils.replace(resultSql, "@strategy_ends_temp_tables", expression.endStrategy.accept(this, "#included_events"));
-      resultSql = StringUtils.replace(resultSql, "@strategy_ends_cleanup", "TRUNCATE TABLE #strategy_ends;\nDROP TABLE #strategy_ends;\n");
+      params.put("@strategy_ends_temp_tables", getStageStart("strategy_ends") + expression.endStrategy.accept(this, "#included_events") + getStageEnd("#strategy_ends"));
+      params.put("@strategy_ends_cleanup", "TRUNCATE TABLE #strategy_ends;\nDROP TABLE #strategy_ends;\n");
       endDateSelects.add(String.format("-- End Date Strategy\n%s\n", "SELECT event_id, person_id, end_date from #strategy_ends"));
     } else {
       // replace @trategy_ends placeholders with empty string
-      resultSql = StringUtils.replace(resultSql, "@strategy_ends_temp_tables", "");
-      resultSql = StringUtils.replace(resultSql, "@strategy_ends_cleanup", "");
+      params.put("@strategy_ends_temp_tables", "");
+      params.put("@strategy_ends_cleanup", "");
     }
 
     if (expression.censoringCriteria != null && expression.censoringCriteria.length > 0) {
       endDateSelects.add(String.format("-- Censor Events\n%s\n", getCensoringEventsQuery(expression.censoringCriteria)));
     }
 
-    resultSql = StringUtils.replace(resultSql, "@finalCohortQuery", getFinalCohortQuery(expression.censorWindow));
+    params.put("@cohortRowsStageStart", getStageStart("cohort_rows"));
+    params.put("@cohortRowsStageEnd", getStageEnd("#cohort_rows"));
+    params.put("@finalCohortStageStart", getStageStart("final_cohort"));
+    params.put("@finalCohortStageEnd", getStageEnd("#final_cohort"));
 
-    resultSql = StringUtils.replace(resultSql, "@cohort_end_unions", StringUtils.join(endDateSelects, "\nUNION ALL\n"));
+    params.put("@cohort_end_unions", StringUtils.join(endDateSelects, "\nUNION ALL\n"));
 
-    resultSql = StringUtils.replace(resultSql, "@eraconstructorpad", Integer.toString(expression.collapseSettings.eraPad));
+    params.put("@eraconstructorpad", Integer.toString(expression.collapseSettings.eraPad));
 
-    resultSql = StringUtils.replace(resultSql, "@inclusionRuleTable", getInclusionRuleTableSql(expression));
-    resultSql = StringUtils.replace(resultSql, "@inclusionImpactAnalysisByEventQuery", getInclusionAnalysisQuery("#qualified_events", 0));
-    resultSql = StringUtils.replace(resultSql, "@inclusionImpactAnalysisByPersonQuery", getInclusionAnalysisQuery("#best_events", 1));
+    if (context.shareCriteriaQueries()) {
+      bindSharedCriteriaQueries();
+    }
+    params.put("@criteriaTempTables", StringUtils.join(context.criteriaTableInserts, "\n\n"));
+    params.put("@criteriaTempTablesCleanup", context.criteriaTables.stream()
+            .map(t -> String.format("TRUNCATE TABLE %s;\nDROP TABLE %s;\n", t, t))
+            .collect(Collectors.joining("\n")));
 
-    resultSql = StringUtils.replace(resultSql, "@cohortCensoredStatsQuery",
-            (expression.censorWindow != null && (!StringUtils.isEmpty(expression.censorWindow.startDate) || !StringUtils.isEmpty(expression.censorWindow.endDate)))
-                    ? COHORT_CENSORED_STATS_TEMPLATE
-                    : "");
+    return params;
+  }
 
+  static Map<String, String> getOptionParams(BuildExpressionQueryOptions options) {
+    Map<String, String> optionParams = new HashMap<>();
     if (options != null) {
       // replease query parameters with tokens
       if (options.cdmSchema != null) {
-        resultSql = StringUtils.replace(resultSql, "@cdm_database_schema", options.cdmSchema);
+        optionParams.put("@cdm_database_schema", options.cdmSchema);
       }
       if (options.targetTable != null) {
-        resultSql = StringUtils.replace(resultSql, "@target_database_schema.@target_cohort_table", options.targetTable);
+        optionParams.put("@target_database_schema.@target_cohort_table", options.targetTable);
       }
       if (options.resultSchema != null) {
-        resultSql = StringUtils.replace(resultSql, "@results_database_schema", options.resultSchema);
+        optionParams.put("@results_database_schema", options.resultSchema);
       }
       if (options.vocabularySchema != null) {
-        resultSql = StringUtils.replace(resultSql, "@vocabulary_database_schema", options.vocabularySchema);
+        optionParams.put("@vocabulary_database_schema", options.vocabularySchema);
       } else if (options.cdmSchema != null) {
-        resultSql = StringUtils.replace(resultSql, "@vocabulary_database_schema", options.cdmSchema);
+        optionParams.put("@vocabulary_database_schema", options.cdmSchema);
       }
       if (options.cohortId != null) {
-        resultSql = StringUtils.replace(resultSql, "@target_cohort_id", options.cohortId.toString());
+        optionParams.put("@target_cohort_id", options.cohortId.toString());
       }
 
-      resultSql = StringUtils.replace(resultSql, "@generateStats", options.generateStats ? "1" : "0");
+      optionParams.put("@generateStats", options.generateStats ? "1" : "0");
 
       if (options.cohortIdFieldName != null) {
-        resultSql = StringUtils.replaceAll(resultSql, "@cohort_id_field_name", options.cohortIdFieldName);
+        optionParams.put("@cohort_id_field_name", options.cohortIdFieldName);
       } else {
-        resultSql = StringUtils.replaceAll(resultSql, "@cohort_id_field_name", DEFAULT_COHORT_ID_FIELD_NAME);
+        optionParams.put("@cohort_id_field_name", DEFAULT_COHORT_ID_FIELD_NAME);
       }
     } else {
-      resultSql = StringUtils.replaceAll(resultSql, "@cohort_id_field_name", DEFAULT_COHORT_ID_FIELD_NAME);
+      optionParams.put("@cohort_id_field_name", DEFAULT_COHORT_ID_FIELD_NAME);
     }
-    return resultSql;
+    return optionParams;
   }
 
   public String getCriteriaGroupQuery(CriteriaGroup group, String eventTable) {
-    String query = GROUP_QUERY_TEMPLATE;
-    ArrayList<String> additionalCriteriaQueries = new ArrayList<>();
+    return getCriteriaGroupQuery(group, eventTable, "@indexId");
+  }
+
+  private String getCriteriaGroupQuery(CriteriaGroup group, String eventTable, String indexIdValue) {
+    return SqlTemplate.flatten(getCriteriaGroupFragment(group, eventTable, indexIdValue));
+  }
+
+  /**
+   * Builds the group query as a tree of fragments: the criteria queries are generated here, in order, but
+   * the text of nested groups is only copied once, when the tree is written out.
+   */
+  private SqlTemplate.Fragment getCriteriaGroupFragment(CriteriaGroup group, String eventTable, String indexIdValue) {
+    Map<String, Object> params = new HashMap<>();
+    ArrayList<Object> additionalCriteriaQueries = new ArrayList<>(); // Strings and Fragments
     String joinType = "INNER";
 
     int indexId = 0;
     for (CorelatedCriteria cc : group.criteriaList) {
-      String acQuery = this.getCorelatedlCriteriaQuery(cc, eventTable); //ac.accept(this);
-      acQuery = StringUtils.replace(acQuery, "@indexId", "" + indexId);
+      String acQuery = this.getCorelatedlCriteriaQuery(cc, eventTable, "" + indexId); //ac.accept(this);
       additionalCriteriaQueries.add(acQuery);
       indexId++;
     }
 
     for (DemographicCriteria dc : group.demographicCriteriaList) {
-      String dcQuery = this.getDemographicCriteriaQuery(dc, eventTable); //ac.accept(this);
-      dcQuery = StringUtils.replace(dcQuery, "@indexId", "" + indexId);
+      String dcQuery = this.getDemographicCriteriaQuery(dc, eventTable, "" + indexId); //ac.accept(this);
       additionalCriteriaQueries.add(dcQuery);
       indexId++;
     }
 
     for (CriteriaGroup g : group.groups) {
-      String gQuery = this.getCriteriaGroupQuery(g, eventTable); //g.accept(this);
-      gQuery = StringUtils.replace(gQuery, "@indexId", "" + indexId);
+      SqlTemplate.Fragment gQuery = this.getCriteriaGroupFragment(g, eventTable, "" + indexId); //g.accept(this);
       additionalCriteriaQueries.add(gQuery);
       indexId++;
     }
 
+    params.put("@indexId", indexIdValue);
+    params.put("@eventTable", eventTable);
+
     if (!group.isEmpty())
     {
-      query = StringUtils.replace(query, "@criteriaQueries", StringUtils.join(additionalCriteriaQueries, "\nUNION ALL\n"));
+      params.put("@criteriaQueries", SqlTemplate.join(additionalCriteriaQueries, "\nUNION ALL\n"));
 
       String occurrenceCountClause = "HAVING COUNT(index_id) ";
       if (group.type.equalsIgnoreCase("ALL")) // count must match number of criteria + sub-groups in group.
@@ -452,29 +1173,54 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
         }
       }
 
-      query = StringUtils.replace(query, "@occurrenceCountClause", occurrenceCountClause);
-      query = StringUtils.replace(query, "@joinType", joinType);
+      params.put("@occurrenceCountClause", occurrenceCountClause);
+      params.put("@joinType", joinType);
+
+      // an 'ANY' group, or none or at least one of its members, is a test for the existence of a matching member
+      String existsOperator = group.type.equalsIgnoreCase("ANY") ? "EXISTS"
+              : group.type.equalsIgnoreCase("AT_LEAST") ? getExistsOperator(Occurrence.AT_LEAST, group.count)
+              : group.type.equalsIgnoreCase("AT_MOST") ? getExistsOperator(Occurrence.AT_MOST, group.count)
+              : null;
+      if (existsOperator != null) {
+        params.put("@existsOperator", existsOperator);
+        return out -> GROUP_QUERY_EXISTS_TEMPLATE.writeTo(out, params);
+      }
+      return out -> GROUP_QUERY_TEMPLATE.writeTo(out, params);
     } else // query group is empty so replace group query with a friendly default
     {
-      query = "-- Begin Criteria Group\n select @indexId as index_id, person_id, event_id FROM @eventTable\n-- End Criteria Group\n";
+      return out -> EMPTY_GROUP_QUERY_TEMPLATE.writeTo(out, params);
     }
+  }
 
-    query = StringUtils.replace(query, "@eventTable", eventTable);
-
-    return query;
+  private SqlTemplate.Fragment getInclusionRuleQuery(CriteriaGroup inclusionRule, int inclusionRuleId) {
+    Map<String, Object> params = new HashMap<>();
+    SqlTemplate.Fragment groupQuery = getCriteriaGroupFragment(inclusionRule, "#qualified_events", "0");
+    params.put("@additionalCriteriaQuery", (SqlTemplate.Fragment) out -> {
+      out.append("\nJOIN (\n");
+      groupQuery.appendTo(out);
+      out.append(") AC on AC.person_id = pe.person_id AND AC.event_id = pe.event_id");
+    });
+    params.put("@inclusion_rule_id", "" + inclusionRuleId);
+    return out -> INCLUSION_RULE_QUERY_TEMPLATE.writeTo(out, params);
   }
 
-  private String getInclusionRuleQuery(CriteriaGroup inclusionRule) {
-    String resultSql = INCLUSION_RULE_QUERY_TEMPLATE;
-    String additionalCriteriaQuery = "\nJOIN (\n" + getCriteriaGroupQuery(inclusionRule, "#qualified_events") + ") AC on AC.person_id = pe.person_id AND AC.event_id = pe.event_id";
-    additionalCriteriaQuery = StringUtils.replace(additionalCriteriaQuery, "@indexId", "" + 0);
-    resultSql = StringUtils.replace(resultSql, "@additionalCriteriaQuery", additionalCriteriaQuery);
-    return resultSql;
+  // the criteria group of each rule gives its events of #qualified_events, with the rule's sequence as index_id
+  private SqlTemplate.Fragment getInclusionRulesQuery(List<InclusionRule> inclusionRules) {
+    ArrayList<Object> ruleQueries = new ArrayList<>();
+    for (int i = 0; i < inclusionRules.size(); i++) {
+      ruleQueries.add(getCriteriaGroupFragment(inclusionRules.get(i).expression, "#qualified_events", "" + i));
+    }
+    return out -> INCLUSION_RULES_QUERY_TEMPLATE.writeTo(out, Collections.singletonMap("@inclusionRuleQueries", SqlTemplate.join(ruleQueries, "UNION ALL\n")));
   }
 
   public String getDemographicCriteriaQuery(DemographicCriteria criteria, String eventTable) {
-    String query = DEMOGRAPHIC_CRITERIA_QUERY_TEMPLATE;
-    query = StringUtils.replace(query, "@eventTable", eventTable);
+    return getDemographicCriteriaQuery(criteria, eventTable, "@indexId");
+  }
+
+  private String getDemographicCriteriaQuery(DemographicCriteria criteria, String eventTable, String indexIdValue) {
+    Map<String, String> params = new HashMap<>();
+    params.put("@indexId", indexIdValue);
+    params.put("@eventTable", eventTable);
 
     ArrayList<String> whereClauses = new ArrayList<>();
 
@@ -485,7 +1231,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     // Gender
     if (criteria.gender != null && criteria.gender.length > 0) {
-      whereClauses.add(String.format("P.gender_concept_id in (%s)", StringUtils.join(getConceptIdsFromConcepts(criteria.gender), ",")));
+      whereClauses.add(buildRangeInClause("P.gender_concept_id", getConceptIdsFromConcepts(criteria.gender), MAX_IN_LENGTH));
     }
 
     // genderCS
@@ -495,7 +1241,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     // Race
     if (criteria.race != null && criteria.race.length > 0) {
-      whereClauses.add(String.format("P.race_concept_id in (%s)", StringUtils.join(getConceptIdsFromConcepts(criteria.race), ",")));
+      whereClauses.add(buildRangeInClause("P.race_concept_id", getConceptIdsFromConcepts(criteria.race), MAX_IN_LENGTH));
     }
 
     // raceCS
@@ -505,7 +1251,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     // Ethnicity
     if (criteria.ethnicity != null && criteria.ethnicity.length > 0) {
-      whereClauses.add(String.format("P.ethnicity_concept_id in (%s)", StringUtils.join(getConceptIdsFromConcepts(criteria.ethnicity), ",")));
+      whereClauses.add(buildRangeInClause("P.ethnicity_concept_id", getConceptIdsFromConcepts(criteria.ethnicity), MAX_IN_LENGTH));
     }
 
     //EthnicityCS
@@ -524,26 +1270,31 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
     }
 
     if (whereClauses.size() > 0) {
-      query = StringUtils.replace(query, "@whereClause", "WHERE " + StringUtils.join(whereClauses, " AND "));
+      params.put("@whereClause", "WHERE " + StringUtils.join(whereClauses, " AND "));
     } else {
-      query = StringUtils.replace(query, "@whereClause", "");
+      params.put("@whereClause", "");
     }
 
-    return query;
+    return DEMOGRAPHIC_CRITERIA_QUERY_TEMPLATE.render(params);
   }
 
   public String getWindowedCriteriaQuery(String sqlTemplate, WindowedCriteria criteria, String eventTable, BuilderOptions options) {
+    return getWindowedCriteriaQuery(WINDOWED_TEMPLATES.computeIfAbsent(sqlTemplate, SqlTemplate::compile), criteria, eventTable, options, new HashMap<>());
+  }
+
+  private String getWindowedCriteriaQuery(SqlTemplate sqlTemplate, WindowedCriteria criteria, String eventTable, BuilderOptions options, Map<String, String> params) {
 
-    String query = sqlTemplate;
     boolean checkObservationPeriod = !criteria.ignoreObservationPeriod;
+    // bounds are only taken from a temp table, where they cost a scan of the index events rather than their query
+    boolean boundCriteria = context != null && context.boundCorrelatedCriteria() && eventTable.matches("#\\w+");
+    Set<String> bounds = new LinkedHashSet<>(); // the window clauses may repeat a bound, ie: an observation period endpoint
 
     String criteriaQuery = criteria.criteria.accept(this, options);
-    query = StringUtils.replace(query, "@criteriaQuery", criteriaQuery);
-    query = StringUtils.replace(query, "@eventTable", eventTable);
+    params.put("@eventTable", eventTable);
     if (options != null && options.additionalColumns.size() > 0) {
-      query = StringUtils.replace(query, "@additionalColumns", ", " + getAdditionalColumns(options.additionalColumns, "A."));
+      params.put("@additionalColumns", ", " + getAdditionalColumns(options.additionalColumns, "A."));
     } else {
-      query = StringUtils.replace(query, "@additionalColumns", "");
+      params.put("@additionalColumns", "");
     }
 
     // build index date window expression
@@ -552,6 +1303,8 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
     List<String> clauses = new ArrayList<>();
     if (checkObservationPeriod) {
       clauses.add("A.START_DATE >= P.OP_START_DATE AND A.START_DATE <= P.OP_END_DATE");
+      bounds.add(getWindowBound("A.START_DATE", ">=", "P.OP_START_DATE", eventTable));
+      bounds.add(getWindowBound("A.START_DATE", "<=", "P.OP_END_DATE", eventTable));
     }
 
     // StartWindow
@@ -566,6 +1319,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     if (startExpression != null) {
       clauses.add(String.format("%s >= %s", startEventDateExpression, startExpression));
+      bounds.add(getWindowBound(startEventDateExpression, ">=", startExpression, eventTable));
     }
 
     if (startWindow.end.days != null) {
@@ -576,6 +1330,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
     if (endExpression != null) {
       clauses.add(String.format("%s <= %s", startEventDateExpression, endExpression));
+      bounds.add(getWindowBound(startEventDateExpression, "<=", endExpression, eventTable));
     }
 
     // EndWindow
@@ -593,6 +1348,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
       if (startExpression != null) {
         clauses.add(String.format("%s >= %s", endEventDateExpression, startExpression));
+        bounds.add(getWindowBound(endEventDateExpression, ">=", startExpression, eventTable));
       }
 
       if (endWindow.end.days != null) {
@@ -603,6 +1359,7 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
       if (endExpression != null) {
         clauses.add(String.format("%s <= %s", endEventDateExpression, endExpression));
+        bounds.add(getWindowBound(endEventDateExpression, "<=", endExpression, eventTable));
       }
     }
 
@@ -612,25 +1369,58 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
       clauses.add("A.visit_occurrence_id = P.visit_occurrence_id");
     }
 
-    query = StringUtils.replace(query, "@windowCriteria", clauses.size() > 0 ? " AND " + StringUtils.join(clauses, " AND ") : "");
+    params.put("@windowCriteria", clauses.size() > 0 ? " AND " + StringUtils.join(clauses, " AND ") : "");
 
-    return query;
+    if (boundCriteria) {
+      // only the persons of the index events, within the dates their windows can reach, can be joined
+      List<String> restrictions = new ArrayList<>();
+      restrictions.add(String.format("B.person_id IN (SELECT person_id FROM %s)", eventTable));
+      restrictions.addAll(bounds);
+      criteriaQuery = String.format("SELECT B.* FROM (\n%s\n) B\nWHERE %s\n", criteriaQuery, StringUtils.join(restrictions, "\n  AND "));
+    }
+    params.put("@criteriaQuery", criteriaQuery);
+
+    return sqlTemplate.render(params);
+  }
+
+  // the bound on a date of the criteria implied by a window clause (A.date op P.date) holding for any of the index events
+  private static String getWindowBound(String eventDateExpression, String operator, String indexDateExpression, String eventTable) {
+    return String.format("B.%s %s (SELECT %s(%s) FROM %s P)",
+            StringUtils.removeStart(eventDateExpression, "A.").toLowerCase(),
+            operator,
+            ">=".equals(operator) ? "MIN" : "MAX",
+            indexDateExpression,
+            eventTable);
   }
 
   public String getWindowedCriteriaQuery(WindowedCriteria criteria, String eventTable) {
-    String query = getWindowedCriteriaQuery(WINDOWED_CRITERIA_TEMPLATE, criteria, eventTable, null);
+    String query = getWindowedCriteriaQuery(WINDOWED_CRITERIA_TEMPLATE, criteria, eventTable, null, new HashMap<>());
     return query;
   }
 
   public String getWindowedCriteriaQuery(WindowedCriteria criteria, String eventTable, BuilderOptions options) {
-    String query = getWindowedCriteriaQuery(WINDOWED_CRITERIA_TEMPLATE, criteria, eventTable, options);
+    String query = getWindowedCriteriaQuery(WINDOWED_CRITERIA_TEMPLATE, criteria, eventTable, options, new HashMap<>());
     return query;
   }
 
   public String getCorelatedlCriteriaQuery(CorelatedCriteria corelatedCriteria, String eventTable) {
+    return getCorelatedlCriteriaQuery(corelatedCriteria, eventTable, "@indexId");
+  }
+
+  private String getCorelatedlCriteriaQuery(CorelatedCriteria corelatedCriteria, String eventTable, String indexIdValue) {
 
     // pick the appropraite query template that is optimized for include (at least 1) or exclude (allow 0)
-    String query = (corelatedCriteria.occurrence.type == Occurrence.AT_MOST || corelatedCriteria.occurrence.count == 0) ? ADDITIONAL_CRITERIA_LEFT_TEMPLATE : ADDITIONAL_CRITERIA_INNER_TEMPLATE;
+    SqlTemplate query = (corelatedCriteria.occurrence.type == Occurrence.AT_MOST || corelatedCriteria.occurrence.count == 0) ? ADDITIONAL_CRITERIA_LEFT_TEMPLATE : ADDITIONAL_CRITERIA_INNER_TEMPLATE;
+
+    // none or at least one occurrence only needs a match to exist, so the database can stop at the first one. A distinct
+    // count ignores nulls, so it is not the same as the existence of a row.
+    String existsOperator = getExistsOperator(corelatedCriteria.occurrence.type, corelatedCriteria.occurrence.count);
+    if (existsOperator != null && !corelatedCriteria.occurrence.isDistinct) {
+      Map<String, String> params = new HashMap<>();
+      params.put("@indexId", indexIdValue);
+      params.put("@existsOperator", existsOperator);
+      return getWindowedCriteriaQuery(ADDITIONAL_CRITERIA_EXISTS_TEMPLATE, corelatedCriteria, eventTable, new BuilderOptions(), params);
+    }
 
     String countColumnExpression = "cc.event_id";
 
@@ -646,7 +1436,6 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
       }
     
     }
-    query = getWindowedCriteriaQuery(query, corelatedCriteria, eventTable, builderOptions);
 
     // Occurrence criteria
     String occurrenceCriteria = String.format(
@@ -657,16 +1446,26 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
             corelatedCriteria.occurrence.count
     );
 
-    query = StringUtils.replace(query, "@occurrenceCriteria", occurrenceCriteria);
+    Map<String, String> params = new HashMap<>();
+    params.put("@indexId", indexIdValue);
+    params.put("@occurrenceCriteria", occurrenceCriteria);
 
-    return query;
+    return getWindowedCriteriaQuery(query, corelatedCriteria, eventTable, builderOptions, params);
   }
 
 // <editor-fold defaultstate="collapsed" desc="ICriteriaSqlDispatcher implementation">
 
   protected <T extends Criteria> String getCriteriaSql(CriteriaSqlBuilder<T> builder, T criteria, BuilderOptions options) {
-    String query = builder.getCriteriaSql(criteria, options);
-    return processCorrelatedCriteria(query, criteria);
+    String query = context != null && context.consolidateDomainScans()
+            ? builder.getCriteriaSql(criteria, options, stageDomainScan(builder.getDomainScan(criteria)))
+            : builder.getCriteriaSql(criteria, options);
+    int criteriaTables = context != null ? context.criteriaTables.size() : 0;
+    query = processCorrelatedCriteria(query, criteria);
+    // a query that reads the correlated criteria tables of a bucket is not shared, as those are made after the shared tables
+    if (context != null && context.shareCriteriaQueries() && context.criteriaTables.size() == criteriaTables) {
+      query = shareCriteriaQuery(query);
+    }
+    return query;
   }
 
   protected <T extends Criteria> String getCriteriaSql(CriteriaSqlBuilder<T> builder, T criteria) {
@@ -779,11 +1578,12 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
 
   @Override
   public String getStrategySql(DateOffsetStrategy strat, String eventTable) {
-    String strategySql = StringUtils.replace(DATE_OFFSET_STRATEGY_TEMPLATE, "@eventTable", eventTable);
-    strategySql = StringUtils.replace(strategySql, "@offset", Integer.toString(strat.offset));
-    strategySql = StringUtils.replace(strategySql, "@dateField", getDateFieldForOffsetStrategy(strat.dateField));
+    Map<String, String> params = new HashMap<>();
+    params.put("@eventTable", eventTable);
+    params.put("@offset", Integer.toString(strat.offset));
+    params.put("@dateField", getDateFieldForOffsetStrategy(strat.dateField));
 
-    return strategySql;
+    return DATE_OFFSET_STRATEGY_TEMPLATE.render(params);
   }
 
   @Override
@@ -797,13 +1597,14 @@ public class CohortExpressionQueryBuilder implements IGetCriteriaSqlDispatcher,
     if (strat.daysSupplyOverride != null) {
       drugExposureEndDateExpression = String.format("DATEADD(day,%d,DRUG_EXPOSURE_START_DATE)", strat.daysSupplyOverride);
     }
-    String strategySql = StringUtils.replace(CUSTOM_ERA_STRATEGY_TEMPLATE, "@eventTable", eventTable);
-    strategySql = StringUtils.replace(strategySql, "@drugCodesetId", strat.drugCodesetId.toString());
-    strategySql = StringUtils.replace(strategySql, "@gapDays", Integer.toString(strat.gapDays));
-    strategySql = StringUtils.replace(strategySql, "@offset", Integer.toString(strat.offset));
-    strategySql = StringUtils.replace(strategySql, "@drugExposureEndDateExpression", drugExposureEndDateExpression);
-
-    return strategySql;
+    Map<String, String> params = new HashMap<>();
+    params.put("@eventTable", eventTable);
+    params.put("@drugCodesetId", strat.drugCodesetId.toString());
+    params.put("@gapDays", Integer.toString(strat.gapDays));
+    params.put("@offset", Integer.toString(strat.offset));
+    params.put("@drugExposureEndDateExpression", drugExposureEndDateExpression);
+
+    return CUSTOM_ERA_STRATEGY_TEMPLATE.render(params);
   }
 
 // </editor-fold>
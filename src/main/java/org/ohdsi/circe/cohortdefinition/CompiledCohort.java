@@ -0,0 +1,93 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.cohortdefinition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cohort generation script built once with its option tokens (schemas, cohort table, cohort id, stats)
+ * left in place. The offsets of the tokens are recorded up front, so binding the options of each data
+ * source is a single copy of the script.
+ */
+public final class CompiledCohort {
+
+  private final String sql;
+  private final int[] tokenOffsets;
+
+  CompiledCohort(String sql) {
+    this.sql = sql;
+    List<Integer> offsets = new ArrayList<>();
+    int pos = sql.indexOf('@');
+    while (pos >= 0) {
+      for (String token : CohortExpressionQueryBuilder.OPTION_TOKENS) {
+        if (sql.startsWith(token, pos)) {
+          offsets.add(pos);
+          break;
+        }
+      }
+      pos = sql.indexOf('@', pos + 1);
+    }
+    this.tokenOffsets = offsets.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * @return the script with the option tokens unbound.
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  public String bind(CohortExpressionQueryBuilder.BuildExpressionQueryOptions options) {
+    StringBuilder sb = new StringBuilder(sql.length() + 256);
+    try {
+      bindTo(sb, options);
+    } catch (IOException e) {
+      throw new RuntimeException("Error binding compiled cohort", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the script bound to the options to out. The result is the same as
+   * {@link CohortExpressionQueryBuilder#buildExpressionQuery(CohortExpression, CohortExpressionQueryBuilder.BuildExpressionQueryOptions)}
+   * with these options.
+   */
+  public void bindTo(Appendable out, CohortExpressionQueryBuilder.BuildExpressionQueryOptions options) throws IOException {
+    Map<String, String> params = CohortExpressionQueryBuilder.getOptionParams(options);
+    String[] keys = params.keySet().toArray(new String[0]);
+    Arrays.sort(keys, (a, b) -> b.length() - a.length());
+
+    int copied = 0;
+    for (int offset : tokenOffsets) {
+      if (offset < copied) {
+        continue; // inside a token that was already bound
+      }
+      for (String key : keys) {
+        if (sql.startsWith(key, offset)) {
+          out.append(sql, copied, offset).append(params.get(key));
+          copied = offset + key.length();
+          break;
+        }
+      }
+    }
+    out.append(sql, copied, sql.length());
+  }
+}
@@ -7,13 +7,18 @@ import org.ohdsi.circe.cohortdefinition.NumericRange;
 import org.ohdsi.circe.cohortdefinition.TextFilter;
 import org.ohdsi.circe.vocabulary.Concept;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 import org.ohdsi.circe.cohortdefinition.ConceptSetSelection;
 
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 public abstract class BuilderUtils {
 
@@ -21,17 +26,20 @@ public abstract class BuilderUtils {
   private final static String CODESET_IN_TEMPLATE = "%s %s in (select concept_id from #Codesets where codeset_id = %d)";
   private final static String CODESET_NULL_TEMPLATE = "%s is %s null";
   
-  private final static String DATE_ADJUSTMENT_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/dateAdjustment.sql");
+  private final static SqlTemplate DATE_ADJUSTMENT_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/dateAdjustment.sql");
   ;
     private final static String STANARD_ALIAS = "cs";
   private final static String NON_STANARD_ALIAS = "cns";
+  private final static int MIN_RANGE_LENGTH = 3; // shortest run of consecutive ids written as a BETWEEN
+  public final static int MAX_IN_LENGTH = 1000; // oracle limitation
 
   public static String getDateAdjustmentExpression(DateAdjustment dateAdjustment, String startColumn, String endColumn) {
-    String expression = StringUtils.replace(DATE_ADJUSTMENT_TEMPLATE, "@startOffset", Integer.toString(dateAdjustment.startOffset));
-    expression = StringUtils.replace(expression, "@startColumn", startColumn);
-    expression = StringUtils.replace(expression, "@endOffset", Integer.toString(dateAdjustment.endOffset));
-    expression = StringUtils.replace(expression, "@endColumn", endColumn);
-    return expression;
+    Map<String, String> params = new HashMap<>();
+    params.put("@startOffset", Integer.toString(dateAdjustment.startOffset));
+    params.put("@startColumn", startColumn);
+    params.put("@endOffset", Integer.toString(dateAdjustment.endOffset));
+    params.put("@endColumn", endColumn);
+    return DATE_ADJUSTMENT_TEMPLATE.render(params);
   }
 
   public static String getCodesetJoinExpression(Integer standardCodesetId, String standardConceptColumn, Integer sourceCodesetId, String sourceConceptColumn) {
@@ -198,4 +206,82 @@ public abstract class BuilderUtils {
     return String.format("(%s)", StringUtils.join(ins, " or "));
     
   }
+
+  /**
+   * Builds a predicate matching column against the given ids. The ids are sorted and de-duplicated, runs of
+   * consecutive ids are written as BETWEEN ranges and the remaining ids as IN lists of at most groupSize.
+   */
+  public static String buildRangeInClause(String column, Collection<Long> values, int groupSize) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      appendRangeInClause(sb, column, values, groupSize);
+    } catch (IOException e) {
+      throw new RuntimeException("Error building range in clause", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Streaming form of {@link #buildRangeInClause(String, Collection, int)}.
+   */
+  public static void appendRangeInClause(Appendable out, String column, Collection<Long> values, int groupSize) throws IOException {
+    TreeSet<Long> sorted = new TreeSet<>();
+    for (Long value : values) {
+      if (value != null) {
+        sorted.add(value);
+      }
+    }
+
+    List<Long> singles = new ArrayList<>();
+    boolean first = true;
+    out.append('(');
+    Long runStart = null, runEnd = null;
+    for (Long value : sorted) {
+      if (runEnd != null && value == runEnd + 1) {
+        runEnd = value;
+        continue;
+      }
+      if (runStart != null) {
+        first = appendRun(out, column, runStart, runEnd, singles, first);
+      }
+      runStart = runEnd = value;
+    }
+    if (runStart != null) {
+      first = appendRun(out, column, runStart, runEnd, singles, first);
+    }
+
+    for (int i = 0; i < singles.size(); i += groupSize) {
+      if (!first) {
+        out.append(" or ");
+      }
+      first = false;
+      out.append(column).append(" in (");
+      int endIndex = Math.min(i + groupSize, singles.size());
+      for (int j = i; j < endIndex; j++) {
+        if (j > i) {
+          out.append(',');
+        }
+        out.append(singles.get(j).toString());
+      }
+      out.append(')');
+    }
+    if (first) {
+      out.append("0=1"); // no ids: match nothing, as an empty IN list would
+    }
+    out.append(')');
+  }
+
+  private static boolean appendRun(Appendable out, String column, long runStart, long runEnd, List<Long> singles, boolean first) throws IOException {
+    if (runEnd - runStart + 1 < MIN_RANGE_LENGTH) {
+      for (long id = runStart; id <= runEnd; id++) {
+        singles.add(id);
+      }
+      return first;
+    }
+    if (!first) {
+      out.append(" or ");
+    }
+    out.append(column).append(" between ").append(Long.toString(runStart)).append(" and ").append(Long.toString(runEnd));
+    return false;
+  }
 }
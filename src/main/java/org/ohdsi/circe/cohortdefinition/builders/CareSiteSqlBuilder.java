@@ -1,20 +1,20 @@
 package org.ohdsi.circe.cohortdefinition.builders;
 
-import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.CareSite;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getCodesetJoinExpression;
 
 public class CareSiteSqlBuilder<T extends CareSite> extends CriteriaSqlBuilder<T> {
 
-  private final static String CARE_SITE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/careSite.sql");
+  private final static SqlTemplate CARE_SITE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/careSite.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -25,7 +25,7 @@ public class CareSiteSqlBuilder<T extends CareSite> extends CriteriaSqlBuilder<T
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
     return CARE_SITE_TEMPLATE;
   }
 
@@ -40,9 +40,9 @@ public class CareSiteSqlBuilder<T extends CareSite> extends CriteriaSqlBuilder<T
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
-    return StringUtils.replace(query, "@codesetClause",
+    params.put("@codesetClause",
             getCodesetJoinExpression(criteria.codesetId,
                     "csh.care_site_concept_id",
                     null,
@@ -51,9 +51,7 @@ public class CareSiteSqlBuilder<T extends CareSite> extends CriteriaSqlBuilder<T
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
-
-    return query;
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
   }
 
   @Override
@@ -2,12 +2,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.ConditionEra;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
 
@@ -18,7 +19,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getCodesetI
 
 public class ConditionEraSqlBuilder<T extends ConditionEra> extends CriteriaSqlBuilder<T> {
 
-  private final static String CONDITION_ERA_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/conditionEra.sql");
+  private final static SqlTemplate CONDITION_ERA_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/conditionEra.sql");
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE));
 
@@ -31,7 +32,7 @@ public class ConditionEraSqlBuilder<T extends ConditionEra> extends CriteriaSqlB
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return CONDITION_ERA_TEMPLATE;
   }
@@ -51,26 +52,32 @@ public class ConditionEraSqlBuilder<T extends ConditionEra> extends CriteriaSqlB
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
     String codesetClause = "";
     if (criteria.codesetId != null) {
       codesetClause = String.format("where ce.condition_concept_id in (SELECT concept_id from  #Codesets where codeset_id = %d)", criteria.codesetId);
     }
-    return StringUtils.replace(query, "@codesetClause", codesetClause);
+    params.put("@codesetClause", codesetClause);
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
+
+    return new DomainScan("CONDITION_ERA")
+            .withCodeset("condition_concept_id", criteria.codesetId);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
 
     // first
     if (criteria.first != null && criteria.first) {
       whereClauses.add("C.ordinal = 1");
-      query = StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY ce.person_id ORDER BY ce.condition_era_start_date, ce.condition_era_id) as ordinal");
+      params.put("@ordinalExpression", ", row_number() over (PARTITION BY ce.person_id ORDER BY ce.condition_era_start_date, ce.condition_era_id) as ordinal");
     } else {
-      query = StringUtils.replace(query, "@ordinalExpression", "");
+      params.put("@ordinalExpression", "");
     }
-    return query;
   }
 
   @Override
@@ -2,12 +2,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.ConditionOccurrence;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
@@ -21,7 +22,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class ConditionOccurrenceSqlBuilder<T extends ConditionOccurrence> extends CriteriaSqlBuilder<T> {
 
-  private final static String CONDITION_OCCURRENCE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/conditionOccurrence.sql");
+  private final static SqlTemplate CONDITION_OCCURRENCE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/conditionOccurrence.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -35,7 +36,7 @@ public class ConditionOccurrenceSqlBuilder<T extends ConditionOccurrence> extend
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return CONDITION_OCCURRENCE_TEMPLATE;
   }
@@ -53,7 +54,7 @@ public class ConditionOccurrenceSqlBuilder<T extends ConditionOccurrence> extend
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
     ArrayList<String> joinClauses = new ArrayList<>();
 
@@ -61,21 +62,27 @@ public class ConditionOccurrenceSqlBuilder<T extends ConditionOccurrence> extend
             "co.condition_concept_id",
             criteria.conditionSourceConcept,
             "co.condition_source_concept_id"));
-    return StringUtils.replace(query, "@codesetClause", StringUtils.join(joinClauses, "\n"));
+    params.put("@codesetClause", StringUtils.join(joinClauses, "\n"));
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
+
+    return new DomainScan("CONDITION_OCCURRENCE")
+            .withCodeset("condition_concept_id", criteria.codesetId)
+            .withCodeset("condition_source_concept_id", criteria.conditionSourceConcept);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
 
     // first
     if (criteria.first != null && criteria.first == true) {
       whereClauses.add("C.ordinal = 1");
-      query = StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY co.person_id ORDER BY co.condition_start_date, co.condition_occurrence_id) as ordinal");
+      params.put("@ordinalExpression", ", row_number() over (PARTITION BY co.person_id ORDER BY co.condition_start_date, co.condition_occurrence_id) as ordinal");
     } else {
-      query = StringUtils.replace(query, "@ordinalExpression", "");
+      params.put("@ordinalExpression", "");
     }
-
-    return query;
   }
 
   @Override
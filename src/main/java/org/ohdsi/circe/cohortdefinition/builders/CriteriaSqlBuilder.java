@@ -3,8 +3,11 @@ package org.ohdsi.circe.cohortdefinition.builders;
 import java.util.ArrayList;
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.Criteria;
+import org.ohdsi.circe.helper.SqlTemplate;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -16,6 +19,31 @@ public abstract class CriteriaSqlBuilder<T extends Criteria> {
 
   public String getCriteriaSql(T criteria, BuilderOptions options) {
 
+    return getCriteriaSql(criteria, options, null);
+  }
+
+  /**
+   * Builds the criteria query, reading the rows of its domain table from domainTable (a table, or a token bound
+   * later) in place of the CDM table. A null domainTable reads the CDM table.
+   */
+  public String getCriteriaSql(T criteria, BuilderOptions options, String domainTable) {
+
+    SqlTemplate template = getSqlTemplate();
+    if (template == null) {
+      return getLegacyCriteriaSql(criteria, options);
+    }
+    Map<String, String> params = resolveTemplateParams(criteria, options);
+    DomainScan scan = getDomainScan(criteria);
+    if (scan != null) {
+      params.put("@domainTable", domainTable != null ? domainTable : "@cdm_database_schema." + scan.getTable());
+    }
+    return template.render(params);
+  }
+
+  // the criteria query of a builder still written against the String query template
+  @SuppressWarnings("deprecation")
+  private String getLegacyCriteriaSql(T criteria, BuilderOptions options) {
+
     String query = getQueryTemplate();
 
     query = embedCodesetClause(query, criteria);
@@ -46,8 +74,65 @@ public abstract class CriteriaSqlBuilder<T extends Criteria> {
     return query;
   }
 
+  /**
+   * @return the read of its domain table made by the criteria query, which the query template reads through
+   * the @domainTable token, or null if the read can not be staged into a shared table.
+   */
+  public DomainScan getDomainScan(T criteria) {
+    return null;
+  }
+
+  protected Map<String, String> resolveTemplateParams(T criteria, BuilderOptions options) {
+
+    Map<String, String> params = new HashMap<>();
+
+    embedCodesetClause(params, criteria);
+
+    List<String> selectClauses = resolveSelectClauses(criteria);
+    List<String> joinClauses = resolveJoinClauses(criteria);
+    List<String> whereClauses = resolveWhereClauses(criteria);
+
+    embedOrdinalExpression(params, criteria, whereClauses);
+
+    embedSelectClauses(params, selectClauses);
+    embedJoinClauses(params, joinClauses);
+    embedWhereClauses(params, whereClauses);
+
+    if (options != null) {
+      List<CriteriaColumn> filteredColumns = options.additionalColumns.stream()
+              .filter((column) -> !this.getDefaultColumns().contains(column))
+              .collect(Collectors.toList());
+      if (filteredColumns.size() > 0) {
+        params.put("@additionalColumns", ", " + this.getAdditionalColumns(filteredColumns, criteria));
+      } else {
+        params.put("@additionalColumns", "");
+      }
+    } else {
+      params.put("@additionalColumns", "");
+    }
+
+    return params;
+  }
+
   protected abstract String getTableColumnForCriteriaColumn(CriteriaColumn column);
 
+  // the column expression for this criteria, for builders whose expressions depend on its settings
+  protected String getTableColumnForCriteriaColumn(CriteriaColumn column, T criteria) {
+    return getTableColumnForCriteriaColumn(column);
+  }
+
+  protected String getAdditionalColumns(List<CriteriaColumn> columns, T criteria) {
+    String cols = String.join(", ", columns.stream()
+            .map((column) -> {
+              return String.format("%s as %s", getTableColumnForCriteriaColumn(column, criteria), column.columnName());
+            }).collect(Collectors.toList()));
+    return cols;
+  }
+
+  /**
+   * @deprecated builders now return their additional columns from {@link #getAdditionalColumns(List, Criteria)}.
+   */
+  @Deprecated
   protected String getAdditionalColumns(List<CriteriaColumn> columns) {
     String cols = String.join(", ", columns.stream()
             .map((column) -> {
@@ -58,15 +143,88 @@ public abstract class CriteriaSqlBuilder<T extends Criteria> {
 
   protected abstract Set<CriteriaColumn> getDefaultColumns();
 
+  protected void embedSelectClauses(Map<String, String> params, List<String> selectClauses) {
+    params.put("@selectClause", StringUtils.join(selectClauses, ","));
+  }
+
+  protected void embedJoinClauses(Map<String, String> params, List<String> joinClauses) {
+
+    params.put("@joinClause", StringUtils.join(joinClauses, "\n"));
+  }
+
+  protected void embedWhereClauses(Map<String, String> params, List<String> whereClauses) {
+
+    String whereClause = "";
+    if (whereClauses.size() > 0) {
+      whereClause = "WHERE " + StringUtils.join(whereClauses, "\nAND ");
+    }
+    params.put("@whereClause", whereClause);
+  }
+
+  /**
+   * @return the compiled query template, rendered with the parameters of {@link #resolveTemplateParams}. The
+   * default of null builds the query from the deprecated String template and embed methods instead, as
+   * builders written before the compiled templates do.
+   */
+  protected SqlTemplate getSqlTemplate() {
+    return null;
+  }
+
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not override embedCodesetClause");
+  }
+
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not override embedOrdinalExpression");
+  }
+
+  /**
+   * @deprecated override {@link #getSqlTemplate()}; only used when it returns null.
+   */
+  @Deprecated
+  protected String getQueryTemplate() {
+    throw new UnsupportedOperationException(getClass().getName() + " overrides neither getSqlTemplate nor getQueryTemplate");
+  }
+
+  /**
+   * @deprecated override {@link #embedCodesetClause(Map, Criteria)}; only used when {@link #getSqlTemplate()}
+   * returns null.
+   */
+  @Deprecated
+  protected String embedCodesetClause(String query, T criteria) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not override embedCodesetClause");
+  }
+
+  /**
+   * @deprecated override {@link #embedOrdinalExpression(Map, Criteria, List)}; only used when
+   * {@link #getSqlTemplate()} returns null.
+   */
+  @Deprecated
+  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+    throw new UnsupportedOperationException(getClass().getName() + " does not override embedOrdinalExpression");
+  }
+
+  /**
+   * @deprecated only used when {@link #getSqlTemplate()} returns null.
+   */
+  @Deprecated
   protected String embedSelectClauses(String query, List<String> selectClauses) {
     return StringUtils.replace(query, "@selectClause", StringUtils.join(selectClauses, ","));
   }
 
+  /**
+   * @deprecated only used when {@link #getSqlTemplate()} returns null.
+   */
+  @Deprecated
   protected String embedJoinClauses(String query, List<String> joinClauses) {
 
     return StringUtils.replace(query, "@joinClause", StringUtils.join(joinClauses, "\n"));
   }
 
+  /**
+   * @deprecated only used when {@link #getSqlTemplate()} returns null.
+   */
+  @Deprecated
   protected String embedWhereClauses(String query, List<String> whereClauses) {
 
     String whereClause = "";
@@ -76,12 +234,6 @@ public abstract class CriteriaSqlBuilder<T extends Criteria> {
     return StringUtils.replace(query, "@whereClause", whereClause);
   }
 
-  protected abstract String getQueryTemplate();
-
-  protected abstract String embedCodesetClause(String query, T criteria);
-
-  protected abstract String embedOrdinalExpression(String query, T criteria, List<String> whereClauses);
-
   protected List<String> resolveSelectClauses(T criteria) {
     return new ArrayList<String>();
   }
@@ -2,12 +2,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.Death;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.buildDateRangeClause;
@@ -18,7 +19,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class DeathSqlBuilder<T extends Death> extends CriteriaSqlBuilder<T> {
 
-  private final static String DEATH_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/death.sql");
+  private final static SqlTemplate DEATH_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/death.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -32,7 +33,7 @@ public class DeathSqlBuilder<T extends Death> extends CriteriaSqlBuilder<T> {
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return DEATH_TEMPLATE;
   }
@@ -50,9 +51,9 @@ public class DeathSqlBuilder<T extends Death> extends CriteriaSqlBuilder<T> {
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
-    return StringUtils.replace(query, "@codesetClause",
+    params.put("@codesetClause",
             getCodesetJoinExpression(criteria.codesetId,
                     "d.cause_concept_id",
                     criteria.deathSourceConcept,
@@ -61,9 +62,15 @@ public class DeathSqlBuilder<T extends Death> extends CriteriaSqlBuilder<T> {
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
 
-    return query;
+    return new DomainScan("DEATH")
+            .withCodeset("cause_concept_id", criteria.codesetId)
+            .withCodeset("cause_source_concept_id", criteria.deathSourceConcept);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
   }
 
   @Override
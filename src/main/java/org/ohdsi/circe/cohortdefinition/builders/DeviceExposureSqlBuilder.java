@@ -2,12 +2,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.DeviceExposure;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
 
@@ -20,7 +21,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class DeviceExposureSqlBuilder<T extends DeviceExposure> extends CriteriaSqlBuilder<T> {
 
-  private final static String DEVICE_EXPOSURE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/deviceExposure.sql");
+  private final static SqlTemplate DEVICE_EXPOSURE_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/deviceExposure.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -35,7 +36,7 @@ public class DeviceExposureSqlBuilder<T extends DeviceExposure> extends Criteria
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return DEVICE_EXPOSURE_TEMPLATE;
   }
@@ -55,9 +56,9 @@ public class DeviceExposureSqlBuilder<T extends DeviceExposure> extends Criteria
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
-    return StringUtils.replace(query, "@codesetClause",
+    params.put("@codesetClause",
             getCodesetJoinExpression(criteria.codesetId,
                     "de.device_concept_id",
                     criteria.deviceSourceConcept,
@@ -66,16 +67,23 @@ public class DeviceExposureSqlBuilder<T extends DeviceExposure> extends Criteria
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
+
+    return new DomainScan("DEVICE_EXPOSURE")
+            .withCodeset("device_concept_id", criteria.codesetId)
+            .withCodeset("device_source_concept_id", criteria.deviceSourceConcept);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
 
     // first
     if (criteria.first != null && criteria.first) {
       whereClauses.add("C.ordinal = 1");
-      query = StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY de.person_id ORDER BY de.device_exposure_start_date, de.device_exposure_id) as ordinal");
+      params.put("@ordinalExpression", ", row_number() over (PARTITION BY de.person_id ORDER BY de.device_exposure_start_date, de.device_exposure_id) as ordinal");
     } else {
-      query = StringUtils.replace(query, "@ordinalExpression", "");
+      params.put("@ordinalExpression", "");
     }
-    return query;
   }
 
   @Override
@@ -0,0 +1,63 @@
+package org.ohdsi.circe.cohortdefinition.builders;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The read of a CDM domain table made by a criteria query: the table, and the codeset each of its concept
+ * columns is joined to. A read without codesets needs every row of the table.
+ */
+public class DomainScan {
+
+  private final String table;
+  private final Map<String, Integer> codesets = new LinkedHashMap<>();
+
+  public DomainScan(String table) {
+    this.table = table;
+  }
+
+  /**
+   * Adds the codeset a concept column of the table is joined to, if any.
+   */
+  public DomainScan withCodeset(String conceptColumn, Integer codesetId) {
+    if (codesetId != null) {
+      codesets.put(conceptColumn, codesetId);
+    }
+    return this;
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  /**
+   * @return the codeset id by concept column
+   */
+  public Map<String, Integer> getCodesets() {
+    return Collections.unmodifiableMap(codesets);
+  }
+
+  public boolean isFiltered() {
+    return !codesets.isEmpty();
+  }
+
+  // reads of the same table by the same codesets are the same read
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DomainScan)) {
+      return false;
+    }
+    DomainScan other = (DomainScan) o;
+    return table.equals(other.table) && codesets.equals(other.codesets);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(table, codesets);
+  }
+}
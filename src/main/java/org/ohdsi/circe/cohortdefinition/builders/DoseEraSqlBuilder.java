@@ -2,12 +2,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.DoseEra;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
 
@@ -18,7 +19,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class DoseEraSqlBuilder<T extends DoseEra> extends CriteriaSqlBuilder<T> {
 
-  private final static String DOSE_ERA_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/doseEra.sql");
+  private final static SqlTemplate DOSE_ERA_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/doseEra.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -32,7 +33,7 @@ public class DoseEraSqlBuilder<T extends DoseEra> extends CriteriaSqlBuilder<T>
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return DOSE_ERA_TEMPLATE;
   }
@@ -54,27 +55,32 @@ public class DoseEraSqlBuilder<T extends DoseEra> extends CriteriaSqlBuilder<T>
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
     String codesetClause = "";
     if (criteria.codesetId != null) {
       codesetClause = String.format("where de.drug_concept_id in (SELECT concept_id from  #Codesets where codeset_id = %d)", criteria.codesetId);
     }
-    return StringUtils.replace(query, "@codesetClause", codesetClause);
+    params.put("@codesetClause", codesetClause);
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
+
+    return new DomainScan("DOSE_ERA")
+            .withCodeset("drug_concept_id", criteria.codesetId);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
 
     // first
     if (criteria.first != null && criteria.first) {
       whereClauses.add("C.ordinal = 1");
-      query = StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY de.person_id ORDER BY de.dose_era_start_date, de.dose_era_id) as ordinal");
+      params.put("@ordinalExpression", ", row_number() over (PARTITION BY de.person_id ORDER BY de.dose_era_start_date, de.dose_era_id) as ordinal");
     } else {
-      query = StringUtils.replace(query, "@ordinalExpression", "");
+      params.put("@ordinalExpression", "");
     }
-
-    return query;
   }
 
   @Override
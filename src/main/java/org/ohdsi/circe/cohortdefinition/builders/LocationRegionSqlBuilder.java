@@ -1,20 +1,20 @@
 package org.ohdsi.circe.cohortdefinition.builders;
 
-import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.LocationRegion;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getCodesetJoinExpression;
 
 public class LocationRegionSqlBuilder<T extends LocationRegion> extends CriteriaSqlBuilder<T> {
 
-  private final static String LOCATION_REGION_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/locationRegion.sql");
+  private final static SqlTemplate LOCATION_REGION_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/locationRegion.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -25,7 +25,7 @@ public class LocationRegionSqlBuilder<T extends LocationRegion> extends Criteria
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
     return LOCATION_REGION_TEMPLATE;
   }
 
@@ -40,9 +40,9 @@ public class LocationRegionSqlBuilder<T extends LocationRegion> extends Criteria
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
-    return StringUtils.replace(query, "@codesetClause",
+    params.put("@codesetClause",
             getCodesetJoinExpression(criteria.codesetId,
                     "lh.location_event_id",
                     null,
@@ -51,9 +51,7 @@ public class LocationRegionSqlBuilder<T extends LocationRegion> extends Criteria
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
-
-    return query;
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
   }
 
   @Override
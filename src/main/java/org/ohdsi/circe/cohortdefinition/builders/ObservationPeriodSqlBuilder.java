@@ -3,12 +3,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.ObservationPeriod;
 import org.ohdsi.circe.cohortdefinition.Period;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
 
@@ -19,7 +20,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class ObservationPeriodSqlBuilder<T extends ObservationPeriod> extends CriteriaSqlBuilder<T> {
 
-  private final static String OBSERVATION_PERIOD_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/observationPeriod.sql");
+  private final static SqlTemplate OBSERVATION_PERIOD_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/observationPeriod.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -33,26 +34,40 @@ public class ObservationPeriodSqlBuilder<T extends ObservationPeriod> extends Cr
   }
 
   @Override
-  public String getCriteriaSql(T criteria, BuilderOptions options) {
+  protected Map<String, String> resolveTemplateParams(T criteria, BuilderOptions options) {
 
-    String query = super.getCriteriaSql(criteria, options);
+    Map<String, String> params = super.resolveTemplateParams(criteria, options);
 
     // overwrite user defined dates in select
-    String startDateExpression = (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.startDate != null)
+    params.put("@startDateExpression", getStartDateExpression(criteria));
+    params.put("@endDateExpression", getEndDateExpression(criteria));
+
+    return params;
+  }
+
+  @Override
+  protected SqlTemplate getSqlTemplate() {
+    return OBSERVATION_PERIOD_TEMPLATE;
+  }
+
+  private static String getStartDateExpression(ObservationPeriod criteria) {
+    return (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.startDate != null)
             ? BuilderUtils.dateStringToSql(criteria.userDefinedPeriod.startDate)
             : "C.start_date";
-    query = StringUtils.replace(query, "@startDateExpression", startDateExpression);
+  }
 
-    String endDateExpression = (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.endDate != null)
+  private static String getEndDateExpression(ObservationPeriod criteria) {
+    return (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.endDate != null)
             ? BuilderUtils.dateStringToSql(criteria.userDefinedPeriod.endDate)
             : "C.end_date";
-    query = StringUtils.replace(query, "@endDateExpression", endDateExpression);
-    return query;
   }
 
   @Override
-  protected String getQueryTemplate() {
-    return OBSERVATION_PERIOD_TEMPLATE;
+  protected String getTableColumnForCriteriaColumn(CriteriaColumn column, T criteria) {
+    if (column == CriteriaColumn.DURATION) {
+      return String.format("DATEDIFF(d, %s, %s)", getStartDateExpression(criteria), getEndDateExpression(criteria));
+    }
+    return getTableColumnForCriteriaColumn(column);
   }
 
   @Override
@@ -68,15 +83,11 @@ public class ObservationPeriodSqlBuilder<T extends ObservationPeriod> extends Cr
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
-
-    return query;
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
-
-    return query;
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
   }
 
   @Override
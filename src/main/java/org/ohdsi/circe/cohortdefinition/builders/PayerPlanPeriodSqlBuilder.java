@@ -3,12 +3,13 @@ package org.ohdsi.circe.cohortdefinition.builders;
 import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.PayerPlanPeriod;
 import org.ohdsi.circe.cohortdefinition.Period;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
 
@@ -19,7 +20,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getConceptI
 
 public class PayerPlanPeriodSqlBuilder<T extends PayerPlanPeriod> extends CriteriaSqlBuilder<T> {
 
-  private final static String PAYER_PLAN_PERIOD_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/payerPlanPeriod.sql");
+  private final static SqlTemplate PAYER_PLAN_PERIOD_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/payerPlanPeriod.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_ID));
@@ -33,23 +34,24 @@ public class PayerPlanPeriodSqlBuilder<T extends PayerPlanPeriod> extends Criter
   }
 
   @Override
-  public String getCriteriaSql(T criteria, BuilderOptions options) {
+  protected Map<String, String> resolveTemplateParams(T criteria, BuilderOptions options) {
+
+    Map<String, String> params = super.resolveTemplateParams(criteria, options);
 
-    String query = super.getCriteriaSql(criteria, options);
     String startDateExpression = (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.startDate != null)
             ? BuilderUtils.dateStringToSql(criteria.userDefinedPeriod.startDate)
             : "C.start_date";
-    query = StringUtils.replace(query, "@startDateExpression", startDateExpression);
+    params.put("@startDateExpression", startDateExpression);
 
     String endDateExpression = (criteria.userDefinedPeriod != null && criteria.userDefinedPeriod.endDate != null)
             ? BuilderUtils.dateStringToSql(criteria.userDefinedPeriod.endDate)
             : "C.end_date";
-    query = StringUtils.replace(query, "@endDateExpression", endDateExpression);
-    return query;
+    params.put("@endDateExpression", endDateExpression);
+    return params;
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
 
     return PAYER_PLAN_PERIOD_TEMPLATE;
   }
@@ -65,15 +67,11 @@ public class PayerPlanPeriodSqlBuilder<T extends PayerPlanPeriod> extends Criter
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
-
-    return query;
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
-
-    return query;
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
   }
 
   @Override
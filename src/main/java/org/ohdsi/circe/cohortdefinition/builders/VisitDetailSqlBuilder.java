@@ -1,9 +1,8 @@
 package org.ohdsi.circe.cohortdefinition.builders;
 
-import org.apache.commons.lang3.StringUtils;
 import org.ohdsi.circe.cohortdefinition.ConceptSetSelection;
 import org.ohdsi.circe.cohortdefinition.VisitDetail;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 import java.util.*;
 import org.ohdsi.circe.cohortdefinition.DateAdjustment;
@@ -11,7 +10,7 @@ import static org.ohdsi.circe.cohortdefinition.builders.BuilderUtils.getCodesetI
 
 public class VisitDetailSqlBuilder<T extends VisitDetail> extends CriteriaSqlBuilder<T> {
 
-  private final static String VISIT_DETAIL_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/cohortdefinition/sql/visitDetail.sql");
+  private final static SqlTemplate VISIT_DETAIL_TEMPLATE = SqlTemplate.fromResource("/resources/cohortdefinition/sql/visitDetail.sql");
 
   // default columns are those that are specified in the template, and dont' need to be added if specifeid in 'additionalColumns'
   private final Set<CriteriaColumn> DEFAULT_COLUMNS = new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE, CriteriaColumn.VISIT_DETAIL_ID));
@@ -26,7 +25,7 @@ public class VisitDetailSqlBuilder<T extends VisitDetail> extends CriteriaSqlBui
   }
 
   @Override
-  protected String getQueryTemplate() {
+  protected SqlTemplate getSqlTemplate() {
     return VISIT_DETAIL_TEMPLATE;
   }
 
@@ -43,9 +42,9 @@ public class VisitDetailSqlBuilder<T extends VisitDetail> extends CriteriaSqlBui
   }
 
   @Override
-  protected String embedCodesetClause(String query, T criteria) {
+  protected void embedCodesetClause(Map<String, String> params, T criteria) {
 
-    return StringUtils.replace(query, "@codesetClause",
+    params.put("@codesetClause",
             BuilderUtils.getCodesetJoinExpression(criteria.codesetId,
                     "vd.visit_detail_concept_id",
                     criteria.visitDetailSourceConcept,
@@ -54,15 +53,22 @@ public class VisitDetailSqlBuilder<T extends VisitDetail> extends CriteriaSqlBui
   }
 
   @Override
-  protected String embedOrdinalExpression(String query, T criteria, List<String> whereClauses) {
+  public DomainScan getDomainScan(T criteria) {
+
+    return new DomainScan("VISIT_DETAIL")
+            .withCodeset("visit_detail_concept_id", criteria.codesetId)
+            .withCodeset("visit_detail_source_concept_id", criteria.visitDetailSourceConcept);
+  }
+
+  @Override
+  protected void embedOrdinalExpression(Map<String, String> params, T criteria, List<String> whereClauses) {
     // first
     if (criteria.first != null && criteria.first == true) {
       whereClauses.add("C.ordinal = 1");
-      query = StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY vd.person_id ORDER BY vd.visit_detail_start_date, vd.visit_detail_id) as ordinal");
+      params.put("@ordinalExpression", ", row_number() over (PARTITION BY vd.person_id ORDER BY vd.visit_detail_start_date, vd.visit_detail_id) as ordinal");
     } else {
-      query = StringUtils.replace(query, "@ordinalExpression", "");
+      params.put("@ordinalExpression", "");
     }
-    return query;
   }
 
   @Override
@@ -0,0 +1,104 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.ohdsi.analysis.Utils;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.vocabulary.ConceptSetExpression;
+
+/**
+ * Stable hashes over the content of expressions. The expression is serialized to JSON and written in a
+ * canonical form (object keys sorted, null values dropped) before it is hashed, so expressions that only
+ * differ in key order or in their title get the same fingerprint.
+ */
+public final class ExpressionFingerprint {
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  private ExpressionFingerprint() {
+  }
+
+  public static String of(CohortExpression expression) {
+    return fingerprint(expression, "Title");
+  }
+
+  public static String of(ConceptSetExpression expression) {
+    return fingerprint(expression, null);
+  }
+
+  private static String fingerprint(Object expression, String ignoredField) {
+    try {
+      JsonNode node = JSON_MAPPER.readTree(Utils.serialize(expression));
+      StringBuilder canonical = new StringBuilder();
+      writeCanonical(node, ignoredField, canonical);
+      return sha256(canonical.toString());
+    } catch (Exception e) {
+      throw new RuntimeException("Error building expression fingerprint", e);
+    }
+  }
+
+  private static void writeCanonical(JsonNode node, String ignoredField, StringBuilder out) {
+    if (node.isObject()) {
+      List<String> fields = new ArrayList<>();
+      for (Iterator<String> it = node.fieldNames(); it.hasNext();) {
+        String field = it.next();
+        if (!field.equals(ignoredField) && !node.get(field).isNull()) {
+          fields.add(field);
+        }
+      }
+      Collections.sort(fields);
+      out.append('{');
+      for (int i = 0; i < fields.size(); i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        out.append(JSON_MAPPER.getNodeFactory().textNode(fields.get(i)).toString()).append(':');
+        writeCanonical(node.get(fields.get(i)), null, out); // only top level fields are ignored
+      }
+      out.append('}');
+    } else if (node.isArray()) {
+      out.append('[');
+      for (int i = 0; i < node.size(); i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        writeCanonical(node.get(i), null, out);
+      }
+      out.append(']');
+    } else {
+      out.append(node.toString());
+    }
+  }
+
+  private static String sha256(String value) throws NoSuchAlgorithmException {
+    byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
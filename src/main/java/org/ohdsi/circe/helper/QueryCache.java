@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.helper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, thread-safe LRU cache of generated SQL. The cache is bounded by weight, the total length of the
+ * cached queries; least recently used entries are evicted until the cache is back under maxWeight. A key is
+ * generated once: concurrent lookups of a key being generated wait for that generation.
+ */
+public class QueryCache {
+
+  private final long maxWeight;
+  private final Map<String, String> entries;
+  private final ConcurrentHashMap<String, CompletableFuture<String>> loads = new ConcurrentHashMap<>();
+  private long weight;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public QueryCache(long maxWeight) {
+    if (maxWeight <= 0) {
+      throw new RuntimeException(String.format("Invalid cache weight received: %d.", maxWeight));
+    }
+    this.maxWeight = maxWeight;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * @return the cached query for the key, or the query from generator, which is then cached.
+   */
+  public String get(String key, Supplier<String> generator) {
+    String query = getEntry(key);
+    if (query != null) {
+      return query;
+    }
+
+    CompletableFuture<String> load = new CompletableFuture<>();
+    CompletableFuture<String> pending = loads.putIfAbsent(key, load);
+    if (pending != null) {
+      hits.incrementAndGet();
+      return await(pending);
+    }
+    try {
+      // a load of the key may have completed between the lookup and the putIfAbsent
+      query = getEntry(key);
+      if (query == null) {
+        misses.incrementAndGet();
+        query = generator.get();
+        putEntry(key, query);
+      }
+      load.complete(query);
+      return query;
+    } catch (RuntimeException | Error e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      loads.remove(key, load);
+    }
+  }
+
+  private String getEntry(String key) {
+    synchronized (entries) {
+      String query = entries.get(key);
+      if (query != null) {
+        hits.incrementAndGet();
+      }
+      return query;
+    }
+  }
+
+  private void putEntry(String key, String query) {
+    synchronized (entries) {
+      String replaced = entries.put(key, query);
+      weight += query.length() - (replaced != null ? replaced.length() : 0);
+      // the eldest entries are evicted first, the new entry last if it alone is over maxWeight
+      Iterator<String> eldest = entries.values().iterator();
+      while (weight > maxWeight && eldest.hasNext()) {
+        weight -= eldest.next().length();
+        eldest.remove();
+      }
+    }
+  }
+
+  private static String await(CompletableFuture<String> load) {
+    try {
+      return load.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the total length of the cached queries
+   */
+  public long getWeight() {
+    synchronized (entries) {
+      return weight;
+    }
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      weight = 0;
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A SQL template that is parsed once into a list of literal and parameter segments.
+ *
+ * Parameters are '@' followed by letters, digits or underscores (ie: @codesetQuery). Rendering binds every
+ * parameter in a single pass into one buffer. Parameters without a value are written out unchanged, so
+ * tokens such as @cdm_database_schema survive until the final options are applied.
+ */
+public final class SqlTemplate {
+
+  /**
+   * A parameter value that writes itself to the output, so large sections (ie: codesets) never have to be
+   * held as a single String.
+   */
+  public interface Fragment {
+
+    void appendTo(Appendable out) throws IOException;
+  }
+
+  private final String[] literals; // literals[i] precedes parameters[i], the last literal trails the template
+  private final String[] parameters;
+  private final int literalLength;
+
+  private SqlTemplate(String[] literals, String[] parameters) {
+    this.literals = literals;
+    this.parameters = parameters;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  private static boolean isParameterChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  public static SqlTemplate compile(String sql) {
+    List<String> literals = new ArrayList<>();
+    List<String> parameters = new ArrayList<>();
+
+    int literalStart = 0;
+    int pos = sql.indexOf('@');
+    while (pos >= 0) {
+      int end = pos + 1;
+      while (end < sql.length() && isParameterChar(sql.charAt(end))) {
+        end++;
+      }
+      if (end > pos + 1) {
+        literals.add(sql.substring(literalStart, pos));
+        parameters.add(sql.substring(pos, end));
+        literalStart = end;
+      }
+      pos = sql.indexOf('@', end);
+    }
+    literals.add(sql.substring(literalStart));
+
+    return new SqlTemplate(literals.toArray(new String[0]), parameters.toArray(new String[0]));
+  }
+
+  public static SqlTemplate fromResource(String resource) {
+    return compile(ResourceHelper.GetResourceAsString(resource));
+  }
+
+  /**
+   * @return the distinct parameter names (including the '@') in the order they first appear.
+   */
+  public Set<String> getParameters() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(parameters)));
+  }
+
+  public String render(Map<String, ? extends CharSequence> params) {
+    int capacity = literalLength;
+    for (String parameter : parameters) {
+      CharSequence value = params.get(parameter);
+      capacity += value != null ? value.length() : parameter.length();
+    }
+    return renderTo(new StringBuilder(capacity), params).toString();
+  }
+
+  public StringBuilder renderTo(StringBuilder out, Map<String, ? extends CharSequence> params) {
+    for (int i = 0; i < parameters.length; i++) {
+      out.append(literals[i]);
+      CharSequence value = params.get(parameters[i]);
+      out.append(value != null ? value : parameters[i]);
+    }
+    out.append(literals[parameters.length]);
+    return out;
+  }
+
+  /**
+   * Streams the template to out. Parameter values may be any CharSequence or a {@link Fragment}.
+   */
+  public void writeTo(Appendable out, Map<String, ?> params) throws IOException {
+    for (int i = 0; i < parameters.length; i++) {
+      out.append(literals[i]);
+      Object value = params.get(parameters[i]);
+      if (value instanceof Fragment) {
+        ((Fragment) value).appendTo(out);
+      } else {
+        out.append(value != null ? (CharSequence) value : parameters[i]);
+      }
+    }
+    out.append(literals[parameters.length]);
+  }
+
+  /**
+   * Binds tokens in an already rendered script in one pass. Keys are matched literally at each '@',
+   * longest key first, so a compound key such as "@target_database_schema.@target_cohort_table" can be
+   * bound as a whole.
+   */
+  public static String bind(String sql, Map<String, ? extends CharSequence> params) {
+    String[] keys = params.keySet().toArray(new String[0]);
+    Arrays.sort(keys, (a, b) -> b.length() - a.length());
+
+    StringBuilder out = null;
+    int copied = 0;
+    int pos = sql.indexOf('@');
+    while (pos >= 0) {
+      String match = null;
+      for (String key : keys) {
+        if (sql.startsWith(key, pos)) {
+          match = key;
+          break;
+        }
+      }
+      if (match == null) {
+        pos = sql.indexOf('@', pos + 1);
+        continue;
+      }
+      if (out == null) {
+        out = new StringBuilder(sql.length() + 256);
+      }
+      out.append(sql, copied, pos).append(params.get(match));
+      copied = pos + match.length();
+      pos = sql.indexOf('@', copied);
+    }
+    if (out == null) {
+      return sql;
+    }
+    return out.append(sql, copied, sql.length()).toString();
+  }
+
+  /**
+   * @return a fragment that writes the parts (CharSequences or Fragments) separated by the separator.
+   */
+  public static Fragment join(List<?> parts, String separator) {
+    return out -> {
+      for (int i = 0; i < parts.size(); i++) {
+        if (i > 0) {
+          out.append(separator);
+        }
+        Object part = parts.get(i);
+        if (part instanceof Fragment) {
+          ((Fragment) part).appendTo(out);
+        } else {
+          out.append((CharSequence) part);
+        }
+      }
+    };
+  }
+
+  /**
+   * Writes a fragment tree into a single String.
+   */
+  public static String flatten(Fragment fragment) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      fragment.appendTo(sb);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing SQL fragment", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return render(Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Returns an Appendable that binds tokens with the same rules as {@link #bind(String, Map)} while the
+   * script is written through it. Only a partially matched token is held back, so memory does not grow with
+   * the size of the script. Call {@link BindingAppendable#finish()} after the last write.
+   */
+  public static BindingAppendable binding(Appendable out, Map<String, ? extends CharSequence> params) {
+    return new BindingAppendable(out, params);
+  }
+
+  public static final class BindingAppendable implements Appendable {
+
+    private final Appendable out;
+    private final Map<String, ? extends CharSequence> params;
+    private final String[] keys;
+    private final StringBuilder pending = new StringBuilder();
+
+    private BindingAppendable(Appendable out, Map<String, ? extends CharSequence> params) {
+      this.out = out;
+      this.params = params;
+      this.keys = params.keySet().toArray(new String[0]);
+      Arrays.sort(this.keys, (a, b) -> b.length() - a.length());
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+      if (csq == null) {
+        csq = "null"; // as StringBuilder does
+      }
+      return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+      if (csq == null) {
+        csq = "null";
+      }
+      int pos = start;
+      while (pos < end) {
+        if (pending.length() > 0) {
+          pending.append(csq.charAt(pos++));
+          drain(false);
+        } else {
+          int at = indexOf(csq, '@', pos, end);
+          if (at < 0) {
+            out.append(csq, pos, end);
+            break;
+          }
+          out.append(csq, pos, at);
+          pending.append('@');
+          pos = at + 1;
+          drain(false);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+      if (pending.length() > 0 || c == '@') {
+        pending.append(c);
+        drain(false);
+      } else {
+        out.append(c);
+      }
+      return this;
+    }
+
+    /**
+     * Writes out whatever is still held back. No more text may follow.
+     */
+    public void finish() throws IOException {
+      drain(true);
+    }
+
+    private static int indexOf(CharSequence csq, char c, int from, int to) {
+      for (int i = from; i < to; i++) {
+        if (csq.charAt(i) == c) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, CharSequence prefix) {
+      for (int i = 0; i < prefix.length(); i++) {
+        if (text.charAt(i) != prefix.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void drain(boolean last) throws IOException {
+      while (pending.length() > 0) {
+        if (pending.charAt(0) != '@') {
+          int at = pending.indexOf("@");
+          int stop = at < 0 ? pending.length() : at;
+          out.append(pending, 0, stop);
+          pending.delete(0, stop);
+          continue;
+        }
+        String match = null;
+        boolean undecided = false;
+        for (String key : keys) {
+          if (key.length() > pending.length()) {
+            if (!last && startsWith(key, pending)) {
+              undecided = true; // a longer key may still match once more text arrives
+              break;
+            }
+          } else if (startsWith(pending, key)) {
+            match = key;
+            break;
+          }
+        }
+        if (undecided) {
+          return;
+        }
+        if (match != null) {
+          out.append(params.get(match));
+          pending.delete(0, match.length());
+        } else {
+          out.append('@');
+          pending.deleteCharAt(0);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.vocabulary;
+
+import java.util.Arrays;
+
+/**
+ * A directed concept relation (ie: ancestor to descendant) in compressed sparse row form: the distinct
+ * source ids are sorted, and the targets of keys[i] are values[offsets[i]] to values[offsets[i + 1]] - 1.
+ * OMOP concept ids are integers, so the arrays hold ints.
+ */
+final class ConceptGraph {
+
+  private static final long[] EMPTY = new long[0];
+
+  final int[] keys;
+  final int[] offsets;
+  final int[] values;
+
+  ConceptGraph(int[] keys, int[] offsets, int[] values) {
+    this.keys = keys;
+    this.offsets = offsets;
+    this.values = values;
+  }
+
+  long[] get(long key) {
+    if (key < Integer.MIN_VALUE || key > Integer.MAX_VALUE) {
+      return EMPTY;
+    }
+    int index = Arrays.binarySearch(keys, (int) key);
+    if (index < 0) {
+      return EMPTY;
+    }
+    long[] result = new long[offsets[index + 1] - offsets[index]];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = values[offsets[index] + i];
+    }
+    return result;
+  }
+
+  static int toConceptId(long conceptId) {
+    if (conceptId < Integer.MIN_VALUE || conceptId > Integer.MAX_VALUE) {
+      throw new RuntimeException(String.format("Invalid concept id recieved: %d.", conceptId));
+    }
+    return (int) conceptId;
+  }
+
+  /**
+   * Collects (key, value) pairs packed into single longs, so sorting and de-duplicating millions of
+   * CONCEPT_ANCESTOR rows needs no per-row objects.
+   */
+  static final class Builder {
+
+    private long[] pairs = new long[1024];
+    private int size;
+
+    void add(long key, long value) {
+      if (size == pairs.length) {
+        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+      }
+      pairs[size++] = ((long) toConceptId(key) << 32) | (toConceptId(value) & 0xffffffffL);
+    }
+
+    ConceptGraph build() {
+      long[] sorted = Arrays.copyOf(pairs, size);
+      Arrays.sort(sorted);
+
+      int distinctPairs = 0;
+      int distinctKeys = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          if (distinctPairs == 0 || (int) (sorted[i] >> 32) != (int) (sorted[distinctPairs - 1] >> 32)) {
+            distinctKeys++;
+          }
+          sorted[distinctPairs++] = sorted[i];
+        }
+      }
+
+      int[] keys = new int[distinctKeys];
+      int[] offsets = new int[distinctKeys + 1];
+      int[] values = new int[distinctPairs];
+      int k = -1;
+      for (int i = 0; i < distinctPairs; i++) {
+        int key = (int) (sorted[i] >> 32);
+        if (k < 0 || keys[k] != key) {
+          keys[++k] = key;
+          offsets[k] = i;
+        }
+        values[i] = (int) sorted[i];
+      }
+      offsets[distinctKeys] = distinctPairs;
+      return new ConceptGraph(keys, offsets, values);
+    }
+  }
+}
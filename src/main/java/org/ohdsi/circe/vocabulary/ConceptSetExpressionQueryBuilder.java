@@ -18,10 +18,13 @@
  */
 package org.ohdsi.circe.vocabulary;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import org.apache.commons.lang3.StringUtils;
+import java.util.Collections;
 import org.ohdsi.circe.cohortdefinition.builders.BuilderUtils;
-import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.helper.ExpressionFingerprint;
+import org.ohdsi.circe.helper.QueryCache;
+import org.ohdsi.circe.helper.SqlTemplate;
 
 /**
  *
@@ -29,12 +32,24 @@ import org.ohdsi.circe.helper.ResourceHelper;
  */
 public class ConceptSetExpressionQueryBuilder {
 
-  private final static String CONCEPT_SET_QUERY_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/vocabulary/sql/conceptSetQuery.sql");
-  private final static String CONCEPT_SET_DESCENDANTS_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/vocabulary/sql/conceptSetDescendants.sql");
-  private final static String CONCEPT_SET_MAPPED_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/vocabulary/sql/conceptSetMapped.sql");
-  private final static String CONCEPT_SET_INCLUDE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/vocabulary/sql/conceptSetInclude.sql");
-  private final static String CONCEPT_SET_EXCLUDE_TEMPLATE = ResourceHelper.GetResourceAsString("/resources/vocabulary/sql/conceptSetExclude.sql");
-  private final static int MAX_IN_LENGTH = 1000; // oracle limitation
+  private final static SqlTemplate CONCEPT_SET_QUERY_TEMPLATE = SqlTemplate.fromResource("/resources/vocabulary/sql/conceptSetQuery.sql");
+  private final static SqlTemplate CONCEPT_SET_DESCENDANTS_TEMPLATE = SqlTemplate.fromResource("/resources/vocabulary/sql/conceptSetDescendants.sql");
+  private final static SqlTemplate CONCEPT_SET_MAPPED_TEMPLATE = SqlTemplate.fromResource("/resources/vocabulary/sql/conceptSetMapped.sql");
+  private final static SqlTemplate CONCEPT_SET_INCLUDE_TEMPLATE = SqlTemplate.fromResource("/resources/vocabulary/sql/conceptSetInclude.sql");
+  private final static SqlTemplate CONCEPT_SET_EXCLUDE_TEMPLATE = SqlTemplate.fromResource("/resources/vocabulary/sql/conceptSetExclude.sql");
+
+  private final QueryCache queryCache;
+
+  public ConceptSetExpressionQueryBuilder() {
+    this(null);
+  }
+
+  /**
+   * @param queryCache caches the queries returned by buildExpressionQuery(ConceptSetExpression), or null.
+   */
+  public ConceptSetExpressionQueryBuilder(QueryCache queryCache) {
+    this.queryCache = queryCache;
+  }
 
 
   private ArrayList<Long> getConceptIds(ArrayList<Concept> concepts)
@@ -48,53 +63,80 @@ public class ConceptSetExpressionQueryBuilder {
   
   
  
-  private String buildConceptSetSubQuery (
+  private void appendConceptSetSubQuery (
+          Appendable out,
           ArrayList<Concept> concepts,
           ArrayList<Concept> descendantConcepts
-  )
+  ) throws IOException
   {
-    ArrayList<String> queries = new ArrayList<>();
     if (!concepts.isEmpty()) {
-      queries.add(StringUtils.replace(CONCEPT_SET_QUERY_TEMPLATE, "@conceptIdIn", BuilderUtils.splitInClause("concept_id", getConceptIds(concepts), MAX_IN_LENGTH)));
+      CONCEPT_SET_QUERY_TEMPLATE.writeTo(out, Collections.singletonMap("@conceptIdIn",
+              (SqlTemplate.Fragment) o -> BuilderUtils.appendRangeInClause(o, "concept_id", getConceptIds(concepts), BuilderUtils.MAX_IN_LENGTH)));
     }
     if (!descendantConcepts.isEmpty()) {
-      queries.add(StringUtils.replace(CONCEPT_SET_DESCENDANTS_TEMPLATE, "@conceptIdIn", BuilderUtils.splitInClause("ca.ancestor_concept_id", getConceptIds(descendantConcepts), MAX_IN_LENGTH)));
+      if (!concepts.isEmpty()) {
+        out.append("UNION");
+      }
+      CONCEPT_SET_DESCENDANTS_TEMPLATE.writeTo(out, Collections.singletonMap("@conceptIdIn",
+              (SqlTemplate.Fragment) o -> BuilderUtils.appendRangeInClause(o, "ca.ancestor_concept_id", getConceptIds(descendantConcepts), BuilderUtils.MAX_IN_LENGTH)));
     }
-    
-    return StringUtils.join(queries, "UNION");
-    
   }
   
-  private String buildConceptSetMappedQuery (
+  private void appendConceptSetMappedQuery (
+          Appendable out,
           ArrayList<Concept> mappedConcepts,
           ArrayList<Concept> mappedDescendantConcepts
-  ) {
-    String conceptSetQuery = buildConceptSetSubQuery(mappedConcepts, mappedDescendantConcepts);
-    return StringUtils.replace(CONCEPT_SET_MAPPED_TEMPLATE, "@conceptsetQuery", conceptSetQuery);
+  ) throws IOException {
+    CONCEPT_SET_MAPPED_TEMPLATE.writeTo(out, Collections.singletonMap("@conceptsetQuery",
+            (SqlTemplate.Fragment) o -> appendConceptSetSubQuery(o, mappedConcepts, mappedDescendantConcepts)));
   }
   
-  private String buildConceptSetQuery(
+  private void appendConceptSetQuery(
+          Appendable out,
           ArrayList<Concept> concepts,
           ArrayList<Concept> descendantConcepts,
           ArrayList<Concept> mappedConcepts,
-          ArrayList<Concept> mappedDesandantConcepts)
+          ArrayList<Concept> mappedDesandantConcepts) throws IOException
   {
     if (concepts.size() == 0)
     {
-      return "select concept_id from @vocabulary_database_schema.CONCEPT where 0=1";
+      out.append("select concept_id from @vocabulary_database_schema.CONCEPT where 0=1");
+      return;
     }
     
-    String conceptSetQuery = buildConceptSetSubQuery(concepts, descendantConcepts);
+    appendConceptSetSubQuery(out, concepts, descendantConcepts);
 
     if (mappedConcepts.size() > 0 || mappedDesandantConcepts.size() > 0)
     {
-      buildConceptSetMappedQuery(mappedConcepts,mappedDesandantConcepts);
-      conceptSetQuery += "UNION\n" + buildConceptSetMappedQuery(mappedConcepts,mappedDesandantConcepts);
+      out.append("UNION\n");
+      appendConceptSetMappedQuery(out, mappedConcepts, mappedDesandantConcepts);
     }
-    return conceptSetQuery;
   }
   
   public String buildExpressionQuery(ConceptSetExpression expression)
+  {
+    if (queryCache != null) {
+      return queryCache.get("conceptset:" + ExpressionFingerprint.of(expression), () -> generateExpressionQuery(expression));
+    }
+    return generateExpressionQuery(expression);
+  }
+
+  private String generateExpressionQuery(ConceptSetExpression expression)
+  {
+    StringBuilder sb = new StringBuilder();
+    try {
+      buildExpressionQuery(expression, sb);
+    } catch (IOException e) {
+      throw new RuntimeException("Error building concept set expression query", e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the concept set expression query to out as it is generated, so large concept sets are never
+   * held in memory as a single String.
+   */
+  public void buildExpressionQuery(ConceptSetExpression expression, Appendable out) throws IOException
   {
     // handle included concepts.
     ArrayList<Concept> includeConcepts = new ArrayList<>();
@@ -108,8 +150,12 @@ public class ConceptSetExpressionQueryBuilder {
     ArrayList<Concept> excludeMappedDescendantConcepts = new ArrayList<>();
     
     // populate each sub-set of cocnepts from the flags set in each concept set item
-    for (ConceptSetExpression.ConceptSetItem item : expression.items)
+    ConceptSetExpression.ConceptSetItem[] items = expression != null && expression.items != null ? expression.items : new ConceptSetExpression.ConceptSetItem[0];
+    for (ConceptSetExpression.ConceptSetItem item : items)
     {
+      if (item == null || item.concept == null || item.concept.conceptId == null)
+        continue; // selects no concept
+
       if (!item.isExcluded)
       {
         includeConcepts.add(item.concept);
@@ -138,13 +184,12 @@ public class ConceptSetExpressionQueryBuilder {
     
     // each ArrayList contains the concepts that are used in the sub-query of the codeset expression query
     
-    String conceptSetQuery = StringUtils.replace(CONCEPT_SET_INCLUDE_TEMPLATE,"@includeQuery", buildConceptSetQuery(includeConcepts, includeDescendantConcepts, includeMappedConcepts, includeMappedDescendantConcepts));
+    CONCEPT_SET_INCLUDE_TEMPLATE.writeTo(out, Collections.singletonMap("@includeQuery",
+            (SqlTemplate.Fragment) o -> appendConceptSetQuery(o, includeConcepts, includeDescendantConcepts, includeMappedConcepts, includeMappedDescendantConcepts)));
     
     if (excludeConcepts.size() > 0){
-      String excludeConceptsQuery = StringUtils.replace(CONCEPT_SET_EXCLUDE_TEMPLATE, "@excludeQuery", buildConceptSetQuery(excludeConcepts, excludeDescendantConcepts, excludeMappedConcepts, excludeMappedDescendantConcepts));
-      conceptSetQuery += excludeConceptsQuery;
+      CONCEPT_SET_EXCLUDE_TEMPLATE.writeTo(out, Collections.singletonMap("@excludeQuery",
+              (SqlTemplate.Fragment) o -> appendConceptSetQuery(o, excludeConcepts, excludeDescendantConcepts, excludeMappedConcepts, excludeMappedDescendantConcepts)));
     }
-    
-    return conceptSetQuery;
   }
 }
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.vocabulary;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Resolves concept set expressions to their concept ids in Java, with the same include, exclude,
+ * descendant and mapped rules as the SQL written by {@link ConceptSetExpressionQueryBuilder}.
+ */
+public class ConceptSetResolver {
+
+  private final VocabularyIndex vocabulary;
+
+  public ConceptSetResolver(VocabularyIndex vocabulary) {
+    this.vocabulary = vocabulary;
+  }
+
+  /**
+   * @return the sorted concept ids of the expression: the included concepts minus the excluded ones.
+   */
+  public TreeSet<Long> resolve(ConceptSetExpression expression) {
+    TreeSet<Long> conceptIds = new TreeSet<>();
+    if (expression == null || expression.items == null) {
+      return conceptIds;
+    }
+    conceptIds.addAll(resolveItems(expression, false));
+    conceptIds.removeAll(resolveItems(expression, true));
+    return conceptIds;
+  }
+
+  private Set<Long> resolveItems(ConceptSetExpression expression, boolean excluded) {
+    Set<Long> conceptIds = new HashSet<>();
+    Set<Long> mappedSources = new HashSet<>();
+
+    for (ConceptSetExpression.ConceptSetItem item : expression.items) {
+      if (item.isExcluded != excluded || item.concept == null || item.concept.conceptId == null) {
+        continue;
+      }
+      long conceptId = item.concept.conceptId;
+
+      // the concept itself, if it is in the vocabulary
+      if (vocabulary.containsConcept(conceptId)) {
+        conceptIds.add(conceptId);
+        if (item.includeMapped) {
+          mappedSources.add(conceptId);
+        }
+      }
+
+      // its valid descendants
+      if (item.includeDescendants) {
+        for (long descendantId : vocabulary.getDescendants(conceptId)) {
+          if (vocabulary.isValidConcept(descendantId)) {
+            conceptIds.add(descendantId);
+            if (item.includeMapped) {
+              mappedSources.add(descendantId);
+            }
+          }
+        }
+      }
+    }
+
+    // the concepts that map to them
+    for (Long conceptId : mappedSources) {
+      for (long mappedId : vocabulary.getMappedConcepts(conceptId)) {
+        conceptIds.add(mappedId);
+      }
+    }
+    return conceptIds;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.vocabulary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A vocabulary index read straight from a memory mapped file, so opening it costs no parsing and lookups
+ * run against the page cache instead of the Java heap.
+ *
+ * The file is written by {@link #write(VocabularySnapshot, File)} as a header followed by big endian int
+ * sections: the sorted concept ids, one flag byte per concept (padded to a multiple of 4), and the
+ * CONCEPT_ANCESTOR closure and the 'Maps to' edges, each as compressed sparse row keys, offsets and values.
+ */
+public final class MappedVocabularyIndex implements VocabularyIndex {
+
+  private static final int MAGIC = 0x43564958; // "CVIX"
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 7;
+
+  private static final byte INVALID_FLAG = 1;
+  private static final byte STANDARD_FLAG = 2;
+
+  private static final long[] EMPTY = new long[0];
+
+  private final IntBuffer conceptIds;
+  private final ByteBuffer conceptFlags;
+  private final IntBuffer ancestorKeys;
+  private final IntBuffer ancestorOffsets;
+  private final IntBuffer ancestorValues;
+  private final IntBuffer mappedKeys;
+  private final IntBuffer mappedOffsets;
+  private final IntBuffer mappedValues;
+
+  private MappedVocabularyIndex(MappedByteBuffer buffer) throws IOException {
+    if (buffer.limit() < HEADER_INTS * 4 || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a vocabulary index file");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException(String.format("Unsupported vocabulary index version: %d", buffer.getInt(4)));
+    }
+    int conceptCount = buffer.getInt(8);
+    int ancestorKeyCount = buffer.getInt(12);
+    int ancestorValueCount = buffer.getInt(16);
+    int mappedKeyCount = buffer.getInt(20);
+    int mappedValueCount = buffer.getInt(24);
+    if (conceptCount < 0 || ancestorKeyCount < 0 || ancestorValueCount < 0 || mappedKeyCount < 0 || mappedValueCount < 0) {
+      throw new IOException("Not a vocabulary index file");
+    }
+    // long arithmetic, so a corrupt header can not overflow into a length that passes the check
+    long expectedLength = 4L * (HEADER_INTS + (long) conceptCount + 2L * ancestorKeyCount + 1 + ancestorValueCount
+            + 2L * mappedKeyCount + 1 + mappedValueCount) + (((long) conceptCount + 3) & ~3L);
+    if (expectedLength > buffer.limit()) {
+      throw new IOException("Truncated vocabulary index");
+    }
+
+    int position = HEADER_INTS * 4;
+    conceptIds = slice(buffer, position, conceptCount * 4).asIntBuffer();
+    position += conceptCount * 4;
+    conceptFlags = slice(buffer, position, conceptCount);
+    position += align(conceptCount);
+    ancestorKeys = slice(buffer, position, ancestorKeyCount * 4).asIntBuffer();
+    position += ancestorKeyCount * 4;
+    ancestorOffsets = slice(buffer, position, (ancestorKeyCount + 1) * 4).asIntBuffer();
+    position += (ancestorKeyCount + 1) * 4;
+    ancestorValues = slice(buffer, position, ancestorValueCount * 4).asIntBuffer();
+    position += ancestorValueCount * 4;
+    mappedKeys = slice(buffer, position, mappedKeyCount * 4).asIntBuffer();
+    position += mappedKeyCount * 4;
+    mappedOffsets = slice(buffer, position, (mappedKeyCount + 1) * 4).asIntBuffer();
+    position += (mappedKeyCount + 1) * 4;
+    mappedValues = slice(buffer, position, mappedValueCount * 4).asIntBuffer();
+  }
+
+  private static int align(int length) {
+    return (length + 3) & ~3;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(position);
+    duplicate.limit(position + length);
+    return duplicate.slice();
+  }
+
+  /**
+   * Maps the index file into memory. The mapping stays valid after the file channel is closed.
+   */
+  public static MappedVocabularyIndex open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Vocabulary index file is too large to map: " + file);
+      }
+      return new MappedVocabularyIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Writes the snapshot in the index file format.
+   */
+  public static void write(VocabularySnapshot snapshot, File file) throws IOException {
+    int[] conceptIds = snapshot.conceptIds;
+    ConceptGraph descendants = snapshot.descendants;
+    ConceptGraph mapped = snapshot.mappedConcepts;
+
+    long length = 4L * (HEADER_INTS + conceptIds.length + descendants.keys.length * 2 + 1 + descendants.values.length
+            + mapped.keys.length * 2 + 1 + mapped.values.length) + align(conceptIds.length);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Vocabulary is too large for a single index file");
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(conceptIds.length);
+      out.writeInt(descendants.keys.length);
+      out.writeInt(descendants.values.length);
+      out.writeInt(mapped.keys.length);
+      out.writeInt(mapped.values.length);
+
+      writeInts(out, conceptIds);
+      for (int i = 0; i < conceptIds.length; i++) {
+        out.writeByte((snapshot.invalidConcepts.get(i) ? INVALID_FLAG : 0) | (snapshot.standardConcepts.get(i) ? STANDARD_FLAG : 0));
+      }
+      for (int i = conceptIds.length; i < align(conceptIds.length); i++) {
+        out.writeByte(0);
+      }
+      writeInts(out, descendants.keys);
+      writeInts(out, descendants.offsets);
+      writeInts(out, descendants.values);
+      writeInts(out, mapped.keys);
+      writeInts(out, mapped.offsets);
+      writeInts(out, mapped.values);
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static int binarySearch(IntBuffer sorted, long key) {
+    if (key < Integer.MIN_VALUE || key > Integer.MAX_VALUE) {
+      return -1;
+    }
+    int low = 0;
+    int high = sorted.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int value = sorted.get(mid);
+      if (value < key) {
+        low = mid + 1;
+      } else if (value > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static long[] getValues(IntBuffer keys, IntBuffer offsets, IntBuffer values, long key) {
+    int index = binarySearch(keys, key);
+    if (index < 0) {
+      return EMPTY;
+    }
+    int start = offsets.get(index);
+    long[] result = new long[offsets.get(index + 1) - start];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = values.get(start + i);
+    }
+    return result;
+  }
+
+  private byte getFlags(long conceptId) {
+    int index = binarySearch(conceptIds, conceptId);
+    return index < 0 ? -1 : conceptFlags.get(index);
+  }
+
+  @Override
+  public boolean containsConcept(long conceptId) {
+    return binarySearch(conceptIds, conceptId) >= 0;
+  }
+
+  @Override
+  public boolean isValidConcept(long conceptId) {
+    byte flags = getFlags(conceptId);
+    return flags >= 0 && (flags & INVALID_FLAG) == 0;
+  }
+
+  @Override
+  public boolean isStandardConcept(long conceptId) {
+    byte flags = getFlags(conceptId);
+    return flags >= 0 && (flags & STANDARD_FLAG) != 0;
+  }
+
+  @Override
+  public long[] getDescendants(long ancestorConceptId) {
+    return getValues(ancestorKeys, ancestorOffsets, ancestorValues, ancestorConceptId);
+  }
+
+  @Override
+  public long[] getMappedConcepts(long conceptId) {
+    return getValues(mappedKeys, mappedOffsets, mappedValues, conceptId);
+  }
+
+  public int getConceptCount() {
+    return conceptIds.limit();
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.vocabulary;
+
+/**
+ * Read access to the parts of an OMOP vocabulary needed to resolve concept set expressions.
+ */
+public interface VocabularyIndex {
+
+  /**
+   * @return true if the concept is in the CONCEPT table.
+   */
+  boolean containsConcept(long conceptId);
+
+  /**
+   * @return true if the concept is in the CONCEPT table and its invalid_reason is null.
+   */
+  boolean isValidConcept(long conceptId);
+
+  /**
+   * @return true if the concept is in the CONCEPT table and its standard_concept is 'S'.
+   */
+  boolean isStandardConcept(long conceptId);
+
+  /**
+   * @return the descendant_concept_id of every CONCEPT_ANCESTOR row of the ancestor, which includes the
+   * ancestor itself.
+   */
+  long[] getDescendants(long ancestorConceptId);
+
+  /**
+   * @return the concept_id_1 of every valid 'Maps to' CONCEPT_RELATIONSHIP row whose concept_id_2 is the
+   * given concept, ie: the source concepts that map to it.
+   */
+  long[] getMappedConcepts(long conceptId);
+}
@@ -0,0 +1,228 @@
+/*
+ *
+ * Copyright 2017 Observational Health Data Sciences and Informatics
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ohdsi.circe.vocabulary;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory copy of CONCEPT, CONCEPT_ANCESTOR and the 'Maps to' rows of CONCEPT_RELATIONSHIP, loaded from
+ * a vocabulary export as downloaded from Athena.
+ */
+public final class VocabularySnapshot implements VocabularyIndex {
+
+  public static final String CONCEPT_FILE = "CONCEPT.csv";
+  public static final String CONCEPT_ANCESTOR_FILE = "CONCEPT_ANCESTOR.csv";
+  public static final String CONCEPT_RELATIONSHIP_FILE = "CONCEPT_RELATIONSHIP.csv";
+
+  final int[] conceptIds; // sorted
+  final BitSet invalidConcepts; // indexed by position in conceptIds
+  final BitSet standardConcepts; // indexed by position in conceptIds
+  final ConceptGraph descendants;
+  final ConceptGraph mappedConcepts; // concept_id_2 to concept_id_1
+
+  VocabularySnapshot(int[] conceptIds, BitSet invalidConcepts, BitSet standardConcepts, ConceptGraph descendants, ConceptGraph mappedConcepts) {
+    this.conceptIds = conceptIds;
+    this.invalidConcepts = invalidConcepts;
+    this.standardConcepts = standardConcepts;
+    this.descendants = descendants;
+    this.mappedConcepts = mappedConcepts;
+  }
+
+  private int indexOf(long conceptId) {
+    if (conceptId < Integer.MIN_VALUE || conceptId > Integer.MAX_VALUE) {
+      return -1;
+    }
+    return Arrays.binarySearch(conceptIds, (int) conceptId);
+  }
+
+  @Override
+  public boolean containsConcept(long conceptId) {
+    return indexOf(conceptId) >= 0;
+  }
+
+  @Override
+  public boolean isValidConcept(long conceptId) {
+    int index = indexOf(conceptId);
+    return index >= 0 && !invalidConcepts.get(index);
+  }
+
+  @Override
+  public boolean isStandardConcept(long conceptId) {
+    int index = indexOf(conceptId);
+    return index >= 0 && standardConcepts.get(index);
+  }
+
+  @Override
+  public long[] getDescendants(long ancestorConceptId) {
+    return descendants.get(ancestorConceptId);
+  }
+
+  @Override
+  public long[] getMappedConcepts(long conceptId) {
+    return mappedConcepts.get(conceptId);
+  }
+
+  public int getConceptCount() {
+    return conceptIds.length;
+  }
+
+  /**
+   * Loads CONCEPT.csv, CONCEPT_ANCESTOR.csv and CONCEPT_RELATIONSHIP.csv from the directory. Athena writes
+   * tab delimited files with a header row; comma delimited files with quoted values are read as well.
+   */
+  public static VocabularySnapshot load(File directory) throws IOException {
+    Builder builder = new Builder();
+    readTable(new File(directory, CONCEPT_FILE), new String[]{"concept_id", "standard_concept", "invalid_reason"},
+            row -> builder.addConcept(Long.parseLong(row[0]), row[1], row[2]));
+    readTable(new File(directory, CONCEPT_ANCESTOR_FILE), new String[]{"ancestor_concept_id", "descendant_concept_id"},
+            row -> builder.addAncestor(Long.parseLong(row[0]), Long.parseLong(row[1])));
+    readTable(new File(directory, CONCEPT_RELATIONSHIP_FILE), new String[]{"concept_id_1", "concept_id_2", "relationship_id", "invalid_reason"},
+            row -> {
+              if ("Maps to".equals(row[2]) && isEmpty(row[3])) {
+                builder.addMapsTo(Long.parseLong(row[0]), Long.parseLong(row[1]));
+              }
+            });
+    return builder.build();
+  }
+
+  private static boolean isEmpty(String value) {
+    return value == null || value.isEmpty();
+  }
+
+  private static void readTable(File file, String[] columns, Consumer<String[]> handler) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String header = reader.readLine();
+      if (header == null) {
+        throw new IOException("Missing header row in " + file);
+      }
+      char delimiter = header.indexOf('\t') >= 0 ? '\t' : ',';
+      List<String> headerColumns = new ArrayList<>();
+      for (String column : splitLine(header, delimiter)) {
+        headerColumns.add(column.trim().toLowerCase());
+      }
+      int[] positions = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        positions[i] = headerColumns.indexOf(columns[i]);
+        if (positions[i] < 0) {
+          throw new IOException(String.format("Missing column %s in %s", columns[i], file));
+        }
+      }
+
+      String[] row = new String[columns.length];
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] values = splitLine(line, delimiter);
+        for (int i = 0; i < positions.length; i++) {
+          row[i] = positions[i] < values.length ? values[positions[i]] : null;
+        }
+        handler.accept(row);
+      }
+    }
+  }
+
+  private static String[] splitLine(String line, char delimiter) {
+    List<String> values = new ArrayList<>();
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (delimiter == ',' && c == '"') {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          value.append('"');
+          i++;
+        } else {
+          quoted = !quoted;
+        }
+      } else if (c == delimiter && !quoted) {
+        values.add(value.toString());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString());
+    return values.toArray(new String[0]);
+  }
+
+  /**
+   * Collects vocabulary rows into a snapshot. Duplicate rows are ignored.
+   */
+  public static final class Builder {
+
+    private long[] concepts = new long[1024]; // concept id and flags, packed so they sort together
+    private int conceptCount;
+    private final ConceptGraph.Builder descendants = new ConceptGraph.Builder();
+    private final ConceptGraph.Builder mappedConcepts = new ConceptGraph.Builder();
+
+    public Builder addConcept(long conceptId, String standardConcept, String invalidReason) {
+      if (conceptCount == concepts.length) {
+        concepts = Arrays.copyOf(concepts, concepts.length * 2);
+      }
+      concepts[conceptCount++] = ((long) ConceptGraph.toConceptId(conceptId) << 2)
+              | ("S".equals(standardConcept) ? 0 : 2) | (isEmpty(invalidReason) ? 0 : 1);
+      return this;
+    }
+
+    public Builder addAncestor(long ancestorConceptId, long descendantConceptId) {
+      descendants.add(ancestorConceptId, descendantConceptId);
+      return this;
+    }
+
+    /**
+     * Adds a valid 'Maps to' relationship from conceptId1 to conceptId2.
+     */
+    public Builder addMapsTo(long conceptId1, long conceptId2) {
+      mappedConcepts.add(conceptId2, conceptId1);
+      return this;
+    }
+
+    public VocabularySnapshot build() {
+      long[] sorted = Arrays.copyOf(concepts, conceptCount);
+      Arrays.sort(sorted);
+      int[] conceptIds = new int[sorted.length];
+      BitSet invalid = new BitSet();
+      BitSet standard = new BitSet();
+      int count = 0;
+      for (long packed : sorted) {
+        int conceptId = (int) (packed >> 2);
+        if (count > 0 && conceptIds[count - 1] == conceptId) {
+          continue; // keep the first (standard, valid) row of a duplicated concept
+        }
+        if ((packed & 1) == 1) {
+          invalid.set(count);
+        }
+        if ((packed & 2) == 0) {
+          standard.set(count);
+        }
+        conceptIds[count++] = conceptId;
+      }
+      return new VocabularySnapshot(Arrays.copyOf(conceptIds, count), invalid, standard, descendants.build(), mappedConcepts.build());
+    }
+  }
+}
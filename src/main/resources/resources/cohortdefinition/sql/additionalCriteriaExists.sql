@@ -0,0 +1,11 @@
+-- Begin Correlated Criteria
+select @indexId as index_id, P.person_id, P.event_id
+from @eventTable P
+WHERE @existsOperator (
+  SELECT 1
+  FROM (
+  @criteriaQuery
+  ) A
+  WHERE A.person_id = P.person_id @windowCriteria
+)
+-- End Correlated Criteria
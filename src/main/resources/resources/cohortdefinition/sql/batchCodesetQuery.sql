@@ -0,0 +1,9 @@
+CREATE TABLE #batch_codesets (
+  codeset_id int NOT NULL,
+  concept_id bigint NOT NULL
+)
+;
+
+@codesetInserts
+
+UPDATE STATISTICS #batch_codesets;
@@ -4,7 +4,7 @@ select C.person_id, C.condition_era_id as event_id, C.start_date, C.end_date,
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.CONDITION_ERA ce
+  FROM @domainTable ce
 @codesetClause
 ) C
 @joinClause
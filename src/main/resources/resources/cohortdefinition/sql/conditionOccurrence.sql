@@ -4,7 +4,7 @@ SELECT C.person_id, C.condition_occurrence_id as event_id, C.start_date, C.end_d
 FROM 
 (
   SELECT @selectClause @ordinalExpression
-  FROM @cdm_database_schema.CONDITION_OCCURRENCE co
+  FROM @domainTable co
   @codesetClause
 ) C
 @joinClause
@@ -0,0 +1,5 @@
+SELECT Q.person_id, Q.event_id, Q.start_date, Q.end_date, Q.visit_occurrence_id, Q.sort_date
+INTO @criteriaTable
+FROM (
+@criteriaQuery
+) Q@criteriaTableFilter;
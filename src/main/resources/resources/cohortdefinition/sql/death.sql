@@ -4,7 +4,7 @@ select C.person_id, C.person_id as event_id, C.start_date, c.end_date,
 from 
 (
   select @selectClause
-  FROM @cdm_database_schema.DEATH d
+  FROM @domainTable d
 @codesetClause
 ) C
 @joinClause
@@ -0,0 +1,4 @@
+SELECT D.*
+INTO @domainTable
+FROM @cdm_database_schema.@cdmTable D
+WHERE @codesetFilter;
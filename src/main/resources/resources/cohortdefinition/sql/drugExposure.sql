@@ -4,7 +4,7 @@ select C.person_id, C.drug_exposure_id as event_id, C.start_date, C.end_date,
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.DRUG_EXPOSURE de
+  FROM @domainTable de
 @codesetClause
 ) C
 @joinClause
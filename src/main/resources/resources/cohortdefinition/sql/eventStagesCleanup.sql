@@ -0,0 +1,15 @@
+@strategy_ends_cleanup
+@primaryEventsCleanup
+@criteriaTempTablesCleanup
+
+TRUNCATE TABLE #cohort_rows;
+DROP TABLE #cohort_rows;
+@finalCohortCleanup
+TRUNCATE TABLE #inclusion_events;
+DROP TABLE #inclusion_events;
+
+TRUNCATE TABLE #qualified_events;
+DROP TABLE #qualified_events;
+
+TRUNCATE TABLE #included_events;
+DROP TABLE #included_events;
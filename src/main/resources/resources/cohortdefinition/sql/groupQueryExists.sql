@@ -0,0 +1,12 @@
+-- Begin Criteria Group
+select @indexId as index_id, E.person_id, E.event_id
+FROM @eventTable E
+WHERE @existsOperator (
+  SELECT 1
+  FROM
+  (
+    @criteriaQueries
+  ) CQ
+  WHERE CQ.person_id = E.person_id and CQ.event_id = E.event_id
+)
+-- End Criteria Group
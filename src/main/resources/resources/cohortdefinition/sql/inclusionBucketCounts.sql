@@ -0,0 +1,20 @@
+-- add the matching group counts of this bucket
+insert into #inclusion_mask_counts (mode_id, inclusion_rule_mask, person_count)
+select @inclusionImpactMode as mode_id, inclusion_rule_mask, count_big(*) as person_count
+from
+(
+  select Q.person_id, Q.event_id, CAST(SUM(coalesce(POWER(cast(2 as bigint), I.inclusion_rule_id), 0)) AS bigint) as inclusion_rule_mask
+  from @eventTable Q
+  LEFT JOIN #inclusion_events I on q.person_id = i.person_id and q.event_id = i.event_id
+  GROUP BY Q.person_id, Q.event_id
+) MG -- matching groups
+group by inclusion_rule_mask
+;
+
+-- add the rule counts of this bucket
+insert into #inclusion_rule_counts (mode_id, inclusion_rule_id, person_count)
+select @inclusionImpactMode as mode_id, i.inclusion_rule_id, count_big(i.event_id) as person_count
+from @eventTable Q
+JOIN #inclusion_events i on Q.person_id = I.person_id and Q.event_id = i.event_id
+group by i.inclusion_rule_id
+;
@@ -0,0 +1,6 @@
+select index_id as inclusion_rule_id, person_id, event_id
+INTO #inclusion_events
+FROM 
+(
+@inclusionRuleQueries
+) I;
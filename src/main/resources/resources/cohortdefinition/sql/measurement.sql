@@ -4,7 +4,7 @@ select C.person_id, C.measurement_id as event_id, C.start_date, C.end_date,
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.MEASUREMENT m
+  FROM @domainTable m
 @codesetClause
 ) C
 @joinClause
@@ -4,7 +4,7 @@ select C.person_id, C.observation_id as event_id, C.start_date, C.END_DATE,
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.OBSERVATION o
+  FROM @domainTable o
 @codesetClause
 ) C
 @joinClause
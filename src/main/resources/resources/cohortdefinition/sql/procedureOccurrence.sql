@@ -4,7 +4,7 @@ select C.person_id, C.procedure_occurrence_id as event_id, C.start_date, C.end_d
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.PROCEDURE_OCCURRENCE po
+  FROM @domainTable po
 @codesetClause
 ) C
 @joinClause
@@ -0,0 +1,5 @@
+SELECT Q.*
+INTO @criteriaTable
+FROM (
+@criteriaQuery
+) Q;
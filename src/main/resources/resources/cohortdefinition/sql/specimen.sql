@@ -4,7 +4,7 @@ select C.person_id, C.specimen_id as event_id, C.specimen_date as start_date, DA
 from 
 (
   select s.* @ordinalExpression
-  FROM @cdm_database_schema.SPECIMEN s
+  FROM @domainTable s
 @codesetClause
 ) C
 @joinClause
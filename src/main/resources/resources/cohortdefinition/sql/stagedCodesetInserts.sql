@@ -0,0 +1,62 @@
+CREATE TABLE #concept_set_seeds (
+  codeset_id int NOT NULL,
+  concept_id bigint NOT NULL,
+  is_excluded int NOT NULL,
+  include_descendants int NOT NULL,
+  include_mapped int NOT NULL
+)
+;
+
+@seedInserts
+
+-- the seed concepts and their descendants, for every concept set in one pass over CONCEPT_ANCESTOR
+SELECT codeset_id, is_excluded, include_mapped, concept_id
+INTO #concept_set_expanded
+FROM
+(
+  SELECT s.codeset_id, s.is_excluded, s.include_mapped, c.concept_id
+  FROM #concept_set_seeds s
+  JOIN @vocabulary_database_schema.CONCEPT c on c.concept_id = s.concept_id
+  UNION
+  SELECT s.codeset_id, s.is_excluded, s.include_mapped, c.concept_id
+  FROM #concept_set_seeds s
+  JOIN @vocabulary_database_schema.CONCEPT_ANCESTOR ca on ca.ancestor_concept_id = s.concept_id
+  JOIN @vocabulary_database_schema.CONCEPT c on c.concept_id = ca.descendant_concept_id
+  WHERE s.include_descendants = 1
+    and c.invalid_reason is null
+) E
+;
+
+-- add the concepts that map to the expanded concepts of items that include mapped concepts
+SELECT codeset_id, is_excluded, concept_id
+INTO #concept_set_resolved
+FROM
+(
+  SELECT e.codeset_id, e.is_excluded, e.concept_id
+  FROM #concept_set_expanded e
+  UNION
+  SELECT e.codeset_id, e.is_excluded, cr.concept_id_1 as concept_id
+  FROM #concept_set_expanded e
+  JOIN @vocabulary_database_schema.concept_relationship cr on e.concept_id = cr.concept_id_2 and cr.relationship_id = 'Maps to' and cr.invalid_reason IS NULL
+  WHERE e.include_mapped = 1
+) R
+;
+
+INSERT INTO @codesetTable (codeset_id, concept_id)
+SELECT I.codeset_id, I.concept_id
+FROM #concept_set_resolved I
+LEFT JOIN #concept_set_resolved E on I.codeset_id = E.codeset_id and I.concept_id = E.concept_id and E.is_excluded = 1
+WHERE I.is_excluded = 0
+  and E.concept_id is null
+;
+
+@codesetCopies
+
+TRUNCATE TABLE #concept_set_seeds;
+DROP TABLE #concept_set_seeds;
+
+TRUNCATE TABLE #concept_set_expanded;
+DROP TABLE #concept_set_expanded;
+
+TRUNCATE TABLE #concept_set_resolved;
+DROP TABLE #concept_set_resolved;
@@ -4,7 +4,7 @@ select C.person_id, C.visit_occurrence_id as event_id, C.start_date, C.end_date,
 from 
 (
   select @selectClause @ordinalExpression
-  FROM @cdm_database_schema.VISIT_OCCURRENCE vo
+  FROM @domainTable vo
 @codesetClause
 ) C
 @joinClause
@@ -0,0 +1,177 @@
+package org.ohdsi.circe;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The shape of a Postgres plan, read from EXPLAIN (FORMAT JSON): its tree of node types with the relations
+ * and indexes they scan, and its total cost. Row estimates, filters and aliases are left out, so the shape
+ * only changes when the planner picks another strategy. A shape is kept as indented lines, one per node, so
+ * it reads well and diffs well in a golden file.
+ */
+public class PlanShape {
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+  private static final String INDENT = "  ";
+  private static final Pattern RELATION = Pattern.compile(" on (\\S+)$");
+  private static final String[] INDEX_SCANS = {"Index Scan", "Index Only Scan", "Bitmap Heap Scan"};
+
+  private static class Node {
+
+    final String label;
+    final List<Node> children = new ArrayList<>();
+
+    Node(String label) {
+      this.label = label;
+    }
+
+    String relation() {
+      Matcher matcher = RELATION.matcher(label);
+      return matcher.find() ? matcher.group(1) : null;
+    }
+
+    boolean isSeqScan() {
+      return label.startsWith("Seq Scan");
+    }
+
+    boolean isIndexScan() {
+      for (String indexScan : INDEX_SCANS) {
+        if (label.startsWith(indexScan)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final Node root;
+  private final double totalCost;
+
+  private PlanShape(Node root, double totalCost) {
+    this.root = root;
+    this.totalCost = totalCost;
+  }
+
+  public static PlanShape fromExplain(String explainJson) {
+    try {
+      JsonNode plan = JSON_MAPPER.readTree(explainJson).get(0).get("Plan");
+      return new PlanShape(node(plan), plan.get("Total Cost").asDouble());
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading plan", e);
+    }
+  }
+
+  public static PlanShape fromLines(List<String> lines, double totalCost) {
+    Node root = new Node(lines.get(0));
+    List<Node> path = new ArrayList<>(Collections.singletonList(root));
+    for (String line : lines.subList(1, lines.size())) {
+      int depth = 0;
+      while (line.startsWith(INDENT, depth * INDENT.length())) {
+        depth++;
+      }
+      Node node = new Node(line.substring(depth * INDENT.length()));
+      path.get(depth - 1).children.add(node);
+      path.subList(depth, path.size()).clear();
+      path.add(node);
+    }
+    return new PlanShape(root, totalCost);
+  }
+
+  private static Node node(JsonNode plan) {
+    StringBuilder label = new StringBuilder(plan.get("Node Type").asText());
+    if (plan.has("Join Type") && !"Inner".equals(plan.get("Join Type").asText())) {
+      label.append(' ').append(plan.get("Join Type").asText());
+    }
+    if (plan.has("Index Name")) {
+      label.append(" using ").append(plan.get("Index Name").asText());
+    }
+    if (plan.has("Relation Name")) {
+      label.append(" on ").append(plan.get("Relation Name").asText());
+    }
+    Node node = new Node(label.toString());
+    if (plan.has("Plans")) {
+      for (JsonNode child : plan.get("Plans")) {
+        node.children.add(node(child));
+      }
+    }
+    return node;
+  }
+
+  public double getTotalCost() {
+    return totalCost;
+  }
+
+  public List<String> getLines() {
+    List<String> lines = new ArrayList<>();
+    addLines(root, "", lines);
+    return lines;
+  }
+
+  private static void addLines(Node node, String indent, List<String> lines) {
+    lines.add(indent + node.label);
+    for (Node child : node.children) {
+      addLines(child, indent + INDENT, lines);
+    }
+  }
+
+  /**
+   * @return the relations read through an index: index scans, index only scans and bitmap heap scans.
+   */
+  public Set<String> getIndexedRelations() {
+    Set<String> relations = new TreeSet<>();
+    collect(root, relations, true);
+    return relations;
+  }
+
+  /**
+   * @return the relations read by a sequential scan.
+   */
+  public Set<String> getSeqScannedRelations() {
+    Set<String> relations = new TreeSet<>();
+    collect(root, relations, false);
+    return relations;
+  }
+
+  private static void collect(Node node, Set<String> relations, boolean indexed) {
+    String relation = node.relation();
+    if (relation != null && (indexed ? node.isIndexScan() : node.isSeqScan())) {
+      relations.add(relation);
+    }
+    for (Node child : node.children) {
+      collect(child, relations, indexed);
+    }
+  }
+
+  /**
+   * @return for each relation, the number of times it is read by a sequential scan on the inner side of a
+   * nested loop, ie: once for each row of the outer side.
+   */
+  public Map<String, Integer> getNestedLoopSeqScans() {
+    Map<String, Integer> scans = new TreeMap<>();
+    collectNestedLoopSeqScans(root, scans);
+    return scans;
+  }
+
+  private static void collectNestedLoopSeqScans(Node node, Map<String, Integer> scans) {
+    if (node.label.startsWith("Nested Loop") && node.children.size() > 1) {
+      Set<String> inner = new TreeSet<>();
+      collect(node.children.get(1), inner, false);
+      for (String relation : inner) {
+        scans.merge(relation, 1, Integer::sum);
+      }
+    }
+    for (Node child : node.children) {
+      collectNestedLoopSeqScans(child, scans);
+    }
+  }
+}
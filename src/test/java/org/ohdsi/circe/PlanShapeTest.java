@@ -0,0 +1,67 @@
+package org.ohdsi.circe;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class PlanShapeTest {
+
+  private static final String EXPLAIN = "[{\"Plan\": {\"Node Type\": \"Nested Loop\", \"Join Type\": \"Semi\", \"Startup Cost\": 0.29, \"Total Cost\": 1520.75, \"Plan Rows\": 12,"
+          + " \"Plans\": ["
+          + "  {\"Node Type\": \"Seq Scan\", \"Parent Relationship\": \"Outer\", \"Relation Name\": \"codesets\", \"Alias\": \"cs\", \"Total Cost\": 22.7, \"Filter\": \"(codeset_id = 1)\"},"
+          + "  {\"Node Type\": \"Hash Join\", \"Join Type\": \"Inner\", \"Parent Relationship\": \"Inner\", \"Total Cost\": 1400.0, \"Plans\": ["
+          + "    {\"Node Type\": \"Seq Scan\", \"Relation Name\": \"condition_occurrence\", \"Alias\": \"co\", \"Total Cost\": 900.0},"
+          + "    {\"Node Type\": \"Hash\", \"Total Cost\": 40.0, \"Plans\": ["
+          + "      {\"Node Type\": \"Index Scan\", \"Index Name\": \"idx_person_person_id\", \"Relation Name\": \"person\", \"Alias\": \"p\", \"Total Cost\": 38.0}"
+          + "    ]}"
+          + "  ]}"
+          + "]}}]";
+
+  @Test
+  public void shapeLeavesOutEstimatesFiltersAndAliases() {
+    PlanShape shape = PlanShape.fromExplain(EXPLAIN);
+
+    assertThat(shape.getTotalCost(), equalTo(1520.75));
+    assertThat(shape.getLines(), contains(
+            "Nested Loop Semi",
+            "  Seq Scan on codesets",
+            "  Hash Join",
+            "    Seq Scan on condition_occurrence",
+            "    Hash",
+            "      Index Scan using idx_person_person_id on person"));
+  }
+
+  @Test
+  public void linesGiveBackTheSameShape() {
+    PlanShape shape = PlanShape.fromExplain(EXPLAIN);
+    PlanShape copy = PlanShape.fromLines(shape.getLines(), shape.getTotalCost());
+
+    assertThat(copy.getLines(), equalTo(shape.getLines()));
+    assertThat(copy.getNestedLoopSeqScans(), equalTo(shape.getNestedLoopSeqScans()));
+  }
+
+  @Test
+  public void scannedRelations() {
+    PlanShape shape = PlanShape.fromExplain(EXPLAIN);
+
+    assertThat(shape.getIndexedRelations(), contains("person"));
+    assertThat(shape.getSeqScannedRelations(), contains("codesets", "condition_occurrence"));
+  }
+
+  @Test
+  public void nestedLoopSeqScansAreOnTheInnerSide() {
+    assertThat(PlanShape.fromExplain(EXPLAIN).getNestedLoopSeqScans(), equalTo(Collections.singletonMap("condition_occurrence", 1)));
+
+    PlanShape hashJoin = PlanShape.fromLines(Arrays.asList(
+            "Hash Join",
+            "  Seq Scan on condition_occurrence",
+            "  Hash",
+            "    Seq Scan on codesets"), 10.0);
+    assertThat(hashJoin.getNestedLoopSeqScans().entrySet(), empty());
+  }
+}
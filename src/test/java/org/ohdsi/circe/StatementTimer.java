@@ -0,0 +1,80 @@
+package org.ohdsi.circe;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.ohdsi.sql.SqlSplit;
+
+/**
+ * Runs translated cohort SQL one statement at a time on a single connection, so the temp tables of the
+ * script stay visible, and records the wall time of each statement.
+ */
+public class StatementTimer {
+
+  private static final int LABEL_LENGTH = 100;
+
+  public static class Timing {
+
+    public final int index;
+    public final String statement;
+    public final long nanos;
+    /** rows changed by the statement, or -1 if it does not change rows, ie: DDL */
+    public final int updateCount;
+
+    Timing(int index, String statement, long nanos, int updateCount) {
+      this.index = index;
+      this.statement = statement;
+      this.nanos = nanos;
+      this.updateCount = updateCount;
+    }
+
+    public double getMillis() {
+      return nanos / 1_000_000.0;
+    }
+
+    public String getLabel() {
+      return label(statement);
+    }
+  }
+
+  /**
+   * @return the first line of the statement that is not a comment, with its white space collapsed.
+   */
+  public static String label(String statement) {
+    for (String line : statement.split("\n")) {
+      String trimmed = line.trim();
+      if (!trimmed.isEmpty() && !trimmed.startsWith("--")) {
+        String label = trimmed.replaceAll("\\s+", " ");
+        return label.length() > LABEL_LENGTH ? label.substring(0, LABEL_LENGTH) : label;
+      }
+    }
+    return "";
+  }
+
+  public static List<Timing> run(Connection connection, String sql) {
+    List<Timing> timings = new ArrayList<>();
+    String[] statements = SqlSplit.splitSql(sql);
+    int current = 0;
+    try (Statement statement = connection.createStatement()) {
+      for (; current < statements.length; current++) {
+        long start = System.nanoTime();
+        statement.execute(statements[current]);
+        long nanos = System.nanoTime() - start;
+        timings.add(new Timing(current, statements[current], nanos, statement.getUpdateCount()));
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException("Error running statement " + current + " of the cohort SQL", e);
+    }
+    return timings;
+  }
+
+  public static long totalNanos(List<Timing> timings) {
+    long total = 0;
+    for (Timing timing : timings) {
+      total += timing.nanos;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,363 @@
+package org.ohdsi.circe;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Fills an empty CDM schema (ie: one made by prepareSchema from the v5.3 DDL) with random but plausible
+ * patient data and a small vocabulary, to time the generated cohort SQL against a realistic volume. Rows are
+ * streamed to Postgres with COPY in bounded chunks, so millions of persons only cost time, not memory. The
+ * same seed and options always give the same data.
+ *
+ * The vocabulary is laid out in blocks of 1000 ids, as the concept sets of CohortExpressionGenerator are:
+ * block k holds the standard concepts 1000 * k + 1 and up, each one a descendant of the concept with half its
+ * offset, and a few non standard source concepts from offset 501 that map to them. Records draw their
+ * concepts from the low offsets more often than from the high ones, so generated concept sets find data.
+ */
+public class SyntheticCdmGenerator {
+
+  public static class Options {
+
+    public int personCount = 1000;
+    /** mean number of visits per person, each visit carries a few records of the clinical tables */
+    public int visitsPerPerson = 5;
+    public int conceptBlocks = 10;
+    /** standard concepts in each block, at most 500 */
+    public int conceptsPerBlock = 100;
+    public LocalDate firstDate = LocalDate.of(2000, 1, 1);
+    public int years = 20;
+    /** creates the person_id and concept indexes of the CDM DDL after the load, then analyzes the tables */
+    public boolean createIndexes = true;
+  }
+
+  private static final String[] DOMAINS = {"Condition", "Drug", "Procedure", "Measurement", "Observation", "Device", "Visit"};
+  private static final int SOURCE_CONCEPT_OFFSET = 500;
+  private static final int MALE = 8507;
+  private static final int FEMALE = 8532;
+  private static final int EHR_TYPE = 32817;
+  private static final int MG_UNIT = 8576;
+  // rows buffered for each table before they are sent with COPY
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private static final String[][] INDEXES = {
+    {"person", "person_id"},
+    {"observation_period", "person_id"},
+    {"visit_occurrence", "person_id"}, {"visit_occurrence", "visit_concept_id"},
+    {"visit_detail", "person_id"}, {"visit_detail", "visit_detail_concept_id"},
+    {"condition_occurrence", "person_id"}, {"condition_occurrence", "condition_concept_id"},
+    {"drug_exposure", "person_id"}, {"drug_exposure", "drug_concept_id"},
+    {"procedure_occurrence", "person_id"}, {"procedure_occurrence", "procedure_concept_id"},
+    {"device_exposure", "person_id"}, {"device_exposure", "device_concept_id"},
+    {"measurement", "person_id"}, {"measurement", "measurement_concept_id"},
+    {"observation", "person_id"}, {"observation", "observation_concept_id"},
+    {"specimen", "person_id"}, {"specimen", "specimen_concept_id"},
+    {"death", "person_id"},
+    {"payer_plan_period", "person_id"},
+    {"condition_era", "person_id"}, {"condition_era", "condition_concept_id"},
+    {"drug_era", "person_id"}, {"drug_era", "drug_concept_id"},
+    {"dose_era", "person_id"}, {"dose_era", "drug_concept_id"},
+    {"concept", "concept_id"},
+    {"concept_ancestor", "ancestor_concept_id"}, {"concept_ancestor", "descendant_concept_id"},
+    {"concept_relationship", "concept_id_1"}, {"concept_relationship", "concept_id_2"}
+  };
+
+  private final Random random;
+
+  public SyntheticCdmGenerator(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Loads the vocabulary and the patient data into the schema.
+   *
+   * @return the number of rows written to each table, in load order.
+   */
+  public Map<String, Long> generate(Connection connection, String schema, Options options) {
+    if (options.personCount < 1 || options.conceptBlocks < 1 || options.years < 2) {
+      throw new RuntimeException("Synthetic data needs at least one person, one concept block and two years.");
+    }
+    if (options.conceptsPerBlock < 1 || options.conceptsPerBlock > SOURCE_CONCEPT_OFFSET) {
+      throw new RuntimeException(String.format("Invalid conceptsPerBlock received: %d.", options.conceptsPerBlock));
+    }
+    try {
+      CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+      Map<String, Long> rowCounts = new LinkedHashMap<>();
+      new Load(copyManager, schema, options, rowCounts).run();
+      if (options.createIndexes) {
+        createIndexes(connection, schema);
+      }
+      return rowCounts;
+    } catch (SQLException | IOException e) {
+      throw new RuntimeException("Error loading synthetic data into " + schema, e);
+    }
+  }
+
+  private static void createIndexes(Connection connection, String schema) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      for (String[] index : INDEXES) {
+        statement.execute(String.format("CREATE INDEX idx_%s_%s ON %s.%s (%s)", index[0], index[1], schema, index[0], index[1]));
+      }
+      statement.execute("ANALYZE");
+    }
+  }
+
+  /**
+   * One table of the load: rows are written as COPY text and sent each time the buffer is full.
+   */
+  private static class Table {
+
+    private final CopyManager copyManager;
+    private final String copySql;
+    private final StringBuilder buffer = new StringBuilder();
+    private long rowCount;
+
+    Table(CopyManager copyManager, String schema, String name, String columns) {
+      this.copyManager = copyManager;
+      this.copySql = String.format("COPY %s.%s (%s) FROM STDIN", schema, name, columns);
+    }
+
+    void row(Object... values) throws SQLException, IOException {
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          buffer.append('\t');
+        }
+        buffer.append(values[i] == null ? "\\N" : values[i]);
+      }
+      buffer.append('\n');
+      rowCount++;
+      if (buffer.length() >= CHUNK_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() throws SQLException, IOException {
+      if (buffer.length() > 0) {
+        copyManager.copyIn(copySql, new StringReader(buffer.toString()));
+        buffer.setLength(0);
+      }
+    }
+  }
+
+  /**
+   * An era being built for one person and concept: the first start and last end of its records.
+   */
+  private static class Era {
+
+    final int conceptId;
+    long start;
+    long end;
+    int count;
+
+    Era(int conceptId, long start, long end) {
+      this.conceptId = conceptId;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private class Load {
+
+    private final Options options;
+    private final Map<String, Long> rowCounts;
+    private final long firstDay;
+    private final long lastDay;
+
+    private final Table concept;
+    private final Table conceptAncestor;
+    private final Table conceptRelationship;
+    private final Table person;
+    private final Table observationPeriod;
+    private final Table visitOccurrence;
+    private final Table visitDetail;
+    private final Table conditionOccurrence;
+    private final Table drugExposure;
+    private final Table procedureOccurrence;
+    private final Table deviceExposure;
+    private final Table measurement;
+    private final Table observation;
+    private final Table specimen;
+    private final Table death;
+    private final Table payerPlanPeriod;
+    private final Table conditionEra;
+    private final Table drugEra;
+    private final Table doseEra;
+    private final Map<String, Table> tables = new LinkedHashMap<>();
+
+    private final int[] ids = new int[16];
+
+    Load(CopyManager copyManager, String schema, Options options, Map<String, Long> rowCounts) {
+      this.options = options;
+      this.rowCounts = rowCounts;
+      this.firstDay = options.firstDate.toEpochDay();
+      this.lastDay = options.firstDate.plusYears(options.years).toEpochDay();
+
+      concept = table(copyManager, schema, "concept", "concept_id, concept_name, domain_id, vocabulary_id, concept_class_id, standard_concept, concept_code, valid_start_date, valid_end_date, invalid_reason");
+      conceptAncestor = table(copyManager, schema, "concept_ancestor", "ancestor_concept_id, descendant_concept_id, min_levels_of_separation, max_levels_of_separation");
+      conceptRelationship = table(copyManager, schema, "concept_relationship", "concept_id_1, concept_id_2, relationship_id, valid_start_date, valid_end_date, invalid_reason");
+      person = table(copyManager, schema, "person", "person_id, gender_concept_id, year_of_birth, month_of_birth, day_of_birth, birth_datetime, race_concept_id, ethnicity_concept_id");
+      observationPeriod = table(copyManager, schema, "observation_period", "observation_period_id, person_id, observation_period_start_date, observation_period_end_date, period_type_concept_id");
+      visitOccurrence = table(copyManager, schema, "visit_occurrence", "visit_occurrence_id, person_id, visit_concept_id, visit_start_date, visit_start_datetime, visit_end_date, visit_end_datetime, visit_type_concept_id");
+      visitDetail = table(copyManager, schema, "visit_detail", "visit_detail_id, person_id, visit_detail_concept_id, visit_detail_start_date, visit_detail_end_date, visit_detail_type_concept_id, visit_occurrence_id");
+      conditionOccurrence = table(copyManager, schema, "condition_occurrence", "condition_occurrence_id, person_id, condition_concept_id, condition_start_date, condition_start_datetime, condition_end_date, condition_type_concept_id, visit_occurrence_id, condition_source_concept_id");
+      drugExposure = table(copyManager, schema, "drug_exposure", "drug_exposure_id, person_id, drug_concept_id, drug_exposure_start_date, drug_exposure_start_datetime, drug_exposure_end_date, drug_type_concept_id, refills, quantity, days_supply, visit_occurrence_id, drug_source_concept_id");
+      procedureOccurrence = table(copyManager, schema, "procedure_occurrence", "procedure_occurrence_id, person_id, procedure_concept_id, procedure_date, procedure_datetime, procedure_type_concept_id, quantity, visit_occurrence_id, procedure_source_concept_id");
+      deviceExposure = table(copyManager, schema, "device_exposure", "device_exposure_id, person_id, device_concept_id, device_exposure_start_date, device_exposure_start_datetime, device_exposure_end_date, device_type_concept_id, visit_occurrence_id, device_source_concept_id");
+      measurement = table(copyManager, schema, "measurement", "measurement_id, person_id, measurement_concept_id, measurement_date, measurement_datetime, measurement_type_concept_id, value_as_number, unit_concept_id, range_low, range_high, visit_occurrence_id, measurement_source_concept_id");
+      observation = table(copyManager, schema, "observation", "observation_id, person_id, observation_concept_id, observation_date, observation_datetime, observation_type_concept_id, value_as_number, visit_occurrence_id, observation_source_concept_id");
+      specimen = table(copyManager, schema, "specimen", "specimen_id, person_id, specimen_concept_id, specimen_type_concept_id, specimen_date");
+      death = table(copyManager, schema, "death", "person_id, death_date, death_type_concept_id, cause_concept_id");
+      payerPlanPeriod = table(copyManager, schema, "payer_plan_period", "payer_plan_period_id, person_id, payer_plan_period_start_date, payer_plan_period_end_date");
+      conditionEra = table(copyManager, schema, "condition_era", "condition_era_id, person_id, condition_concept_id, condition_era_start_date, condition_era_end_date, condition_occurrence_count");
+      drugEra = table(copyManager, schema, "drug_era", "drug_era_id, person_id, drug_concept_id, drug_era_start_date, drug_era_end_date, drug_exposure_count, gap_days");
+      doseEra = table(copyManager, schema, "dose_era", "dose_era_id, person_id, drug_concept_id, unit_concept_id, dose_value, dose_era_start_date, dose_era_end_date");
+    }
+
+    private Table table(CopyManager copyManager, String schema, String name, String columns) {
+      Table table = new Table(copyManager, schema, name, columns);
+      tables.put(name, table);
+      return table;
+    }
+
+    void run() throws SQLException, IOException {
+      vocabulary();
+      for (int personId = 1; personId <= options.personCount; personId++) {
+        person(personId);
+      }
+      for (Map.Entry<String, Table> entry : tables.entrySet()) {
+        entry.getValue().flush();
+        rowCounts.put(entry.getKey(), entry.getValue().rowCount);
+      }
+    }
+
+    private void vocabulary() throws SQLException, IOException {
+      String validStart = date(LocalDate.of(1970, 1, 1).toEpochDay());
+      String validEnd = date(LocalDate.of(2099, 12, 31).toEpochDay());
+      for (int block = 0; block < options.conceptBlocks; block++) {
+        String domain = DOMAINS[block % DOMAINS.length];
+        for (int offset = 1; offset <= options.conceptsPerBlock; offset++) {
+          int conceptId = 1000 * block + offset;
+          concept.row(conceptId, "concept " + conceptId, domain, "SNOMED", "Clinical Finding", "S", "C" + conceptId, validStart, validEnd, null);
+          // each concept descends from the one with half its offset, up to the first concept of the block
+          conceptAncestor.row(conceptId, conceptId, 0, 0);
+          int levels = 0;
+          for (int ancestor = offset / 2; ancestor >= 1; ancestor /= 2) {
+            levels++;
+            conceptAncestor.row(1000 * block + ancestor, conceptId, levels, levels);
+          }
+          if (offset % 5 == 0) {
+            int sourceConceptId = conceptId + SOURCE_CONCEPT_OFFSET;
+            concept.row(sourceConceptId, "source concept " + sourceConceptId, domain, "ICD10CM", "Diagnosis", null, "S" + sourceConceptId, validStart, validEnd, null);
+            conceptRelationship.row(sourceConceptId, conceptId, "Maps to", validStart, validEnd, null);
+            conceptRelationship.row(conceptId, sourceConceptId, "Mapped from", validStart, validEnd, null);
+          }
+        }
+      }
+    }
+
+    private void person(int personId) throws SQLException, IOException {
+      LocalDate birth = LocalDate.ofEpochDay(firstDay - 365L * random.nextInt(80) + random.nextInt(365 * (options.years - 1)));
+      person.row(personId, random.nextBoolean() ? MALE : FEMALE, birth.getYear(), birth.getMonthValue(), birth.getDayOfMonth(), date(birth.toEpochDay()), 0, 0);
+
+      long start = Math.max(birth.toEpochDay(), firstDay + random.nextInt(365 * (options.years - 1)));
+      long end = Math.min(lastDay, start + 180 + random.nextInt(365 * options.years));
+      observationPeriod.row(personId, personId, date(start), date(end), EHR_TYPE);
+      payerPlanPeriod.row(personId, personId, date(start), date(end));
+      if (end < lastDay && random.nextInt(50) == 0) {
+        death.row(personId, date(end), EHR_TYPE, concept());
+      }
+
+      Map<Integer, Era> conditionEras = new LinkedHashMap<>();
+      Map<Integer, Era> drugEras = new LinkedHashMap<>();
+      int visits = random.nextInt(2 * options.visitsPerPerson + 1);
+      for (int visit = 0; visit < visits; visit++) {
+        long visitStart = start + (long) (random.nextDouble() * (end - start));
+        long visitEnd = Math.min(end, visitStart + (random.nextInt(5) == 0 ? 1 + random.nextInt(10) : 0));
+        int visitId = nextId(0);
+        visitOccurrence.row(visitId, personId, concept(), date(visitStart), date(visitStart), date(visitEnd), date(visitEnd), EHR_TYPE);
+        if (random.nextInt(3) == 0) {
+          visitDetail.row(nextId(1), personId, concept(), date(visitStart), date(visitEnd), EHR_TYPE, visitId);
+        }
+
+        for (int i = 1 + random.nextInt(3); i > 0; i--) {
+          int conceptId = concept();
+          long conditionEnd = visitStart + random.nextInt(30);
+          conditionOccurrence.row(nextId(2), personId, conceptId, date(visitStart), date(visitStart), date(conditionEnd), EHR_TYPE, visitId, sourceConcept(conceptId));
+          era(conditionEras, conceptId, visitStart, conditionEnd);
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+          int conceptId = concept();
+          int daysSupply = 7 * (1 + random.nextInt(12));
+          long drugEnd = visitStart + daysSupply;
+          drugExposure.row(nextId(3), personId, conceptId, date(visitStart), date(visitStart), date(drugEnd), EHR_TYPE, random.nextInt(4), daysSupply, daysSupply, visitId, sourceConcept(conceptId));
+          era(drugEras, conceptId, visitStart, drugEnd);
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+          int conceptId = concept();
+          procedureOccurrence.row(nextId(4), personId, conceptId, date(visitStart), date(visitStart), EHR_TYPE, 1, visitId, sourceConcept(conceptId));
+        }
+        if (random.nextInt(5) == 0) {
+          int conceptId = concept();
+          deviceExposure.row(nextId(5), personId, conceptId, date(visitStart), date(visitStart), date(visitEnd), EHR_TYPE, visitId, sourceConcept(conceptId));
+        }
+        for (int i = random.nextInt(4); i > 0; i--) {
+          int conceptId = concept();
+          measurement.row(nextId(6), personId, conceptId, date(visitStart), date(visitStart), EHR_TYPE, random.nextInt(200), MG_UNIT, 50, 150, visitId, sourceConcept(conceptId));
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+          int conceptId = concept();
+          observation.row(nextId(7), personId, conceptId, date(visitStart), date(visitStart), EHR_TYPE, random.nextInt(100), visitId, sourceConcept(conceptId));
+        }
+        if (random.nextInt(10) == 0) {
+          specimen.row(nextId(8), personId, concept(), EHR_TYPE, date(visitStart));
+        }
+      }
+
+      for (Era era : conditionEras.values()) {
+        conditionEra.row(nextId(9), personId, era.conceptId, date(era.start), date(era.end), era.count);
+      }
+      for (Era era : drugEras.values()) {
+        drugEra.row(nextId(10), personId, era.conceptId, date(era.start), date(era.end), era.count, 0);
+        doseEra.row(nextId(11), personId, era.conceptId, MG_UNIT, 5 * (1 + random.nextInt(20)), date(era.start), date(era.end));
+      }
+    }
+
+    private int nextId(int table) {
+      return ++ids[table];
+    }
+
+    // low offsets of a block are drawn more often than high ones, as common codes are in real data
+    private int concept() {
+      int block = random.nextInt(options.conceptBlocks);
+      int offset = 1 + Math.min(random.nextInt(options.conceptsPerBlock), random.nextInt(options.conceptsPerBlock));
+      return 1000 * block + offset;
+    }
+
+    private Integer sourceConcept(int conceptId) {
+      return conceptId % 5 == 0 ? conceptId + SOURCE_CONCEPT_OFFSET : 0;
+    }
+
+    private void era(Map<Integer, Era> eras, int conceptId, long start, long end) {
+      Era era = eras.get(conceptId);
+      if (era == null) {
+        era = new Era(conceptId, start, end);
+        eras.put(conceptId, era);
+      }
+      era.start = Math.min(era.start, start);
+      era.end = Math.max(era.end, end);
+      era.count++;
+    }
+  }
+
+  private static String date(long epochDay) {
+    return LocalDate.ofEpochDay(epochDay).toString();
+  }
+}
@@ -0,0 +1,80 @@
+package org.ohdsi.circe;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class SyntheticCdmGeneratorTest extends AbstractDatabaseTest {
+
+  private static final String CDM_DDL_PATH = "/ddl/cdm_v5.3.sql";
+  private static final long SEED = 20240601L;
+
+  private static Map<String, Long> rowCounts;
+
+  @BeforeClass
+  public static void beforeClass() throws SQLException {
+    jdbcTemplate = new JdbcTemplate(getDataSource());
+    rowCounts = load("synthetic_a");
+  }
+
+  private static Map<String, Long> load(String schema) throws SQLException {
+    prepareSchema(schema, CDM_DDL_PATH);
+    SyntheticCdmGenerator.Options options = new SyntheticCdmGenerator.Options();
+    options.personCount = 200;
+    try (Connection connection = getDataSource().getConnection()) {
+      return new SyntheticCdmGenerator(SEED).generate(connection, schema, options);
+    }
+  }
+
+  private static long count(String sql) {
+    return jdbcTemplate.queryForObject(sql, Long.class);
+  }
+
+  @Test
+  public void rowCountsMatchTheTables() {
+    assertThat(rowCounts.get("person"), equalTo(200L));
+    for (Map.Entry<String, Long> entry : rowCounts.entrySet()) {
+      assertThat(entry.getKey(), count("SELECT COUNT(*) FROM synthetic_a." + entry.getKey()), equalTo(entry.getValue()));
+    }
+    assertThat(rowCounts.get("condition_occurrence"), greaterThan(rowCounts.get("person")));
+  }
+
+  @Test
+  public void everyPersonHasOneObservationPeriod() {
+    assertThat(count("SELECT COUNT(DISTINCT person_id) FROM synthetic_a.observation_period"), equalTo(200L));
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.observation_period WHERE observation_period_end_date < observation_period_start_date"), equalTo(0L));
+  }
+
+  @Test
+  public void recordsAreWithinObservationPeriods() {
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.condition_occurrence co"
+            + " JOIN synthetic_a.observation_period op ON op.person_id = co.person_id"
+            + " WHERE co.condition_start_date NOT BETWEEN op.observation_period_start_date AND op.observation_period_end_date"), equalTo(0L));
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.drug_exposure de"
+            + " JOIN synthetic_a.visit_occurrence vo ON vo.visit_occurrence_id = de.visit_occurrence_id"
+            + " WHERE vo.person_id <> de.person_id OR vo.visit_start_date <> de.drug_exposure_start_date"), equalTo(0L));
+  }
+
+  @Test
+  public void recordConceptsAreInTheVocabulary() {
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.condition_occurrence co"
+            + " LEFT JOIN synthetic_a.concept c ON c.concept_id = co.condition_concept_id"
+            + " WHERE c.concept_id IS NULL"), equalTo(0L));
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.concept_ancestor WHERE ancestor_concept_id = 1 AND descendant_concept_id = 4"), equalTo(1L));
+    assertThat(count("SELECT COUNT(*) FROM synthetic_a.concept_relationship WHERE concept_id_1 = 505 AND concept_id_2 = 5 AND relationship_id = 'Maps to'"), equalTo(1L));
+  }
+
+  @Test
+  public void sameSeedGeneratesSameData() throws SQLException {
+    assertThat(load("synthetic_b"), equalTo(rowCounts));
+    final String checksum = "SELECT SUM(condition_concept_id::bigint * condition_occurrence_id + person_id) FROM %s.condition_occurrence";
+    assertThat(count(String.format(checksum, "synthetic_b")), equalTo(count(String.format(checksum, "synthetic_a"))));
+  }
+}
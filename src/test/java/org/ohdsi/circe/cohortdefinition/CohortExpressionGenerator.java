@@ -0,0 +1,222 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.ohdsi.circe.vocabulary.Concept;
+import org.ohdsi.circe.vocabulary.ConceptSetExpression;
+
+/**
+ * Builds random but valid cohort expressions of a chosen size, for load and scaling tests. Every criteria
+ * points at an existing concept set and every window, occurrence and group is complete, so the expressions
+ * go through the query builder, the checker and the print friendly render. The same seed and options
+ * always give the same expression.
+ */
+public class CohortExpressionGenerator {
+
+  public static class Options {
+
+    public int conceptSetCount = 5;
+    public int conceptsPerSet = 10;
+    public int primaryCriteriaCount = 1;
+    public int inclusionRuleCount = 3;
+    /** levels of criteria groups in each inclusion rule: 1 is a single group without sub groups */
+    public int groupDepth = 2;
+    public int correlatedCriteriaPerGroup = 3;
+    /** relative weight of each criteria type; types left out are never generated */
+    public Map<Class<? extends Criteria>, Integer> criteriaMix = defaultCriteriaMix();
+  }
+
+  private static final String[] GROUP_TYPES = {"ALL", "ANY", "AT_LEAST", "AT_MOST"};
+
+  private final Random random;
+
+  public CohortExpressionGenerator(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /**
+   * @return every domain criteria of the CDM, with equal weight.
+   */
+  public static Map<Class<? extends Criteria>, Integer> defaultCriteriaMix() {
+    Map<Class<? extends Criteria>, Integer> mix = new LinkedHashMap<>();
+    mix.put(ConditionEra.class, 1);
+    mix.put(ConditionOccurrence.class, 1);
+    mix.put(Death.class, 1);
+    mix.put(DeviceExposure.class, 1);
+    mix.put(DoseEra.class, 1);
+    mix.put(DrugEra.class, 1);
+    mix.put(DrugExposure.class, 1);
+    mix.put(Measurement.class, 1);
+    mix.put(Observation.class, 1);
+    mix.put(ObservationPeriod.class, 1);
+    mix.put(PayerPlanPeriod.class, 1);
+    mix.put(ProcedureOccurrence.class, 1);
+    mix.put(Specimen.class, 1);
+    mix.put(VisitDetail.class, 1);
+    mix.put(VisitOccurrence.class, 1);
+    return mix;
+  }
+
+  public CohortExpression generate(Options options) {
+    if (options.conceptSetCount < 1 || options.primaryCriteriaCount < 1 || options.groupDepth < 1) {
+      throw new RuntimeException("A cohort expression needs at least one concept set, primary criteria and group level.");
+    }
+    CohortExpression expression = new CohortExpression();
+    expression.title = "generated cohort";
+    expression.conceptSets = new ConceptSet[options.conceptSetCount];
+    for (int i = 0; i < options.conceptSetCount; i++) {
+      expression.conceptSets[i] = conceptSet(i, options.conceptsPerSet);
+    }
+
+    expression.primaryCriteria = new PrimaryCriteria();
+    expression.primaryCriteria.criteriaList = new Criteria[options.primaryCriteriaCount];
+    for (int i = 0; i < options.primaryCriteriaCount; i++) {
+      expression.primaryCriteria.criteriaList[i] = criteria(options);
+    }
+    expression.primaryCriteria.observationWindow = new ObservationFilter();
+    expression.primaryCriteria.observationWindow.priorDays = random.nextInt(4) * 90;
+    expression.primaryCriteria.primaryLimit.type = random.nextBoolean() ? "All" : "First";
+
+    List<InclusionRule> inclusionRules = new ArrayList<>();
+    for (int i = 0; i < options.inclusionRuleCount; i++) {
+      InclusionRule rule = new InclusionRule();
+      rule.name = "generated rule " + i;
+      rule.expression = group(options, options.groupDepth);
+      inclusionRules.add(rule);
+    }
+    expression.inclusionRules = inclusionRules;
+    expression.censoringCriteria = new Criteria[0];
+
+    if (random.nextBoolean()) {
+      DateOffsetStrategy endStrategy = new DateOffsetStrategy();
+      endStrategy.dateField = random.nextBoolean() ? DateOffsetStrategy.DateField.StartDate : DateOffsetStrategy.DateField.EndDate;
+      endStrategy.offset = random.nextInt(365);
+      expression.endStrategy = endStrategy;
+    }
+    return expression;
+  }
+
+  private ConceptSet conceptSet(int id, int conceptsPerSet) {
+    ConceptSet conceptSet = new ConceptSet();
+    conceptSet.id = id;
+    conceptSet.name = "generated concept set " + id;
+    conceptSet.expression = new ConceptSetExpression();
+    conceptSet.expression.items = new ConceptSetExpression.ConceptSetItem[conceptsPerSet];
+    long conceptId = 1000L * id;
+    for (int i = 0; i < conceptsPerSet; i++) {
+      // mostly consecutive ids, with some gaps, as concepts of one vocabulary tend to be
+      conceptId += random.nextInt(4) == 0 ? 2 + random.nextInt(20) : 1;
+      Concept concept = new Concept();
+      concept.conceptId = conceptId;
+      concept.conceptName = "concept " + conceptId;
+      concept.conceptCode = "C" + conceptId;
+      concept.vocabularyId = "SNOMED";
+      concept.domainId = "Condition";
+      concept.standardConcept = "S";
+      ConceptSetExpression.ConceptSetItem item = new ConceptSetExpression.ConceptSetItem();
+      item.concept = concept;
+      item.includeDescendants = random.nextBoolean();
+      item.includeMapped = random.nextInt(4) == 0;
+      item.isExcluded = i > 0 && random.nextInt(8) == 0;
+      conceptSet.expression.items[i] = item;
+    }
+    return conceptSet;
+  }
+
+  private CriteriaGroup group(Options options, int depth) {
+    CriteriaGroup group = new CriteriaGroup();
+    group.type = GROUP_TYPES[random.nextInt(GROUP_TYPES.length)];
+    if (!"ALL".equals(group.type) && !"ANY".equals(group.type)) {
+      group.count = 1 + random.nextInt(Math.max(1, options.correlatedCriteriaPerGroup));
+    }
+    group.criteriaList = new CorelatedCriteria[options.correlatedCriteriaPerGroup];
+    for (int i = 0; i < options.correlatedCriteriaPerGroup; i++) {
+      group.criteriaList[i] = correlatedCriteria(options);
+    }
+    group.groups = depth > 1 ? new CriteriaGroup[]{group(options, depth - 1)} : new CriteriaGroup[0];
+    return group;
+  }
+
+  private CorelatedCriteria correlatedCriteria(Options options) {
+    CorelatedCriteria correlatedCriteria = new CorelatedCriteria();
+    correlatedCriteria.criteria = criteria(options);
+    correlatedCriteria.startWindow = new Window();
+    correlatedCriteria.startWindow.start = endpoint(30 + random.nextInt(700), -1);
+    correlatedCriteria.startWindow.end = endpoint(random.nextInt(30), random.nextBoolean() ? -1 : 1);
+    correlatedCriteria.occurrence = new Occurrence();
+    correlatedCriteria.occurrence.type = random.nextInt(3);
+    correlatedCriteria.occurrence.count = correlatedCriteria.occurrence.type == Occurrence.AT_LEAST ? 1 + random.nextInt(3) : random.nextInt(3);
+    correlatedCriteria.restrictVisit = random.nextInt(8) == 0;
+    return correlatedCriteria;
+  }
+
+  private Criteria criteria(Options options) {
+    Criteria criteria = newCriteria(pickCriteriaType(options.criteriaMix));
+    setField(criteria, "codesetId", random.nextInt(options.conceptSetCount));
+    if (random.nextInt(4) == 0) {
+      setField(criteria, "first", Boolean.TRUE);
+    }
+    if (random.nextInt(4) == 0) {
+      NumericRange age = new NumericRange();
+      age.op = "gte";
+      age.value = 18 + random.nextInt(50);
+      setField(criteria, "age", age);
+    }
+    if (random.nextInt(10) == 0) {
+      criteria.dateAdjustment = new DateAdjustment();
+      criteria.dateAdjustment.startOffset = random.nextInt(30);
+    }
+    return criteria;
+  }
+
+  private Class<? extends Criteria> pickCriteriaType(Map<Class<? extends Criteria>, Integer> criteriaMix) {
+    int total = 0;
+    for (int weight : criteriaMix.values()) {
+      total += weight;
+    }
+    if (total <= 0) {
+      throw new RuntimeException("The criteria mix needs at least one criteria type with a positive weight.");
+    }
+    int pick = random.nextInt(total);
+    Class<? extends Criteria> criteriaType = null;
+    for (Map.Entry<Class<? extends Criteria>, Integer> entry : criteriaMix.entrySet()) {
+      criteriaType = entry.getKey();
+      pick -= entry.getValue();
+      if (pick < 0) {
+        break;
+      }
+    }
+    return criteriaType;
+  }
+
+  private static Criteria newCriteria(Class<? extends Criteria> criteriaType) {
+    try {
+      return criteriaType.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException("Error creating criteria " + criteriaType.getSimpleName(), e);
+    }
+  }
+
+  // sets the attribute on the criteria types that have it, ie: observation periods have no codeset
+  private static void setField(Criteria criteria, String name, Object value) {
+    try {
+      Field field = criteria.getClass().getField(name);
+      field.set(criteria, value);
+    } catch (NoSuchFieldException e) {
+      // not an attribute of this criteria type
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Window.Endpoint endpoint(int days, int coeff) {
+    Window.Endpoint endpoint = new Window.Endpoint();
+    endpoint.days = days;
+    endpoint.coeff = coeff;
+    return endpoint;
+  }
+}
@@ -2,12 +2,23 @@ package org.ohdsi.circe.cohortdefinition;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.ohdsi.circe.Utils;
+import org.ohdsi.circe.cohortdefinition.builders.CriteriaColumn;
+import org.ohdsi.circe.cohortdefinition.builders.CriteriaUtils;
+import org.ohdsi.circe.helper.QueryCache;
+import org.ohdsi.circe.helper.ResourceHelper;
+import org.ohdsi.circe.vocabulary.Concept;
 import org.ohdsi.circe.vocabulary.ConceptSetExpression;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -56,13 +67,448 @@ public class CohortExpressionQueryBuilderTest {
                 ")\n;\n\n\n\nUPDATE STATISTICS #Codesets;\n"));
     }
 
-    private ConceptSet createConceptSet(int id, String name) {
+    @Test
+    public void getCodesetQueryResolvesEquivalentConceptSetsOnce() {
+
+        ConceptSet conceptSets[] = {
+                createConceptSet(1, "name1", 100L, 200L),
+                createConceptSet(2, "name2", 200L, 100L),
+                createConceptSet(3, "name3", 300L)
+        };
+
+        String codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets));
+
+        // 1 and 2 only differ by item order, so they share one vocabulary query
+        assertThat(StringUtils.countMatches(codesetQuery, "concept_id in (100,200)"), equalTo(1));
+        assertThat(StringUtils.countMatches(codesetQuery, "concept_id in (200,100)"), equalTo(0));
+        assertThat(codesetQuery, containsString("CROSS JOIN (SELECT 1 as codeset_id UNION ALL SELECT 2 as codeset_id) D"));
+        assertThat(codesetQuery, containsString("SELECT 3 as codeset_id, c.concept_id FROM ("));
+    }
+
+    @Test
+    public void getCodesetQueryStaged() {
+
+        ConceptSet conceptSets[] = {
+                createConceptSet(1, "name1", 100L, 200L),
+                createConceptSet(2, "name2", 200L, 100L),
+                createConceptSet(3, "name3", 300L)
+        };
+        conceptSets[2].expression.items[0].includeDescendants = true;
+
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.stagedCodesetResolution = true;
+        String codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets, options));
+
+        // every concept set is resolved by the same statements, with one pass over CONCEPT_ANCESTOR
+        assertThat(StringUtils.countMatches(codesetQuery, "JOIN @vocabulary_database_schema.CONCEPT_ANCESTOR"), equalTo(1));
+        assertThat(StringUtils.countMatches(codesetQuery, "INSERT INTO #concept_set_seeds"), equalTo(1));
+        assertThat(codesetQuery, containsString("INSERT INTO #concept_set_seeds (codeset_id, concept_id, is_excluded, include_descendants, include_mapped)\n"
+                + "VALUES (1,100,0,0,0),(1,200,0,0,0),(3,300,0,1,0);\n"));
+        // the equivalent concept set is copied from the resolved rows
+        assertThat(codesetQuery, containsString("INSERT INTO #Codesets (codeset_id, concept_id)\nSELECT 2 as codeset_id, concept_id FROM #Codesets WHERE codeset_id = 1;"));
+        assertThat(codesetQuery, containsString("DROP TABLE #concept_set_seeds;"));
+    }
+
+    @Test
+    public void getCodesetQueryStagedSeedBatches() {
+
+        ConceptSet conceptSets[] = {
+                createConceptSet(1, "name1", 1L, 2L, 3L, 4L, 5L),
+                createConceptSet(2, "name2", 6L, 7L)
+        };
+
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.stagedCodesetResolution = true;
+        options.seedBatchSize = 3;
+        String codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets, options));
+
+        assertThat(StringUtils.countMatches(codesetQuery, "INSERT INTO #concept_set_seeds"), equalTo(3));
+        assertThat(codesetQuery, containsString("VALUES (1,1,0,0,0),(1,2,0,0,0),(1,3,0,0,0);\n"));
+        assertThat(codesetQuery, containsString("VALUES (1,4,0,0,0),(1,5,0,0,0),(2,6,0,0,0);\n"));
+        assertThat(codesetQuery, containsString("VALUES (2,7,0,0,0);\n"));
+    }
+
+    @Test
+    public void getCodesetQueryStagesLongConceptLists() {
+
+        Long[] conceptIds = new Long[1001];
+        for (int i = 0; i < conceptIds.length; i++) {
+            conceptIds[i] = 2L * (i + 1); // no consecutive ids, so no BETWEEN ranges either
+        }
+        ConceptSet conceptSets[] = {
+                createConceptSet(1, "name1", Arrays.copyOf(conceptIds, 1000)),
+                createConceptSet(2, "name2", 1L)
+        };
+
+        // 1000 concepts fit one IN list
+        assertThat(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets), not(containsString("#concept_set_seeds")));
+
+        conceptSets[0] = createConceptSet(1, "name1", conceptIds);
+        String codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets));
+
+        // 1001 do not, so every concept set is joined through the seed table instead of OR-chained IN lists
+        assertThat(StringUtils.countMatches(codesetQuery, "INSERT INTO #concept_set_seeds"), equalTo(2));
+        assertThat(codesetQuery, containsString("VALUES (1,2002,0,0,0),(2,1,0,0,0);\n"));
+        assertThat(codesetQuery, not(containsString(" or concept_id in (")));
+    }
+
+    @Test
+    public void getCodesetQueryIncompleteConceptSets() {
+
+        ConceptSet noExpression = createConceptSet(1, "name1");
+        noExpression.expression = null;
+        ConceptSet noConcept = createConceptSet(2, "name2", 100L, 200L);
+        noConcept.expression.items[0].concept = null;
+        ConceptSet conceptSets[] = {noExpression, noConcept};
+
+        // the concept set without an expression, and the item without a concept, select no concepts
+        String codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets));
+        assertThat(codesetQuery, containsString("SELECT 1 as codeset_id, c.concept_id FROM ("));
+        assertThat(codesetQuery, containsString("concept_id in (200)"));
+        assertThat(codesetQuery, not(containsString("concept_id in (100")));
+
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.stagedCodesetResolution = true;
+        codesetQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.getCodesetQuery(conceptSets, options));
+        assertThat(codesetQuery, containsString("VALUES (2,200,0,0,0);\n"));
+
+        Map<Integer, CohortExpression> cohorts = new LinkedHashMap<>();
+        CohortExpression expression = new CohortExpression();
+        expression.conceptSets = conceptSets;
+        expression.primaryCriteria = new PrimaryCriteria();
+        expression.primaryCriteria.observationWindow = new ObservationFilter();
+        cohorts.put(10, expression);
+        String batchQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.buildBatchExpressionQuery(cohorts, options));
+        assertThat(batchQuery, containsString("SELECT 1 as codeset_id, concept_id FROM #batch_codesets WHERE codeset_id = 0"));
+        assertThat(batchQuery, containsString("VALUES (1,200,0,0,0);\n"));
+    }
+
+    @Test
+    public void buildBatchExpressionQuerySharesCodesets() {
+
+        ConceptSet conceptSet = createConceptSet(1, "name1", 123L);
+
+        Map<Integer, CohortExpression> cohorts = new LinkedHashMap<>();
+        for (int cohortId = 10; cohortId <= 12; cohortId++) {
+            CohortExpression expression = new CohortExpression();
+            expression.conceptSets = new ConceptSet[]{conceptSet};
+            expression.primaryCriteria = new PrimaryCriteria();
+            expression.primaryCriteria.observationWindow = new ObservationFilter();
+            cohorts.put(cohortId, expression);
+        }
+
+        String batchQuery = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.buildBatchExpressionQuery(cohorts, null));
+
+        // the concept set is resolved once and copied into each cohort's codesets
+        assertThat(StringUtils.countMatches(batchQuery, "concept_id in (123)"), equalTo(1));
+        assertThat(StringUtils.countMatches(batchQuery, "SELECT 1 as codeset_id, concept_id FROM #batch_codesets WHERE codeset_id = 0"), equalTo(3));
+        for (int cohortId = 10; cohortId <= 12; cohortId++) {
+            assertThat(batchQuery, containsString("where cohort_definition_id = " + cohortId + ";"));
+        }
+        assertThat(batchQuery, containsString("DROP TABLE #batch_codesets;"));
+    }
+
+    @Test
+    public void buildExpressionQueryDefaultLayout() {
+
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/inclusionRules/simpleInclusionRule.json"));
+
+        String query = Utils.normalizeLineEnds(cohortExpressionQueryBuilder.buildExpressionQuery(expression, null));
+
+        // the criteria temp tables are empty by default, and leave no lines around the codeset and cleanup sections
+        assertThat(query, containsString("UPDATE STATISTICS #Codesets;\n\n\n\n\nSELECT event_id, person_id, start_date, end_date, op_start_date, op_end_date, visit_occurrence_id\nINTO #qualified_events"));
+        assertThat(query, containsString("DROP TABLE #inclusion_rules;\n}\n\n\n\n\n\nTRUNCATE TABLE #cohort_rows;"));
+    }
+
+    @Test
+    public void buildExpressionQueryServedFromCache() {
+
+        QueryCache cache = new QueryCache(1000000);
+        CohortExpressionQueryBuilder cachingBuilder = new CohortExpressionQueryBuilder(null, cache);
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/printfriendly/conditionEra.json"));
+        CohortExpression retitled = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/printfriendly/conditionEra.json"));
+        retitled.title = "Another title";
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.cohortId = 1;
+
+        String query = cachingBuilder.buildExpressionQuery(expression, options);
+        assertThat(cachingBuilder.buildExpressionQuery(retitled, options), equalTo(query));
+        assertThat(query, equalTo(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options)));
+        assertThat(cache.getHitCount(), equalTo(1L));
+
+        options.cohortId = 2;
+        cachingBuilder.buildExpressionQuery(expression, options);
+        assertThat(cache.getMissCount(), equalTo(2L));
+    }
+
+    @Test
+    public void buildExpressionQueryInstrumentsStages() {
+
+        CohortExpressionGenerator.Options generatorOptions = new CohortExpressionGenerator.Options();
+        generatorOptions.inclusionRuleCount = 2;
+        CohortExpression expression = new CohortExpressionGenerator(1L).generate(generatorOptions);
+        expression.endStrategy = new DateOffsetStrategy();
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.cohortId = 1;
+
+        assertThat(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options), not(containsString("cohort_stage_stats")));
+
+        options.instrumentStages = true;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        // each stage is started and ended in script order, around the statement that fills its table
+        String[][] stages = {{"codesets", "#Codesets"}, {"primary_events", "#primary_events"}, {"qualified_events", "#qualified_events"},
+            {"inclusion_rule_0", "#Inclusion_0"}, {"inclusion_rule_1", "#Inclusion_1"}, {"included_events", "#included_events"},
+            {"strategy_ends", "#strategy_ends"}, {"cohort_rows", "#cohort_rows"}, {"final_cohort", "#final_cohort"}};
+        int position = query.indexOf("DELETE FROM @results_database_schema.cohort_stage_stats");
+        for (int i = 0; i < stages.length; i++) {
+            int start = query.indexOf(String.format("SELECT 1, %d, '%s', CURRENT_TIMESTAMP;", i + 1, stages[i][0]));
+            int fill = query.toLowerCase().indexOf(("into " + stages[i][1]).toLowerCase(), start);
+            int end = query.indexOf(String.format("FROM %s), end_time = CURRENT_TIMESTAMP\nWHERE cohort_definition_id = 1 AND stage_sequence = %d;", stages[i][1], i + 1));
+            assertThat(stages[i][0], start, greaterThan(position));
+            assertThat(stages[i][0], fill, greaterThan(start));
+            assertThat(stages[i][0], end, greaterThan(fill));
+            position = end;
+        }
+        assertThat(query, containsString("FROM (select event_id, person_id, start_date, end_date, op_start_date, op_end_date, visit_occurrence_id from #primary_events) pe"));
+        assertThat(query, containsString("DROP TABLE #primary_events;"));
+    }
+
+    @Test
+    public void buildExpressionQueryInPersonBuckets() {
+
+        CohortExpressionGenerator.Options generatorOptions = new CohortExpressionGenerator.Options();
+        generatorOptions.inclusionRuleCount = 2;
+        CohortExpression expression = new CohortExpressionGenerator(1L).generate(generatorOptions);
+        expression.primaryCriteria.criteriaList[0].CorrelatedCriteria = expression.inclusionRules.get(0).expression;
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.cohortId = 1;
+        options.materializeCorrelatedCriteria = true;
+
+        String singlePass = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+        assertThat(singlePass, not(containsString("% 3 =")));
+        assertThat(singlePass, containsString("INTO #correlated_events_0"));
+
+        options.personBuckets = 3;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        // #final_cohort is made once and filled by each bucket, whose own temp tables are dropped before the next one
+        assertThat(StringUtils.countMatches(query, "CREATE TABLE #final_cohort"), equalTo(1));
+        assertThat(StringUtils.countMatches(query, "INSERT INTO #final_cohort (person_id, start_date, end_date)"), equalTo(3));
+        assertThat(StringUtils.countMatches(query, "DROP TABLE #final_cohort;"), equalTo(1));
+        int position = 0;
+        for (int bucket = 0; bucket < 3; bucket++) {
+            int filter = query.indexOf(String.format("E.person_id %% 3 = %d", bucket), position);
+            int insert = query.indexOf("INSERT INTO #final_cohort", filter);
+            int cleanup = query.indexOf("DROP TABLE #qualified_events;", insert);
+            assertThat("bucket " + bucket, filter, greaterThan(position));
+            assertThat("bucket " + bucket, insert, greaterThan(filter));
+            assertThat("bucket " + bucket, cleanup, greaterThan(insert));
+            position = cleanup;
+        }
+        assertThat(query.indexOf("INSERT INTO @target_database_schema.@target_cohort_table"), greaterThan(position));
+
+        // correlated criteria tables are bounded by the bucket too
+        assertThat(StringUtils.countMatches(query, "WHERE Q.person_id % 3 ="), equalTo(3 * StringUtils.countMatches(singlePass, "INTO #correlated_events_")));
+
+        // the inclusion stats are added up over the buckets
+        assertThat(StringUtils.countMatches(query, "insert into #inclusion_mask_counts"), equalTo(6));
+        assertThat(query, containsString("from #inclusion_mask_counts"));
+    }
+
+    @Test
+    public void buildExpressionQueryBoundsCorrelatedCriteria() {
+
+        CohortExpressionGenerator.Options generatorOptions = new CohortExpressionGenerator.Options();
+        generatorOptions.inclusionRuleCount = 1;
+        generatorOptions.groupDepth = 1;
+        generatorOptions.correlatedCriteriaPerGroup = 1;
+        CohortExpression expression = new CohortExpressionGenerator(1L).generate(generatorOptions);
+        CorelatedCriteria correlatedCriteria = expression.inclusionRules.get(0).expression.criteriaList[0];
+        correlatedCriteria.ignoreObservationPeriod = false;
+        correlatedCriteria.startWindow = new Window();
+        correlatedCriteria.startWindow.start = new Window.Endpoint();
+        correlatedCriteria.startWindow.start.days = 30;
+        correlatedCriteria.startWindow.start.coeff = -1;
+        correlatedCriteria.startWindow.end = new Window.Endpoint();
+        correlatedCriteria.startWindow.end.days = 7;
+        correlatedCriteria.startWindow.end.coeff = 1;
+        correlatedCriteria.endWindow = null;
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+        assertThat(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options), not(containsString(") B\nWHERE")));
+
+        options.boundCorrelatedCriteria = true;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        // the criteria of the inclusion rule are restricted to the persons and dates of #qualified_events
+        assertThat(query, containsString(") B\nWHERE B.person_id IN (SELECT person_id FROM #qualified_events)\n"
+                + "  AND B.start_date >= (SELECT MIN(P.OP_START_DATE) FROM #qualified_events P)\n"
+                + "  AND B.start_date <= (SELECT MAX(P.OP_END_DATE) FROM #qualified_events P)\n"
+                + "  AND B.start_date >= (SELECT MIN(DATEADD(day,-30,P.START_DATE)) FROM #qualified_events P)\n"
+                + "  AND B.start_date <= (SELECT MAX(DATEADD(day,7,P.START_DATE)) FROM #qualified_events P)\n"));
+        // the primary events are a query rather than a temp table here, so criteria joined to them are not bounded
+        assertThat(StringUtils.countMatches(query, ") B\nWHERE"), equalTo(1));
+    }
+
+    @Test
+    public void buildExpressionQueryBoundsAdditionalCriteria() {
+
+        CohortExpressionGenerator.Options generatorOptions = new CohortExpressionGenerator.Options();
+        generatorOptions.inclusionRuleCount = 1;
+        generatorOptions.groupDepth = 1;
+        generatorOptions.correlatedCriteriaPerGroup = 1;
+        CohortExpression expression = new CohortExpressionGenerator(1L).generate(generatorOptions);
+        expression.additionalCriteria = expression.inclusionRules.remove(0).expression;
+        CorelatedCriteria correlatedCriteria = expression.additionalCriteria.criteriaList[0];
+        correlatedCriteria.ignoreObservationPeriod = true;
+        correlatedCriteria.startWindow = new Window();
+        correlatedCriteria.startWindow.start = new Window.Endpoint();
+        correlatedCriteria.startWindow.start.days = 30;
+        correlatedCriteria.startWindow.start.coeff = -1;
+        correlatedCriteria.startWindow.end = new Window.Endpoint();
+        correlatedCriteria.startWindow.end.days = 0;
+        correlatedCriteria.startWindow.end.coeff = 1;
+        correlatedCriteria.endWindow = null;
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+        assertThat(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options), not(containsString("INTO #primary_events")));
+
+        options.boundCorrelatedCriteria = true;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        // the primary events are materialized, so the additional criteria are restricted to their persons and dates
+        assertThat(query, containsString("INTO #primary_events\n"));
+        assertThat(query, containsString(") B\nWHERE B.person_id IN (SELECT person_id FROM #primary_events)\n"
+                + "  AND B.start_date >= (SELECT MIN(DATEADD(day,-30,P.START_DATE)) FROM #primary_events P)\n"
+                + "  AND B.start_date <= (SELECT MAX(DATEADD(day,0,P.START_DATE)) FROM #primary_events P)\n"));
+        assertThat(query, containsString("DROP TABLE #primary_events;"));
+    }
+
+    @Test
+    public void correlatedCriteriaExistenceIsNotCounted() {
+
+        CorelatedCriteria cc = new CorelatedCriteria();
+        cc.criteria = new ConditionOccurrence();
+        cc.startWindow = CriteriaUtils.getPrior365Window();
+
+        // none and at least one are tests for the existence of a match
+        cc.occurrence = CriteriaUtils.getAtExactly0Occurrence();
+        String query = cohortExpressionQueryBuilder.getCorelatedlCriteriaQuery(cc, "#events");
+        assertThat(query, containsString("WHERE NOT EXISTS ("));
+        assertThat(query, not(containsString("HAVING COUNT")));
+
+        cc.occurrence = CriteriaUtils.getAtLeast1Occurrence();
+        query = cohortExpressionQueryBuilder.getCorelatedlCriteriaQuery(cc, "#events");
+        assertThat(query, containsString("WHERE EXISTS ("));
+        assertThat(query, not(containsString("HAVING COUNT")));
+
+        // other counts, and distinct counts, which leave out nulls, are still counted
+        cc.occurrence = CriteriaUtils.getAtExactly1Occurrence();
+        assertThat(cohortExpressionQueryBuilder.getCorelatedlCriteriaQuery(cc, "#events"), containsString("HAVING COUNT(cc.event_id) = 1"));
+        cc.occurrence = CriteriaUtils.getDistinctCount(CriteriaColumn.START_DATE, Occurrence.AT_LEAST, 1);
+        assertThat(cohortExpressionQueryBuilder.getCorelatedlCriteriaQuery(cc, "#events"), containsString("HAVING COUNT(DISTINCT cc.start_date) >= 1"));
+
+        CriteriaGroup group = new CriteriaGroup();
+        group.criteriaList = new CorelatedCriteria[] {cc};
+        group.type = "ANY";
+        assertThat(cohortExpressionQueryBuilder.getCriteriaGroupQuery(group, "#events"), containsString("WHERE EXISTS ("));
+        group.type = "AT_MOST";
+        group.count = 0;
+        assertThat(cohortExpressionQueryBuilder.getCriteriaGroupQuery(group, "#events"), containsString("WHERE NOT EXISTS ("));
+        group.type = "ALL";
+        assertThat(cohortExpressionQueryBuilder.getCriteriaGroupQuery(group, "#events"), containsString("HAVING COUNT(index_id) = 1"));
+    }
+
+    @Test
+    public void buildExpressionQueryConsolidatesDomainScans() {
+
+        // the primary criteria and the inclusion rule both read CONDITION_OCCURRENCE, by codesets 0 and 1
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/inclusionRules/simpleInclusionRule.json"));
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+        assertThat(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options), not(containsString("#domain_")));
+
+        options.consolidateDomainScans = true;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        assertThat(query, containsString("SELECT D.*\nINTO #domain_condition_occurrence\nFROM @cdm_database_schema.CONDITION_OCCURRENCE D\n"
+                + "WHERE D.condition_concept_id in (SELECT concept_id from #Codesets where codeset_id in (0,1));"));
+        assertThat(StringUtils.countMatches(query, "FROM #domain_condition_occurrence co"), equalTo(2));
+        assertThat(StringUtils.countMatches(query, "FROM @cdm_database_schema.CONDITION_OCCURRENCE co"), equalTo(0));
+        assertThat(query, containsString("DROP TABLE #domain_condition_occurrence;"));
+
+        // reads of the same codesets are one read, however many times they are built
+        ((ConditionOccurrence) expression.inclusionRules.get(0).expression.criteriaList[0].criteria).codesetId = 0;
+        options.personBuckets = 2;
+        query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        assertThat(query, not(containsString("#domain_")));
+        options.personBuckets = null;
+
+        // a read of every condition can not be served from the staged rows, so the table is read as before
+        ((ConditionOccurrence) expression.primaryCriteria.criteriaList[0]).codesetId = null;
+        query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        assertThat(query, not(containsString("#domain_")));
+        assertThat(StringUtils.countMatches(query, "FROM @cdm_database_schema.CONDITION_OCCURRENCE co"), equalTo(2));
+    }
+
+    @Test
+    public void buildExpressionQuerySharesCriteriaQueries() {
+
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/inclusionRules/simpleInclusionRule.json"));
+        // a second inclusion rule with the same criteria as the first
+        expression.inclusionRules.add(CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/inclusionRules/simpleInclusionRule.json")).inclusionRules.get(0));
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+        assertThat(query, not(containsString("#shared_criteria_")));
+        assertThat(StringUtils.countMatches(query, "FROM @cdm_database_schema.CONDITION_OCCURRENCE co"), equalTo(3));
+
+        options.shareCriteriaQueries = true;
+        query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        // the criteria of both rules are read from one table, the primary criteria are built once and stay inline
+        assertThat(query, containsString("SELECT Q.*\nINTO #shared_criteria_0\nFROM (\n-- Begin Condition Occurrence Criteria"));
+        assertThat(StringUtils.countMatches(query, "select * from #shared_criteria_0"), equalTo(2));
+        assertThat(StringUtils.countMatches(query, "FROM @cdm_database_schema.CONDITION_OCCURRENCE co"), equalTo(2));
+        assertThat(query, containsString("DROP TABLE #shared_criteria_0;"));
+        assertThat(query, not(containsString("@sharedCriteria")));
+    }
+
+    @Test
+    public void buildExpressionQueryEvaluatesInclusionRulesInOneStatement() {
+
+        CohortExpressionGenerator.Options generatorOptions = new CohortExpressionGenerator.Options();
+        generatorOptions.inclusionRuleCount = 3;
+        CohortExpression expression = new CohortExpressionGenerator(1L).generate(generatorOptions);
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+        assertThat(cohortExpressionQueryBuilder.buildExpressionQuery(expression, options), containsString("INTO #Inclusion_2"));
+
+        options.singleStatementInclusionRules = true;
+        String query = cohortExpressionQueryBuilder.buildExpressionQuery(expression, options);
+
+        assertThat(query, not(containsString("#Inclusion_")));
+        assertThat(query, containsString("select index_id as inclusion_rule_id, person_id, event_id\nINTO #inclusion_events\nFROM \n(\n-- Begin Criteria Group\nselect 0 as index_id"));
+        assertThat(query, containsString("-- End Criteria Group\nUNION ALL\n-- Begin Criteria Group\nselect 2 as index_id"));
+        assertThat(StringUtils.countMatches(query, "INTO #inclusion_events"), equalTo(1));
+    }
+
+    private ConceptSet createConceptSet(int id, String name, Long... conceptIds) {
 
         ConceptSet conceptSet1 = new ConceptSet();
         conceptSet1.id = id;
         conceptSet1.name = name;
         conceptSet1.expression = new ConceptSetExpression();
-        conceptSet1.expression.items = new ConceptSetExpression.ConceptSetItem[0];
+        conceptSet1.expression.items = new ConceptSetExpression.ConceptSetItem[conceptIds.length];
+        for (int i = 0; i < conceptIds.length; i++) {
+            Concept concept = new Concept();
+            concept.conceptId = conceptIds[i];
+            conceptSet1.expression.items[i] = new ConceptSetExpression.ConceptSetItem();
+            conceptSet1.expression.items[i].concept = concept;
+        }
 
         return conceptSet1;
     }
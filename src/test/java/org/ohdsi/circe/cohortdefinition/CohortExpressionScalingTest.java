@@ -0,0 +1,135 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.junit.Test;
+import org.ohdsi.analysis.Utils;
+import org.ohdsi.circe.check.Checker;
+import org.ohdsi.circe.cohortdefinition.printfriendly.MarkdownRender;
+import org.ohdsi.circe.helper.ExpressionFingerprint;
+
+/**
+ * Load and scaling tests on generated expressions. Each knob of the generator is doubled twice: the second
+ * doubling may add at most about twice the SQL the first one added. The build and check timings are asserted
+ * by {@link ITCohortExpressionScalingTest}, out of the unit test run.
+ */
+public class CohortExpressionScalingTest {
+
+  static final long SEED = 20240601L;
+  // the random expressions vary a little in size between steps
+  private static final double SIZE_TOLERANCE = 1.5;
+
+  private final CohortExpressionQueryBuilder queryBuilder = new CohortExpressionQueryBuilder();
+
+  static CohortExpressionGenerator.Options baseOptions() {
+    CohortExpressionGenerator.Options options = new CohortExpressionGenerator.Options();
+    options.conceptSetCount = 10;
+    options.conceptsPerSet = 10;
+    options.primaryCriteriaCount = 2;
+    options.inclusionRuleCount = 3;
+    options.groupDepth = 3;
+    options.correlatedCriteriaPerGroup = 2;
+    return options;
+  }
+
+  static CohortExpression generate(CohortExpressionGenerator.Options options) {
+    return new CohortExpressionGenerator(SEED).generate(options);
+  }
+
+  private void assertLinear(String knob, int start, BiConsumer<CohortExpressionGenerator.Options, Integer> setKnob) {
+    long[] sizes = new long[3];
+    for (int step = 0; step < 3; step++) {
+      CohortExpressionGenerator.Options options = baseOptions();
+      setKnob.accept(options, start << step);
+      sizes[step] = queryBuilder.buildExpressionQuery(generate(options), null).length();
+    }
+
+    assertThat(knob + " SQL added by the second doubling", (double) (sizes[2] - sizes[1]),
+            lessThanOrEqualTo(2 * SIZE_TOLERANCE * (sizes[1] - sizes[0])));
+  }
+
+  @Test
+  public void sameSeedGeneratesSameExpression() {
+    CohortExpression expression = generate(baseOptions());
+
+    assertThat(ExpressionFingerprint.of(generate(baseOptions())), equalTo(ExpressionFingerprint.of(expression)));
+    assertThat(ExpressionFingerprint.of(CohortExpression.fromJson(Utils.serialize(expression))), equalTo(ExpressionFingerprint.of(expression)));
+  }
+
+  @Test
+  public void generatedCriteriaUseOnlyTheCriteriaMix() {
+    CohortExpressionGenerator.Options options = baseOptions();
+    Map<Class<? extends Criteria>, Integer> mix = Collections.singletonMap(DrugEra.class, 1);
+    options.criteriaMix = mix;
+    CohortExpression expression = generate(options);
+
+    for (Criteria criteria : expression.primaryCriteria.criteriaList) {
+      assertThat(criteria.getClass().getName(), equalTo(DrugEra.class.getName()));
+    }
+    for (InclusionRule rule : expression.inclusionRules) {
+      for (CorelatedCriteria correlatedCriteria : rule.expression.criteriaList) {
+        assertThat(correlatedCriteria.criteria.getClass().getName(), equalTo(DrugEra.class.getName()));
+      }
+    }
+    assertThat(queryBuilder.buildExpressionQuery(expression, null), containsString("@cdm_database_schema.DRUG_ERA"));
+  }
+
+  @Test
+  public void scalesWithConceptSetCount() {
+    assertLinear("conceptSetCount", 40, (options, value) -> options.conceptSetCount = value);
+  }
+
+  @Test
+  public void scalesWithConceptsPerSet() {
+    assertLinear("conceptsPerSet", 40, (options, value) -> options.conceptsPerSet = value);
+  }
+
+  @Test
+  public void scalesWithPrimaryCriteriaCount() {
+    assertLinear("primaryCriteriaCount", 8, (options, value) -> options.primaryCriteriaCount = value);
+  }
+
+  @Test
+  public void scalesWithInclusionRuleCount() {
+    assertLinear("inclusionRuleCount", 12, (options, value) -> options.inclusionRuleCount = value);
+  }
+
+  @Test
+  public void scalesWithGroupDepth() {
+    assertLinear("groupDepth", 12, (options, value) -> options.groupDepth = value);
+  }
+
+  @Test
+  public void scalesWithCorrelatedCriteriaPerGroup() {
+    assertLinear("correlatedCriteriaPerGroup", 8, (options, value) -> options.correlatedCriteriaPerGroup = value);
+  }
+
+  static CohortExpression generateLarge() {
+    CohortExpressionGenerator.Options options = baseOptions();
+    options.conceptSetCount = 200;
+    options.inclusionRuleCount = 40;
+    options.correlatedCriteriaPerGroup = 5;
+    return generate(options);
+  }
+
+  @Test
+  public void checkLargeExpression() {
+    assertThat(new Checker().check(generateLarge()), notNullValue());
+  }
+
+  @Test
+  public void renderLargeExpression() {
+    CohortExpression expression = generateLarge();
+    MarkdownRender markdownRender = new MarkdownRender();
+
+    assertThat(markdownRender.renderCohort(expression), containsString("generated rule 39"));
+    assertThat(markdownRender.renderConceptSetList(expression.conceptSets), containsString("generated concept set 199"));
+  }
+}
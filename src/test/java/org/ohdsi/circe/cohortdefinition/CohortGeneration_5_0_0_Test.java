@@ -1,11 +1,15 @@
 package org.ohdsi.circe.cohortdefinition;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.lang.reflect.Field;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import com.github.mjeanroy.dbunit.core.dataset.DataSetFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.dbunit.Assertion;
@@ -137,6 +141,33 @@ public class CohortGeneration_5_0_0_Test extends AbstractDatabaseTest {
     jdbcTemplate.batchUpdate(SqlSplit.splitSql(cohortSql));
   }
 
+  @Test
+  public void instrumentedStagesTest() throws SQLException {
+
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(1,"instrumentedStagesTest");
+    options.instrumentStages = true;
+
+    // prepare results schema
+    prepareSchema(options.resultSchema, RESULTS_DDL_PATH);
+
+    final CohortExpression expression = CohortExpression
+        .fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/allCriteria/allCriteriaExpression.json"));
+
+    // execute on database, expect a row count and end time for each stage
+    jdbcTemplate.batchUpdate(SqlSplit.splitSql(buildExpressionSql(expression, options)));
+
+    final List<Map<String, Object>> stages = jdbcTemplate.queryForList(
+        "select stage_name, row_count, start_time, end_time from instrumentedStagesTest.cohort_stage_stats where cohort_definition_id = 1 order by stage_sequence");
+    assertTrue(stages.size() >= 6);
+    assertEquals("codesets", stages.get(0).get("stage_name"));
+    assertEquals("primary_events", stages.get(1).get("stage_name"));
+    assertEquals("final_cohort", stages.get(stages.size() - 1).get("stage_name"));
+    for (final Map<String, Object> stage : stages) {
+      assertNotNull(stage.get("stage_name").toString(), stage.get("row_count"));
+      assertNotNull(stage.get("stage_name").toString(), stage.get("end_time"));
+    }
+  }
+
   /* first occurrence tests */
   private void setFirstOccurrenceCriteria(final Criteria c) throws Exception {
     final Field first = c.getClass().getDeclaredField("first");
@@ -361,6 +392,71 @@ public class CohortGeneration_5_0_0_Test extends AbstractDatabaseTest {
   }
   
 
+  /**
+   * Generates the cohorts of testGroups from a single batch script, which must give the same results.
+   */
+  @Test
+  public void testGroupsBatch() throws Exception  {
+    final String RESULTS_SCHEMA = "groupsTest";
+    final String[] testDataSetsPrep = new String[] { 
+      "/datasets/vocabulary.json",
+      "/cohortgeneration/correlatedCriteria/groupTest_PREP.json" 
+    };
+    final IDatabaseConnection dbUnitCon = getConnection();
+
+    // prepare results schema for the specified options.resultSchema
+    prepareSchema(RESULTS_SCHEMA, RESULTS_DDL_PATH);
+
+    // load test data into DB.
+    final IDataSet dsPrep = DataSetFactory.createDataSet(testDataSetsPrep);
+    DatabaseOperation.CLEAN_INSERT.execute(dbUnitCon, dsPrep); // clean load of the DB. Careful, clean means "delete the old stuff"
+
+    final String expressionJson = ResourceHelper.GetResourceAsString("/cohortgeneration/correlatedCriteria/groupExpression.json");
+    final Map<Integer, CohortExpression> cohorts = new LinkedHashMap<>();
+    CohortExpression expression;
+
+    // same variations as testGroups
+    cohorts.put(1, CohortExpression.fromJson(expressionJson));
+
+    expression = CohortExpression.fromJson(expressionJson);
+    expression.additionalCriteria.type = "AT_LEAST";
+    expression.additionalCriteria.count = 2;
+    cohorts.put(2, expression);
+
+    expression = CohortExpression.fromJson(expressionJson);
+    expression.additionalCriteria.type = "AT_MOST";
+    expression.additionalCriteria.count = 2;
+    cohorts.put(3, expression);
+
+    expression = CohortExpression.fromJson(expressionJson);
+    expression.additionalCriteria.type = "ALL";
+    expression.additionalCriteria.groups[0].type = "AT_MOST";
+    expression.additionalCriteria.groups[0].count = 0;
+    cohorts.put(4, expression);
+
+    expression = CohortExpression.fromJson(expressionJson);
+    expression.additionalCriteria.type = "ALL";
+    expression.additionalCriteria.groups = new CriteriaGroup[0];
+    cohorts.put(5, expression);
+
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(0, RESULTS_SCHEMA);
+    String cohortSql = new CohortExpressionQueryBuilder().buildBatchExpressionQuery(cohorts, options);
+    cohortSql = SqlRender.renderSql(SqlTranslate.translateSql(cohortSql, "postgresql"), null, null);
+    // execute on database, expect no errors
+    jdbcTemplate.batchUpdate(SqlSplit.splitSql(cohortSql));
+
+    // Validate results
+    // Load actual records from cohort table
+    final ITable actualTable = dbUnitCon.createQueryTable(RESULTS_SCHEMA + ".cohort", String.format("SELECT * from %s ORDER BY cohort_definition_id, subject_id, cohort_start_date", RESULTS_SCHEMA + ".cohort"));
+    // Load expected data from an XML dataset
+    final String[] testDataSetsVerify = new String[] {"/cohortgeneration/correlatedCriteria/groupTest_VERIFY.json"};
+    final IDataSet expectedDataSet = DataSetFactory.createDataSet(testDataSetsVerify);
+    final ITable expectedTable = expectedDataSet.getTable(RESULTS_SCHEMA + ".cohort");
+
+    // Assert actual database table match expected table
+    Assertion.assertEquals(expectedTable, actualTable);    
+  }
+
   /**
    * Limit tests
    */
@@ -484,6 +580,71 @@ public class CohortGeneration_5_0_0_Test extends AbstractDatabaseTest {
 
   }
 
+  @Test
+  public void testSimpleInclusionRulePersonBuckets() throws Exception  {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(1, "simpleInclusionRuleBuckets");
+    options.personBuckets = 3;
+    verifySimpleInclusionRule(options);
+  }
+
+  @Test
+  public void testSimpleInclusionRuleBoundedCriteria() throws Exception  {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(1, "simpleInclusionRuleBounded");
+    options.boundCorrelatedCriteria = true;
+    verifySimpleInclusionRule(options);
+  }
+
+  @Test
+  public void testSimpleInclusionRuleConsolidatedScans() throws Exception  {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(1, "simpleInclusionRuleConsolidated");
+    options.consolidateDomainScans = true;
+    verifySimpleInclusionRule(options);
+  }
+
+  @Test
+  public void testSimpleInclusionRuleSingleStatement() throws Exception  {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = buildExpressionQueryOptions(1, "simpleInclusionRuleSingleStatement");
+    options.singleStatementInclusionRules = true;
+    verifySimpleInclusionRule(options);
+  }
+
+  /**
+   * Generates the cohort of testSimpleInclusionRule with other generation options, which must give the same
+   * cohort and inclusion stats.
+   */
+  private void verifySimpleInclusionRule(final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options) throws Exception  {
+    final String RESULTS_SCHEMA = options.resultSchema;
+    final String[] testDataSetsPrep = new String[] { 
+      "/datasets/vocabulary.json",
+      "/cohortgeneration/inclusionRules/simpleInclusionRule_PREP.json" 
+    };
+    final IDatabaseConnection dbUnitCon = getConnection();
+
+    // prepare results schema for the specified options.resultSchema
+    prepareSchema(RESULTS_SCHEMA, RESULTS_DDL_PATH);
+
+    // load test data into DB.
+    final IDataSet dsPrep = DataSetFactory.createDataSet(testDataSetsPrep);
+    DatabaseOperation.CLEAN_INSERT.execute(dbUnitCon, dsPrep); // clean load of the DB. Careful, clean means "delete the old stuff"
+
+    final CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/inclusionRules/simpleInclusionRule.json"));
+    final String cohortSql = buildExpressionSql(expression, options);
+    // execute on database, expect no errors
+    jdbcTemplate.batchUpdate(SqlSplit.splitSql(cohortSql));
+
+    // Validate results
+    final ITable cohortTable = dbUnitCon.createQueryTable(RESULTS_SCHEMA + ".cohort", String.format("SELECT * from %s ORDER BY cohort_definition_id, subject_id, cohort_start_date", RESULTS_SCHEMA + ".cohort"));
+    final ITable censorStatsTable = dbUnitCon.createQueryTable(RESULTS_SCHEMA + ".cohort_inclusion_result", String.format("SELECT * from %s ORDER BY cohort_definition_id, mode_id, inclusion_rule_mask", RESULTS_SCHEMA + ".cohort_inclusion_result"));
+
+    // the verify dataset names the tables of the simpleInclusionRule schema, so the tables are compared one by one
+    final String[] testDataSetsVerify = new String[] {"/cohortgeneration/inclusionRules/simpleInclusionRule_VERIFY.json"};
+    final IDataSet expectedDataSet = DataSetFactory.createDataSet(testDataSetsVerify);
+
+    // Assert actual database table match expected table
+    Assertion.assertEquals(expectedDataSet.getTable("simpleInclusionRule.cohort"), cohortTable);
+    Assertion.assertEquals(expectedDataSet.getTable("simpleInclusionRule.cohort_inclusion_result"), censorStatsTable);
+  }
+
   /**
    *  Exit strategies and censoring events
    */
@@ -91,6 +91,29 @@ public class CohortOptionsTest extends BaseTest {
 
   }
 
+  /**
+   * Checks that the streamed script matches the String form once options are bound.
+   *
+   */
+  @Test
+  public void checkStreamedQuery() throws Exception {
+
+    CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/cohortgeneration/allCriteria/allCriteriaExpression.json"));
+    CohortExpressionQueryBuilder builder = new CohortExpressionQueryBuilder();
+
+    CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.cdmSchema = "cdm";
+    options.targetTable = "results.cohort";
+    options.resultSchema = "results";
+    options.cohortId = 1;
+    options.generateStats = true;
+
+    StringBuilder streamed = new StringBuilder();
+    builder.buildExpressionQuery(expression, options, streamed);
+    assertEquals(builder.buildExpressionQuery(expression, options), streamed.toString());
+    assertThat(streamed.toString(), containsString("INSERT INTO results.cohort"));
+  }
+
   /**
    * Check serialization
    * 
@@ -0,0 +1,53 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+import org.ohdsi.circe.helper.ResourceHelper;
+
+public class CompiledCohortTest {
+
+    private final CohortExpressionQueryBuilder queryBuilder = new CohortExpressionQueryBuilder();
+
+    private static CohortExpressionQueryBuilder.BuildExpressionQueryOptions createOptions(String cdmSchema, String resultSchema, int cohortId) {
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.cdmSchema = cdmSchema;
+        options.resultSchema = resultSchema;
+        options.targetTable = resultSchema + ".cohort";
+        options.cohortId = cohortId;
+        options.generateStats = true;
+        return options;
+    }
+
+    @Test
+    public void bindMatchesBuildExpressionQuery() {
+
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/printfriendly/allAttributes.json"));
+        CompiledCohort compiled = queryBuilder.compileExpressionQuery(expression, null);
+
+        assertThat(compiled.getSql(), containsString("@cdm_database_schema"));
+        assertThat(compiled.getSql(), containsString("@target_database_schema.@target_cohort_table"));
+
+        for (int source = 1; source <= 3; source++) {
+            CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = createOptions("cdm_" + source, "results_" + source, source);
+            assertThat(compiled.bind(options), equalTo(queryBuilder.buildExpressionQuery(expression, options)));
+        }
+        assertThat(compiled.bind(null), equalTo(queryBuilder.buildExpressionQuery(expression, null)));
+    }
+
+    @Test
+    public void bindKeepsUnsetTokens() {
+
+        CohortExpression expression = CohortExpression.fromJson(ResourceHelper.GetResourceAsString("/printfriendly/conditionEra.json"));
+        CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+        options.cdmSchema = "cdm";
+
+        String sql = queryBuilder.compileExpressionQuery(expression, null).bind(options);
+
+        assertThat(sql, containsString("cdm.CONDITION_ERA"));
+        assertThat(sql, containsString("@target_database_schema.@target_cohort_table"));
+        assertThat(sql, containsString("@target_cohort_id"));
+    }
+}
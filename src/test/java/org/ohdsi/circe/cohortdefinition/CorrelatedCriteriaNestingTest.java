@@ -0,0 +1,117 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.ohdsi.circe.vocabulary.ConceptSetExpression;
+
+/**
+ * Checks the size of the generated SQL for criteria nested through correlated criteria.
+ */
+public class CorrelatedCriteriaNestingTest {
+
+  private static final int MAX_DEPTH = 8;
+
+  private static Window.Endpoint endpoint(Integer days, int coeff) {
+    Window.Endpoint endpoint = new Window.Endpoint();
+    endpoint.days = days;
+    endpoint.coeff = coeff;
+    return endpoint;
+  }
+
+  // a condition occurrence that must have the criteria of the previous level in the 30 days before it
+  private static Criteria nestedCriteria(int depth) {
+    ConditionOccurrence criteria = new ConditionOccurrence();
+    criteria.codesetId = 1;
+    if (depth == 0) {
+      return criteria;
+    }
+
+    CorelatedCriteria correlated = new CorelatedCriteria();
+    correlated.criteria = nestedCriteria(depth - 1);
+    correlated.startWindow = new Window();
+    correlated.startWindow.start = endpoint(30, -1);
+    correlated.startWindow.end = endpoint(0, 1);
+    correlated.occurrence = new Occurrence();
+    correlated.occurrence.type = Occurrence.AT_LEAST;
+    correlated.occurrence.count = 1;
+
+    criteria.CorrelatedCriteria = new CriteriaGroup();
+    criteria.CorrelatedCriteria.type = "ALL";
+    criteria.CorrelatedCriteria.criteriaList = new CorelatedCriteria[]{correlated};
+    return criteria;
+  }
+
+  private static CohortExpression nestedExpression(int depth) {
+    ConceptSet conceptSet = new ConceptSet();
+    conceptSet.id = 1;
+    conceptSet.expression = new ConceptSetExpression();
+    conceptSet.expression.items = new ConceptSetExpression.ConceptSetItem[0];
+
+    CohortExpression expression = new CohortExpression();
+    expression.conceptSets = new ConceptSet[]{conceptSet};
+    expression.primaryCriteria = new PrimaryCriteria();
+    expression.primaryCriteria.observationWindow = new ObservationFilter();
+    expression.primaryCriteria.criteriaList = new Criteria[]{nestedCriteria(depth)};
+    return expression;
+  }
+
+  private static int[] querySizes(boolean materialize) {
+    CohortExpressionQueryBuilder builder = new CohortExpressionQueryBuilder();
+    CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.materializeCorrelatedCriteria = materialize;
+
+    int[] sizes = new int[MAX_DEPTH + 1];
+    for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+      sizes[depth] = builder.buildExpressionQuery(nestedExpression(depth), options).length();
+    }
+    return sizes;
+  }
+
+  @Test
+  public void materializedSizeGrowsLinearly() {
+
+    int[] sizes = querySizes(true);
+    int levelSize = sizes[1] - sizes[0];
+
+    for (int depth = 2; depth <= MAX_DEPTH; depth++) {
+      // each level adds the same amount of SQL, allowing for longer temp table numbers
+      assertThat(sizes[depth] - sizes[depth - 1], lessThanOrEqualTo(levelSize + 100));
+    }
+    assertThat(sizes[MAX_DEPTH], lessThanOrEqualTo(sizes[0] + MAX_DEPTH * (levelSize + 100)));
+  }
+
+  @Test
+  public void materializedCriteriaQueriesAreWrittenOnce() {
+
+    CohortExpressionQueryBuilder builder = new CohortExpressionQueryBuilder();
+    CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+
+    String inlinedSql = builder.buildExpressionQuery(nestedExpression(MAX_DEPTH), options);
+    options.materializeCorrelatedCriteria = true;
+    String materializedSql = builder.buildExpressionQuery(nestedExpression(MAX_DEPTH), options);
+
+    // one domain scan per criteria, where the inlined form repeats the scan of every wrapped criteria
+    String scan = "FROM @cdm_database_schema.CONDITION_OCCURRENCE";
+    assertThat(StringUtils.countMatches(materializedSql, scan), equalTo(MAX_DEPTH + 1));
+    assertThat(StringUtils.countMatches(inlinedSql, scan), greaterThan(MAX_DEPTH + 1));
+  }
+
+  @Test
+  public void materializedTablesAreCreatedAndDropped() {
+
+    CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.materializeCorrelatedCriteria = true;
+    String sql = new CohortExpressionQueryBuilder().buildExpressionQuery(nestedExpression(3), options);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(sql, containsString(String.format("INTO #correlated_events_%d\n", i)));
+      assertThat(sql, containsString(String.format("DROP TABLE #correlated_events_%d;", i)));
+    }
+  }
+}
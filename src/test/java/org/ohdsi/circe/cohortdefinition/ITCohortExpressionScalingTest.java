@@ -0,0 +1,95 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.function.BiConsumer;
+import org.junit.Test;
+import org.ohdsi.circe.check.Checker;
+
+/**
+ * The timing half of {@link CohortExpressionScalingTest}: each knob of the generator is doubled twice and the
+ * time to build the query may grow at most about as fast as the SQL does. The timings depend on the machine,
+ * so being named IT*, it is left out of the unit test run; run it with:
+ *
+ *   mvn test -Dtest=ITCohortExpressionScalingTest
+ */
+public class ITCohortExpressionScalingTest {
+
+  // the timings vary with the machine
+  private static final double TIME_TOLERANCE = 3.0;
+
+  private final CohortExpressionQueryBuilder queryBuilder = new CohortExpressionQueryBuilder();
+
+  // best of several rounds, each long enough for the clock, after a warm up
+  private long nanosPerQuery(CohortExpression expression) {
+    for (int i = 0; i < 5; i++) {
+      queryBuilder.buildExpressionQuery(expression, null);
+    }
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 5; round++) {
+      int runs = 0;
+      long start = System.nanoTime();
+      long elapsed;
+      do {
+        queryBuilder.buildExpressionQuery(expression, null);
+        runs++;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < 20_000_000L);
+      best = Math.min(best, elapsed / runs);
+    }
+    return best;
+  }
+
+  private void assertLinear(String knob, int start, BiConsumer<CohortExpressionGenerator.Options, Integer> setKnob) {
+    double[] nanosPerChar = new double[3];
+    for (int step = 0; step < 3; step++) {
+      CohortExpressionGenerator.Options options = CohortExpressionScalingTest.baseOptions();
+      setKnob.accept(options, start << step);
+      CohortExpression expression = CohortExpressionScalingTest.generate(options);
+      nanosPerChar[step] = (double) nanosPerQuery(expression) / queryBuilder.buildExpressionQuery(expression, null).length();
+    }
+
+    assertThat(knob + " build time per character", nanosPerChar[2], lessThanOrEqualTo(TIME_TOLERANCE * nanosPerChar[0]));
+  }
+
+  @Test
+  public void scalesWithConceptSetCount() {
+    assertLinear("conceptSetCount", 40, (options, value) -> options.conceptSetCount = value);
+  }
+
+  @Test
+  public void scalesWithConceptsPerSet() {
+    assertLinear("conceptsPerSet", 40, (options, value) -> options.conceptsPerSet = value);
+  }
+
+  @Test
+  public void scalesWithPrimaryCriteriaCount() {
+    assertLinear("primaryCriteriaCount", 8, (options, value) -> options.primaryCriteriaCount = value);
+  }
+
+  @Test
+  public void scalesWithInclusionRuleCount() {
+    assertLinear("inclusionRuleCount", 12, (options, value) -> options.inclusionRuleCount = value);
+  }
+
+  @Test
+  public void scalesWithGroupDepth() {
+    assertLinear("groupDepth", 12, (options, value) -> options.groupDepth = value);
+  }
+
+  @Test
+  public void scalesWithCorrelatedCriteriaPerGroup() {
+    assertLinear("correlatedCriteriaPerGroup", 8, (options, value) -> options.correlatedCriteriaPerGroup = value);
+  }
+
+  @Test
+  public void checkLargeExpression() {
+    CohortExpression expression = CohortExpressionScalingTest.generateLarge();
+
+    long start = System.nanoTime();
+    new Checker().check(expression);
+    assertThat("check time (ms)", (System.nanoTime() - start) / 1_000_000L, lessThan(30_000L));
+  }
+}
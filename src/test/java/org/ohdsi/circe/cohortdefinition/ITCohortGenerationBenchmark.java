@@ -0,0 +1,150 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.not;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ohdsi.circe.AbstractDatabaseTest;
+import org.ohdsi.circe.StatementTimer;
+import org.ohdsi.circe.SyntheticCdmGenerator;
+import org.ohdsi.sql.SqlRender;
+import org.ohdsi.sql.SqlTranslate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Times the generated cohort SQL end to end on the embedded Postgres, against a synthetic CDM, so changes to
+ * the shape of the SQL can be measured in query time and not only in generation time. Each statement of each
+ * cohort is timed on its own and written to a CSV report. Being named IT*, it is left out of the unit test
+ * run; run it with:
+ *
+ *   mvn test -Dtest=ITCohortGenerationBenchmark -Dcirce.benchmark.persons=100000
+ *
+ * System properties: circe.benchmark.persons (default 10000), circe.benchmark.seed and circe.benchmark.report
+ * (default target/cohort-generation-timings.csv).
+ */
+public class ITCohortGenerationBenchmark extends AbstractDatabaseTest {
+
+  private final static Logger log = LoggerFactory.getLogger(ITCohortGenerationBenchmark.class);
+  private static final String CDM_DDL_PATH = "/ddl/cdm_v5.3.sql";
+  private static final String RESULTS_DDL_PATH = "/ddl/resultsSchema.sql";
+  private static final String CDM_SCHEMA = "synthetic_cdm";
+  private static final String RESULTS_SCHEMA = "synthetic_results";
+
+  private static final int PERSONS = Integer.getInteger("circe.benchmark.persons", 10000);
+  private static final long SEED = Long.getLong("circe.benchmark.seed", 20240601L);
+  private static final String REPORT = System.getProperty("circe.benchmark.report", "target/cohort-generation-timings.csv");
+
+  private static final List<String> reportLines = new ArrayList<>();
+
+  @BeforeClass
+  public static void beforeClass() throws SQLException {
+    jdbcTemplate = new JdbcTemplate(getDataSource());
+    prepareSchema(CDM_SCHEMA, CDM_DDL_PATH);
+
+    final SyntheticCdmGenerator.Options options = new SyntheticCdmGenerator.Options();
+    options.personCount = PERSONS;
+    final long start = System.nanoTime();
+    final Map<String, Long> rowCounts;
+    try (Connection connection = getDataSource().getConnection()) {
+      rowCounts = new SyntheticCdmGenerator(SEED).generate(connection, CDM_SCHEMA, options);
+    }
+    log.info("Loaded {} persons in {} s: {}", PERSONS, (System.nanoTime() - start) / 1_000_000_000L, rowCounts);
+    reportLines.add("cohort,statement,millis,rows,label");
+  }
+
+  @AfterClass
+  public static void writeReport() throws IOException {
+    final Path report = Paths.get(REPORT);
+    if (report.getParent() != null) {
+      Files.createDirectories(report.getParent());
+    }
+    Files.write(report, reportLines, StandardCharsets.UTF_8);
+    log.info("Wrote statement timings to {}", report.toAbsolutePath());
+  }
+
+  private static CohortExpressionQueryBuilder.BuildExpressionQueryOptions buildExpressionQueryOptions(final int cohortId) {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.cdmSchema = CDM_SCHEMA;
+    options.cohortId = cohortId;
+    options.generateStats = true;
+    options.resultSchema = RESULTS_SCHEMA;
+    options.targetTable = RESULTS_SCHEMA + ".cohort";
+
+    return options;
+  }
+
+  private List<StatementTimer.Timing> time(final String name, final int cohortId, final CohortExpression expression) throws SQLException {
+    prepareSchema(RESULTS_SCHEMA, RESULTS_DDL_PATH);
+    String cohortSql = new CohortExpressionQueryBuilder().buildExpressionQuery(expression, buildExpressionQueryOptions(cohortId));
+    cohortSql = SqlRender.renderSql(SqlTranslate.translateSql(cohortSql, "postgresql"), null, null);
+
+    final List<StatementTimer.Timing> timings;
+    try (Connection connection = getDataSource().getConnection()) {
+      timings = StatementTimer.run(connection, cohortSql);
+    }
+
+    for (final StatementTimer.Timing timing : timings) {
+      reportLines.add(String.format("%s,%d,%.3f,%d,\"%s\"", name, timing.index, timing.getMillis(), timing.updateCount,
+              timing.getLabel().replace("\"", "\"\"")));
+    }
+    final StatementTimer.Timing slowest = Collections.max(timings, Comparator.comparingLong(timing -> timing.nanos));
+    final Integer cohortCount = jdbcTemplate.queryForObject(String.format("SELECT COUNT(*) FROM %s.cohort", RESULTS_SCHEMA), Integer.class);
+    log.info("{}: {} statements in {} ms, {} cohort records; slowest statement {} ({} ms): {}", name, timings.size(),
+            StatementTimer.totalNanos(timings) / 1_000_000L, cohortCount, slowest.index, Math.round(slowest.getMillis()), slowest.getLabel());
+    return timings;
+  }
+
+  // the cohort expressions, ie: not the _PREP and _VERIFY data sets next to them
+  private static boolean isCohortExpression(final String fileName) {
+    return fileName.endsWith(".json") && !fileName.endsWith("_PREP.json") && !fileName.endsWith("_VERIFY.json");
+  }
+
+  @Test
+  public void fixtureExpressions() throws IOException, URISyntaxException, SQLException {
+    final Path fixtures = Paths.get(ITCohortGenerationBenchmark.class.getResource("/cohortgeneration").toURI());
+    final List<Path> expressionPaths;
+    try (Stream<Path> paths = Files.walk(fixtures)) {
+      expressionPaths = paths.filter(path -> isCohortExpression(path.getFileName().toString()))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+
+    int cohortId = 1;
+    for (final Path path : expressionPaths) {
+      final CohortExpression expression = CohortExpression.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+      assertThat(time(fixtures.relativize(path).toString(), cohortId++, expression), not(empty()));
+    }
+  }
+
+  @Test
+  public void generatedExpressions() throws SQLException {
+    // the concept sets of the generated expressions fall in the concept blocks of the synthetic vocabulary
+    final int[] inclusionRuleCounts = {3, 12, 48};
+    for (final int inclusionRuleCount : inclusionRuleCounts) {
+      final CohortExpressionGenerator.Options options = new CohortExpressionGenerator.Options();
+      options.inclusionRuleCount = inclusionRuleCount;
+      final CohortExpression expression = new CohortExpressionGenerator(SEED).generate(options);
+      assertThat(time("generated/" + inclusionRuleCount + " rules", inclusionRuleCount, expression), not(empty()));
+    }
+  }
+}
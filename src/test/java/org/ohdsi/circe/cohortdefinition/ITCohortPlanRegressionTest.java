@@ -0,0 +1,239 @@
+package org.ohdsi.circe.cohortdefinition;
+
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ohdsi.circe.AbstractDatabaseTest;
+import org.ohdsi.circe.PlanShape;
+import org.ohdsi.circe.StatementTimer;
+import org.ohdsi.circe.SyntheticCdmGenerator;
+import org.ohdsi.sql.SqlRender;
+import org.ohdsi.sql.SqlSplit;
+import org.ohdsi.sql.SqlTranslate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Plan regression suite: every statement generated from the cohortgeneration fixtures is explained on a small
+ * synthetic CDM, and its plan shape and cost are compared with the golden file under /plans. A statement
+ * fails when its plan gains a nested loop over a sequential scan of a CDM domain table, stops reading a
+ * relation through an index, or its cost grows beyond the threshold. Other changes of shape are only logged.
+ *
+ * A missing golden file fails the suite. Being named IT*, it is left out of the unit test run until the golden
+ * files are committed. Record the golden files of new fixtures, or after an intended change of the generated
+ * SQL (or of SyntheticCdmGenerator, whose data the plans are made on), with:
+ *
+ *   mvn test -Dtest=ITCohortPlanRegressionTest -Dcirce.plans.update=true
+ *
+ * and review the diff of src/test/resources/plans like any other change. The cost threshold is a ratio,
+ * set by circe.plans.costThreshold (default 2.0).
+ */
+public class ITCohortPlanRegressionTest extends AbstractDatabaseTest {
+
+  private final static Logger log = LoggerFactory.getLogger(ITCohortPlanRegressionTest.class);
+  private static final String CDM_DDL_PATH = "/ddl/cdm_v5.3.sql";
+  private static final String RESULTS_DDL_PATH = "/ddl/resultsSchema.sql";
+  private static final String CDM_SCHEMA = "plan_cdm";
+  private static final String RESULTS_SCHEMA = "plan_results";
+  private static final Path GOLDEN_DIR = Paths.get("src/test/resources/plans");
+  private static final long SEED = 20240601L;
+  // small enough for ANALYZE to read every row, so the statistics, and the plans, are the same on each run
+  private static final int PERSONS = 1000;
+
+  private static final boolean UPDATE = Boolean.getBoolean("circe.plans.update");
+  private static final double COST_THRESHOLD = Double.parseDouble(System.getProperty("circe.plans.costThreshold", "2.0"));
+  // cost increases below this are ignored, whatever their ratio
+  private static final double MIN_COST_INCREASE = 1000.0;
+
+  private static final Set<String> DOMAIN_TABLES = new HashSet<>(Arrays.asList(
+          "condition_era", "condition_occurrence", "death", "device_exposure", "dose_era", "drug_era", "drug_exposure",
+          "measurement", "observation", "observation_period", "payer_plan_period", "person", "procedure_occurrence",
+          "specimen", "visit_detail", "visit_occurrence"));
+  private static final Pattern EXPLAINABLE = Pattern.compile(
+          "^\\s*(WITH|SELECT|INSERT|UPDATE|DELETE|CREATE\\s+(TEMP\\s+|TEMPORARY\\s+)?TABLE\\s+\\S+\\s+AS)\\b",
+          Pattern.CASE_INSENSITIVE);
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  @BeforeClass
+  public static void beforeClass() throws SQLException {
+    jdbcTemplate = new JdbcTemplate(getDataSource());
+    prepareSchema(CDM_SCHEMA, CDM_DDL_PATH);
+    final SyntheticCdmGenerator.Options options = new SyntheticCdmGenerator.Options();
+    options.personCount = PERSONS;
+    try (Connection connection = getDataSource().getConnection()) {
+      new SyntheticCdmGenerator(SEED).generate(connection, CDM_SCHEMA, options);
+    }
+  }
+
+  private static CohortExpressionQueryBuilder.BuildExpressionQueryOptions buildExpressionQueryOptions() {
+    final CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.cdmSchema = CDM_SCHEMA;
+    options.cohortId = 1;
+    options.generateStats = true;
+    options.resultSchema = RESULTS_SCHEMA;
+    options.targetTable = RESULTS_SCHEMA + ".cohort";
+
+    return options;
+  }
+
+  private static String stripComments(final String statement) {
+    return Arrays.stream(statement.split("\n"))
+            .filter(line -> !line.trim().startsWith("--"))
+            .collect(Collectors.joining("\n"));
+  }
+
+  /**
+   * Explains each statement of the cohort SQL, then runs it, so the temp tables it makes are there for the
+   * statements that follow.
+   */
+  private static ArrayNode explain(final String cohortSql) throws SQLException {
+    final ArrayNode plans = JSON_MAPPER.createArrayNode();
+    final String[] statements = SqlSplit.splitSql(cohortSql);
+    try (Connection connection = getDataSource().getConnection(); Statement statement = connection.createStatement()) {
+      for (int i = 0; i < statements.length; i++) {
+        if (EXPLAINABLE.matcher(stripComments(statements[i])).find()) {
+          try (ResultSet resultSet = statement.executeQuery("EXPLAIN (FORMAT JSON) " + statements[i])) {
+            resultSet.next();
+            final PlanShape shape = PlanShape.fromExplain(resultSet.getString(1));
+            final ObjectNode plan = plans.addObject();
+            plan.put("index", i);
+            plan.put("label", StatementTimer.label(statements[i]));
+            plan.put("totalCost", shape.getTotalCost());
+            final ArrayNode lines = plan.putArray("shape");
+            shape.getLines().forEach(lines::add);
+          }
+        }
+        statement.execute(statements[i]);
+      }
+    }
+    return plans;
+  }
+
+  private static PlanShape shapeOf(final JsonNode plan) {
+    final List<String> lines = new ArrayList<>();
+    plan.get("shape").forEach(line -> lines.add(line.asText()));
+    return PlanShape.fromLines(lines, plan.get("totalCost").asDouble());
+  }
+
+  private static void compare(final String name, final JsonNode golden, final JsonNode actual, final List<String> regressions) {
+    if (golden.size() != actual.size()) {
+      regressions.add(String.format("%s: %d statements were explained, the golden file has %d", name, actual.size(), golden.size()));
+      return;
+    }
+    for (int i = 0; i < golden.size(); i++) {
+      final JsonNode goldenPlan = golden.get(i);
+      final JsonNode actualPlan = actual.get(i);
+      final String statement = String.format("%s, statement %d (%s)", name, actualPlan.get("index").asInt(), actualPlan.get("label").asText());
+      if (!goldenPlan.get("label").asText().equals(actualPlan.get("label").asText())) {
+        regressions.add(statement + ": the golden file has another statement here: " + goldenPlan.get("label").asText());
+        continue;
+      }
+      final PlanShape goldenShape = shapeOf(goldenPlan);
+      final PlanShape actualShape = shapeOf(actualPlan);
+
+      final Map<String, Integer> goldenLoops = goldenShape.getNestedLoopSeqScans();
+      for (final Map.Entry<String, Integer> loop : actualShape.getNestedLoopSeqScans().entrySet()) {
+        if (DOMAIN_TABLES.contains(loop.getKey()) && loop.getValue() > goldenLoops.getOrDefault(loop.getKey(), 0)) {
+          regressions.add(String.format("%s: new nested loop over a sequential scan of %s", statement, loop.getKey()));
+        }
+      }
+      final Set<String> actualIndexed = actualShape.getIndexedRelations();
+      final Set<String> actualSeqScanned = actualShape.getSeqScannedRelations();
+      for (final String relation : goldenShape.getIndexedRelations()) {
+        if (!actualIndexed.contains(relation) && actualSeqScanned.contains(relation)) {
+          regressions.add(String.format("%s: %s is no longer read through an index", statement, relation));
+        }
+      }
+      final double goldenCost = goldenShape.getTotalCost();
+      final double actualCost = actualShape.getTotalCost();
+      if (actualCost > goldenCost * COST_THRESHOLD && actualCost - goldenCost > MIN_COST_INCREASE) {
+        regressions.add(String.format("%s: cost went from %.0f to %.0f", statement, goldenCost, actualCost));
+      }
+      if (!goldenShape.getLines().equals(actualShape.getLines())) {
+        log.info("{}: plan changed from\n{}\nto\n{}", statement, String.join("\n", goldenShape.getLines()), String.join("\n", actualShape.getLines()));
+      }
+    }
+  }
+
+  private static JsonNode readGolden(final String name) throws IOException {
+    try (InputStream golden = ITCohortPlanRegressionTest.class.getResourceAsStream("/plans/" + name + ".json")) {
+      return golden == null ? null : JSON_MAPPER.readTree(golden);
+    }
+  }
+
+  private static void writeGolden(final String name, final ArrayNode plans) throws IOException {
+    Files.createDirectories(GOLDEN_DIR);
+    final Path golden = GOLDEN_DIR.resolve(name + ".json");
+    Files.write(golden, JSON_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(plans));
+    log.warn("Recorded the plans of {} in {}", name, golden.toAbsolutePath());
+  }
+
+  // the cohort expressions, ie: not the _PREP and _VERIFY data sets next to them
+  private static boolean isCohortExpression(final String fileName) {
+    return fileName.endsWith(".json") && !fileName.endsWith("_PREP.json") && !fileName.endsWith("_VERIFY.json");
+  }
+
+  @Test
+  public void fixturePlans() throws IOException, URISyntaxException, SQLException {
+    final Path fixtures = Paths.get(ITCohortPlanRegressionTest.class.getResource("/cohortgeneration").toURI());
+    final List<Path> expressionPaths;
+    try (Stream<Path> paths = Files.walk(fixtures)) {
+      expressionPaths = paths.filter(path -> isCohortExpression(path.getFileName().toString()))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+
+    final List<String> regressions = new ArrayList<>();
+    for (final Path path : expressionPaths) {
+      final String name = fixtures.relativize(path).toString().replace(".json", "").replace(path.getFileSystem().getSeparator(), "_");
+      final CohortExpression expression = CohortExpression.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+
+      prepareSchema(RESULTS_SCHEMA, RESULTS_DDL_PATH);
+      String cohortSql = new CohortExpressionQueryBuilder().buildExpressionQuery(expression, buildExpressionQueryOptions());
+      cohortSql = SqlRender.renderSql(SqlTranslate.translateSql(cohortSql, "postgresql"), null, null);
+      final ArrayNode plans = explain(cohortSql);
+
+      if (UPDATE) {
+        writeGolden(name, plans);
+        continue;
+      }
+      final JsonNode golden = readGolden(name);
+      if (golden == null) {
+        regressions.add(String.format("%s: there is no golden file /plans/%s.json", name, name));
+      } else {
+        compare(name, golden, plans, regressions);
+      }
+    }
+
+    if (!regressions.isEmpty()) {
+      fail("Plan regressions (if intended, record the plans again with -Dcirce.plans.update=true):\n" + String.join("\n", regressions));
+    }
+  }
+}
@@ -4,6 +4,7 @@ package org.ohdsi.circe.cohortdefinition.builders;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.util.Arrays;
 import org.apache.commons.lang3.StringUtils;
 import org.hamcrest.Matchers;
 import org.junit.Test;
@@ -11,6 +12,28 @@ import org.ohdsi.circe.cohortdefinition.TextFilter;
 
 public class BuilderUtilsTest {
 
+    @Test
+    public void buildRangeInClause_compressesRuns() {
+
+        assertThat(
+                BuilderUtils.buildRangeInClause("concept_id", Arrays.asList(7L, 3L, 1L, 2L, 9L, 4L, 3L, 10L), 1000),
+                Matchers.is(equalTo("(concept_id between 1 and 4 or concept_id in (7,9,10))"))
+        );
+        assertThat(
+                BuilderUtils.buildRangeInClause("concept_id", Arrays.asList(5L, 3L), 1000),
+                Matchers.is(equalTo("(concept_id in (3,5))"))
+        );
+    }
+
+    @Test
+    public void buildRangeInClause_splitsLongLists() {
+
+        assertThat(
+                BuilderUtils.buildRangeInClause("concept_id", Arrays.asList(1L, 3L, 5L, 11L, 12L, 13L, 20L), 2),
+                Matchers.is(equalTo("(concept_id between 11 and 13 or concept_id in (1,3) or concept_id in (5,20))"))
+        );
+    }
+
     @Test
     public void buildTextFilterClause_escapeQuotes() {
 
@@ -0,0 +1,71 @@
+package org.ohdsi.circe.cohortdefinition.builders;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.ohdsi.circe.cohortdefinition.ConditionOccurrence;
+
+public class CriteriaSqlBuilderTest {
+
+    // a builder written against the String query template, before the templates were compiled
+    private static class LegacyConditionOccurrenceSqlBuilder extends CriteriaSqlBuilder<ConditionOccurrence> {
+
+        @Override
+        protected String getQueryTemplate() {
+            return "SELECT @selectClause@ordinalExpression@additionalColumns FROM co@codesetClause @joinClause @whereClause";
+        }
+
+        @Override
+        protected String getTableColumnForCriteriaColumn(CriteriaColumn column) {
+            return "co.condition_concept_id";
+        }
+
+        @Override
+        protected Set<CriteriaColumn> getDefaultColumns() {
+            return new HashSet<>(Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.END_DATE));
+        }
+
+        @Override
+        protected String embedCodesetClause(String query, ConditionOccurrence criteria) {
+            return StringUtils.replace(query, "@codesetClause", String.format(" JOIN #Codesets cs on cs.codeset_id = %d", criteria.codesetId));
+        }
+
+        @Override
+        protected String embedOrdinalExpression(String query, ConditionOccurrence criteria, List<String> whereClauses) {
+            whereClauses.add("C.ordinal = 1");
+            return StringUtils.replace(query, "@ordinalExpression", ", row_number() over (PARTITION BY co.person_id) as ordinal");
+        }
+
+        @Override
+        protected List<String> resolveSelectClauses(ConditionOccurrence criteria) {
+            return new ArrayList<>(Arrays.asList("co.person_id"));
+        }
+
+        @Override
+        protected List<String> resolveJoinClauses(ConditionOccurrence criteria) {
+            return Collections.singletonList("JOIN @cdm_database_schema.PERSON P on P.person_id = co.person_id");
+        }
+    }
+
+    @Test
+    public void getCriteriaSqlOfLegacyBuilder() {
+
+        ConditionOccurrence criteria = new ConditionOccurrence();
+        criteria.codesetId = 3;
+        BuilderOptions options = new BuilderOptions();
+        options.additionalColumns = Arrays.asList(CriteriaColumn.START_DATE, CriteriaColumn.DOMAIN_CONCEPT);
+
+        assertThat(new LegacyConditionOccurrenceSqlBuilder().getCriteriaSql(criteria, options),
+                equalTo("SELECT co.person_id, row_number() over (PARTITION BY co.person_id) as ordinal, co.condition_concept_id as domain_concept_id"
+                        + " FROM co JOIN #Codesets cs on cs.codeset_id = 3 JOIN @cdm_database_schema.PERSON P on P.person_id = co.person_id"
+                        + " WHERE C.ordinal = 1"));
+    }
+}
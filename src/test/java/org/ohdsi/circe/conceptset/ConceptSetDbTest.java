@@ -29,11 +29,14 @@ import org.dbunit.operation.DatabaseOperation;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.ohdsi.circe.AbstractDatabaseTest;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionQueryBuilder;
+import org.ohdsi.circe.cohortdefinition.ConceptSet;
 import org.ohdsi.circe.vocabulary.Concept;
 import org.ohdsi.circe.vocabulary.ConceptSetExpression;
 import org.ohdsi.circe.vocabulary.ConceptSetExpression.ConceptSetItem;
 import org.ohdsi.circe.vocabulary.ConceptSetExpressionQueryBuilder;
 import org.ohdsi.sql.SqlRender;
+import org.ohdsi.sql.SqlSplit;
 import org.ohdsi.sql.SqlTranslate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -98,4 +101,59 @@ public class ConceptSetDbTest extends AbstractDatabaseTest {
     
     
   }
+
+  /**
+   * Resolves the same concept set as inClauseConceptSetQueryTest through the staged codeset resolution,
+   * which must give the same concepts.
+   */
+  @Test
+  public void stagedCodesetQueryTest() throws Exception {
+
+    final String[] testDataSetsPrep = new String[] { "/datasets/vocabulary.json" };
+
+    ConceptSetExpression cse = new ConceptSetExpression();
+    List<ConceptSetItem> items = IntStream.range(1,4000).mapToObj((i) -> {
+      Concept c = new Concept();
+      c.conceptId = i*1L;
+      c.conceptName = String.format("Concept %d", i);
+      ConceptSetItem ci = new ConceptSetItem();
+      ci.concept = c;
+      ci.includeDescendants = true;
+      ci.isExcluded = (i%2 == 0) ? true : false;
+
+      return ci;
+    }).collect(Collectors.toList());
+    cse.items = items.toArray(new ConceptSetItem[0]);
+
+    ConceptSet conceptSet = new ConceptSet();
+    conceptSet.id = 1;
+    conceptSet.expression = cse;
+
+    final IDatabaseConnection dbUnitCon = getConnection();
+
+    // load test data into DB.
+    final IDataSet dsPrep = DataSetFactory.createDataSet(testDataSetsPrep);
+    DatabaseOperation.CLEAN_INSERT.execute(dbUnitCon, dsPrep); // clean load of the DB. Careful, clean means "delete the old stuff"
+
+    CohortExpressionQueryBuilder.BuildExpressionQueryOptions options = new CohortExpressionQueryBuilder.BuildExpressionQueryOptions();
+    options.stagedCodesetResolution = true;
+    String codesetQuery = new CohortExpressionQueryBuilder().getCodesetQuery(new ConceptSet[] {conceptSet}, options)
+            + "\nDROP TABLE IF EXISTS cdm.staged_codesets;\nSELECT concept_id INTO cdm.staged_codesets FROM #Codesets;";
+    String translatedCodesetQuery = SqlRender.renderSql(SqlTranslate.translateSql(codesetQuery, "postgresql"),
+            new String[] {"vocabulary_database_schema"},
+            new String[] {"cdm"});
+
+    // the temp tables only live for the session, so run the script as one batch
+    jdbcTemplate.batchUpdate(SqlSplit.splitSql(translatedCodesetQuery));
+
+    final ITable actualResult = dbUnitCon.createQueryTable("inclause.result", "select concept_id from cdm.staged_codesets order by concept_id");
+
+    // Load expected data from an XML dataset
+    final String[] testDataSetsVerify = new String[] {"/conceptset/inClause_VERIFY.json"};
+    final IDataSet expectedDataSet = DataSetFactory.createDataSet(testDataSetsVerify);
+    final ITable expectedResult = expectedDataSet.getTable("inclause.result");
+
+    // Assert actual database table match expected table
+    Assertion.assertEquals(expectedResult, actualResult);
+  }
 }
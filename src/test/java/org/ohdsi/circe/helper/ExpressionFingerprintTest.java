@@ -0,0 +1,72 @@
+package org.ohdsi.circe.helper;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import org.ohdsi.circe.cohortdefinition.CohortExpression;
+import org.ohdsi.circe.vocabulary.ConceptSetExpression;
+
+public class ExpressionFingerprintTest {
+
+  private static final String EXPRESSION_JSON = ResourceHelper.GetResourceAsString("/printfriendly/conditionEra.json");
+
+  @Test
+  public void of_ignoresTitle() {
+
+    CohortExpression expression = CohortExpression.fromJson(EXPRESSION_JSON);
+    CohortExpression retitled = CohortExpression.fromJson(EXPRESSION_JSON);
+    retitled.title = "Another title";
+
+    assertThat(ExpressionFingerprint.of(retitled), equalTo(ExpressionFingerprint.of(expression)));
+  }
+
+  @Test
+  public void of_ignoresKeyOrder() throws Exception {
+
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode node = (ObjectNode) mapper.readTree(EXPRESSION_JSON);
+    ObjectNode reversed = mapper.createObjectNode();
+    List<String> fields = new ArrayList<>();
+    for (Iterator<String> it = node.fieldNames(); it.hasNext();) {
+      fields.add(it.next());
+    }
+    Collections.reverse(fields);
+    for (String field : fields) {
+      reversed.set(field, node.get(field));
+    }
+
+    assertThat(ExpressionFingerprint.of(CohortExpression.fromJson(mapper.writeValueAsString(reversed))),
+            equalTo(ExpressionFingerprint.of(CohortExpression.fromJson(EXPRESSION_JSON))));
+  }
+
+  @Test
+  public void of_changesWithContent() {
+
+    CohortExpression expression = CohortExpression.fromJson(EXPRESSION_JSON);
+    CohortExpression changed = CohortExpression.fromJson(EXPRESSION_JSON);
+    changed.primaryCriteria.observationWindow.priorDays += 1;
+
+    assertThat(ExpressionFingerprint.of(changed), not(equalTo(ExpressionFingerprint.of(expression))));
+  }
+
+  @Test
+  public void of_conceptSetExpression() {
+
+    String json = "{\"items\":[{\"concept\":{\"CONCEPT_ID\":1},\"isExcluded\":false,\"includeDescendants\":true}]}";
+    String reordered = "{\"items\":[{\"includeDescendants\":true,\"isExcluded\":false,\"concept\":{\"CONCEPT_ID\":1}}]}";
+    String changed = "{\"items\":[{\"concept\":{\"CONCEPT_ID\":1},\"isExcluded\":false,\"includeDescendants\":false}]}";
+
+    assertThat(ExpressionFingerprint.of(ConceptSetExpression.fromJson(reordered)),
+            equalTo(ExpressionFingerprint.of(ConceptSetExpression.fromJson(json))));
+    assertThat(ExpressionFingerprint.of(ConceptSetExpression.fromJson(changed)),
+            not(equalTo(ExpressionFingerprint.of(ConceptSetExpression.fromJson(json)))));
+  }
+}
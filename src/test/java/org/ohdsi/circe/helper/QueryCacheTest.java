@@ -0,0 +1,88 @@
+package org.ohdsi.circe.helper;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class QueryCacheTest {
+
+  @Test
+  public void get_countsHitsAndMisses() {
+
+    QueryCache cache = new QueryCache(100);
+    AtomicInteger generated = new AtomicInteger();
+
+    assertThat(cache.get("a", () -> "select " + generated.incrementAndGet()), equalTo("select 1"));
+    assertThat(cache.get("a", () -> "select " + generated.incrementAndGet()), equalTo("select 1"));
+    assertThat(cache.get("b", () -> "select " + generated.incrementAndGet()), equalTo("select 2"));
+
+    assertThat(generated.get(), equalTo(2));
+    assertThat(cache.getHitCount(), equalTo(1L));
+    assertThat(cache.getMissCount(), equalTo(2L));
+    assertThat(cache.size(), equalTo(2));
+    assertThat(cache.getWeight(), equalTo(16L));
+  }
+
+  @Test
+  public void get_evictsLeastRecentlyUsedByWeight() {
+
+    QueryCache cache = new QueryCache(6);
+    cache.get("a", () -> "aa");
+    cache.get("b", () -> "bb");
+    cache.get("a", () -> "aa"); // b is now the least recently used
+    cache.get("c", () -> "cccc"); // 8 chars: b is evicted
+
+    assertThat(cache.size(), equalTo(2));
+    assertThat(cache.getWeight(), equalTo(6L));
+    assertThat(cache.get("a", () -> "a2"), equalTo("aa"));
+    assertThat(cache.get("b", () -> "b2"), equalTo("b2"));
+
+    // a query over the budget on its own is not kept
+    cache.get("d", () -> "ddddddd");
+    assertThat(cache.get("d", () -> "d2"), equalTo("d2"));
+    assertThat(cache.getWeight() <= 6L, equalTo(true));
+  }
+
+  @Test
+  public void get_generatesConcurrentMissesOnce() throws Exception {
+
+    QueryCache cache = new QueryCache(100);
+    AtomicInteger generated = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> queries = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        queries.add(executor.submit(() -> cache.get("a", () -> {
+          generated.incrementAndGet();
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          return "select 1";
+        })));
+      }
+      Thread.sleep(100); // let every lookup reach the pending generation
+      release.countDown();
+      for (Future<String> query : queries) {
+        assertThat(query.get(5, TimeUnit.SECONDS), equalTo("select 1"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(generated.get(), equalTo(1));
+    assertThat(cache.getMissCount(), equalTo(1L));
+    assertThat(cache.getHitCount(), equalTo(3L));
+  }
+}
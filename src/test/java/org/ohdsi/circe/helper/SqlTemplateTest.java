@@ -0,0 +1,110 @@
+package org.ohdsi.circe.helper;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class SqlTemplateTest {
+
+  @Test
+  public void render_bindsParametersAndKeepsUnbound() {
+
+    SqlTemplate template = SqlTemplate.compile("select @a from @cdm_database_schema.person where x = @a and y = @b");
+    Map<String, String> params = new HashMap<>();
+    params.put("@a", "1");
+    params.put("@b", "@c"); // values are not re-scanned
+
+    assertThat(template.render(params), equalTo("select 1 from @cdm_database_schema.person where x = 1 and y = @c"));
+    assertThat(template.getParameters(), contains("@a", "@cdm_database_schema", "@b"));
+  }
+
+  @Test
+  public void render_ignoresBareAt() {
+
+    SqlTemplate template = SqlTemplate.compile("a @ b @@x");
+    Map<String, String> params = new HashMap<>();
+    params.put("@x", "1");
+
+    assertThat(template.render(params), equalTo("a @ b @1"));
+  }
+
+  @Test
+  public void bind_matchesLongestKeyFirst() {
+
+    Map<String, String> params = new HashMap<>();
+    params.put("@target_database_schema", "res");
+    params.put("@target_database_schema.@target_cohort_table", "res.cohort");
+
+    assertThat(SqlTemplate.bind("insert into @target_database_schema.@target_cohort_table; @target_database_schema.x", params),
+            equalTo("insert into res.cohort; res.x"));
+  }
+
+  @Test
+  public void bind_returnsSameStringWhenNothingBound() {
+
+    String sql = "select @other from t";
+    assertThat(SqlTemplate.bind(sql, new HashMap<String, String>()), sameInstance(sql));
+  }
+
+  @Test
+  public void binding_matchesBindAcrossWrites() throws Exception {
+
+    Map<String, String> params = new HashMap<>();
+    params.put("@target_database_schema", "res");
+    params.put("@target_database_schema.@target_cohort_table", "res.cohort");
+    params.put("@cdm_database_schema", "cdm");
+
+    String sql = "insert into @target_database_schema.@target_cohort_table select * from @cdm_database_schema.person; @target_database_schema.@x @";
+    StringBuilder out = new StringBuilder();
+    SqlTemplate.BindingAppendable bound = SqlTemplate.binding(out, params);
+    for (int i = 0; i < sql.length(); i += 7) {
+      bound.append(sql, i, Math.min(i + 7, sql.length()));
+    }
+    bound.finish();
+
+    assertThat(out.toString(), equalTo(SqlTemplate.bind(sql, params)));
+  }
+
+  @Test
+  public void binding_writesNullAsStringBuilderDoes() throws Exception {
+
+    StringBuilder out = new StringBuilder();
+    SqlTemplate.BindingAppendable bound = SqlTemplate.binding(out, Collections.singletonMap("@a", "1"));
+    bound.append(null);
+    bound.append(" @a ");
+    bound.append(null, 1, 3);
+    bound.finish();
+
+    assertThat(out.toString(), equalTo("null 1 ul"));
+  }
+
+  @Test
+  public void writeTo_streamsFragments() throws Exception {
+
+    SqlTemplate template = SqlTemplate.compile("select @a from (@b) T");
+    Map<String, Object> params = new HashMap<>();
+    params.put("@a", "x");
+    params.put("@b", (SqlTemplate.Fragment) out -> out.append("select 1 as x"));
+
+    StringBuilder out = new StringBuilder();
+    template.writeTo(out, params);
+    assertThat(out.toString(), equalTo("select x from (select 1 as x) T"));
+  }
+
+  @Test
+  public void join_nestsFragments() {
+
+    SqlTemplate template = SqlTemplate.compile("(@children)");
+    SqlTemplate.Fragment inner = out -> template.writeTo(out, Collections.singletonMap("@children", SqlTemplate.join(Arrays.asList("a", "b"), " or ")));
+    SqlTemplate.Fragment outer = out -> template.writeTo(out, Collections.singletonMap("@children", SqlTemplate.join(Arrays.asList("c", inner), " and ")));
+
+    assertThat(SqlTemplate.flatten(outer), equalTo("(c and (a or b))"));
+  }
+}
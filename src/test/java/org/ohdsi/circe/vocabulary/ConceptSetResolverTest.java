@@ -0,0 +1,110 @@
+package org.ohdsi.circe.vocabulary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import java.io.File;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ohdsi.circe.cohortdefinition.CohortExpressionQueryBuilder;
+import org.ohdsi.circe.cohortdefinition.ConceptSet;
+
+public class ConceptSetResolverTest {
+
+    private static VocabularySnapshot vocabulary;
+    private static ConceptSetResolver resolver;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        vocabulary = VocabularySnapshot.load(new File(ConceptSetResolverTest.class.getResource("/vocabulary/athena").toURI()));
+        resolver = new ConceptSetResolver(vocabulary);
+    }
+
+    @Test
+    public void loadAthenaExport() {
+        assertThat(vocabulary.getConceptCount(), equalTo(9));
+        assertThat(vocabulary.isValidConcept(1L), equalTo(true));
+        assertThat(vocabulary.isValidConcept(3L), equalTo(false));
+        assertThat(vocabulary.containsConcept(3L), equalTo(true));
+        assertThat(vocabulary.containsConcept(999L), equalTo(false));
+        assertThat(vocabulary.isStandardConcept(2L), equalTo(true));
+        assertThat(vocabulary.isStandardConcept(10L), equalTo(false));
+    }
+
+    @Test
+    public void resolveDescendantsSkipsInvalidConcepts() {
+        ConceptSetExpression expression = createExpression(createItem(1L, false, true, false));
+
+        assertThat(resolver.resolve(expression), contains(1L, 2L, 4L));
+    }
+
+    @Test
+    public void resolveExcludedDescendants() {
+        ConceptSetExpression expression = createExpression(
+                createItem(1L, false, true, false),
+                createItem(2L, true, true, false));
+
+        assertThat(resolver.resolve(expression), contains(1L));
+    }
+
+    @Test
+    public void resolveMappedConcepts() {
+        // 12 maps to 4 through a deprecated relationship, 13 through 'Maps to value'
+        ConceptSetExpression expression = createExpression(
+                createItem(2L, false, true, true),
+                createItem(20L, false, false, false));
+
+        assertThat(resolver.resolve(expression), contains(2L, 4L, 10L, 20L));
+    }
+
+    @Test
+    public void resolveUnknownConcept() {
+        ConceptSetExpression expression = createExpression(createItem(999L, false, true, true));
+
+        assertThat(resolver.resolve(expression), empty());
+    }
+
+    @Test
+    public void resolveInvalidConceptWithoutDescendants() {
+        // a concept listed by itself is kept even if it is invalid, as the SQL does
+        ConceptSetExpression expression = createExpression(createItem(3L, false, false, false));
+
+        assertThat(resolver.resolve(expression), contains(3L));
+    }
+
+    @Test
+    public void codesetQueryWithResolvedConceptSets() {
+        ConceptSet first = new ConceptSet();
+        first.id = 1;
+        first.expression = createExpression(createItem(1L, false, true, false));
+        ConceptSet second = new ConceptSet();
+        second.id = 2;
+        second.expression = createExpression(createItem(1L, false, true, false), createItem(2L, true, true, false));
+
+        String codesetQuery = new CohortExpressionQueryBuilder(resolver).getCodesetQuery(new ConceptSet[]{first, second});
+
+        assertThat(codesetQuery, containsString("INSERT INTO #Codesets (codeset_id, concept_id)\nVALUES (1,1),(1,2),(1,4),(2,1);"));
+        assertThat(codesetQuery, not(containsString("@vocabulary_database_schema")));
+    }
+
+    private static ConceptSetExpression.ConceptSetItem createItem(long conceptId, boolean isExcluded, boolean includeDescendants, boolean includeMapped) {
+        Concept concept = new Concept();
+        concept.conceptId = conceptId;
+        ConceptSetExpression.ConceptSetItem item = new ConceptSetExpression.ConceptSetItem();
+        item.concept = concept;
+        item.isExcluded = isExcluded;
+        item.includeDescendants = includeDescendants;
+        item.includeMapped = includeMapped;
+        return item;
+    }
+
+    private static ConceptSetExpression createExpression(ConceptSetExpression.ConceptSetItem... items) {
+        ConceptSetExpression expression = new ConceptSetExpression();
+        expression.items = items;
+        return expression;
+    }
+}
@@ -0,0 +1,78 @@
+package org.ohdsi.circe.vocabulary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MappedVocabularyIndexTest {
+
+    private static VocabularySnapshot snapshot;
+    private static MappedVocabularyIndex index;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        snapshot = VocabularySnapshot.load(new File(MappedVocabularyIndexTest.class.getResource("/vocabulary/athena").toURI()));
+        File indexFile = File.createTempFile("vocabulary", ".idx");
+        indexFile.deleteOnExit();
+        MappedVocabularyIndex.write(snapshot, indexFile);
+        index = MappedVocabularyIndex.open(indexFile);
+    }
+
+    @Test
+    public void conceptFlags() {
+        assertThat(index.getConceptCount(), equalTo(snapshot.getConceptCount()));
+        for (long conceptId = 0; conceptId <= 21; conceptId++) {
+            assertThat(index.containsConcept(conceptId), equalTo(snapshot.containsConcept(conceptId)));
+            assertThat(index.isValidConcept(conceptId), equalTo(snapshot.isValidConcept(conceptId)));
+            assertThat(index.isStandardConcept(conceptId), equalTo(snapshot.isStandardConcept(conceptId)));
+        }
+    }
+
+    @Test
+    public void relationships() {
+        for (long conceptId = 0; conceptId <= 21; conceptId++) {
+            assertThat(index.getDescendants(conceptId), equalTo(snapshot.getDescendants(conceptId)));
+            assertThat(index.getMappedConcepts(conceptId), equalTo(snapshot.getMappedConcepts(conceptId)));
+        }
+        assertThat(index.getDescendants(1L), equalTo(new long[]{1L, 2L, 3L, 4L}));
+        assertThat(index.getMappedConcepts(2L), equalTo(new long[]{10L}));
+        assertThat(index.getDescendants(Long.MAX_VALUE), equalTo(new long[0]));
+    }
+
+    @Test
+    public void resolveAgainstIndex() {
+        Concept concept = new Concept();
+        concept.conceptId = 2L;
+        ConceptSetExpression.ConceptSetItem item = new ConceptSetExpression.ConceptSetItem();
+        item.concept = concept;
+        item.includeDescendants = true;
+        item.includeMapped = true;
+        ConceptSetExpression expression = new ConceptSetExpression();
+        expression.items = new ConceptSetExpression.ConceptSetItem[]{item};
+
+        assertThat(new ConceptSetResolver(index).resolve(expression), equalTo(new ConceptSetResolver(snapshot).resolve(expression)));
+    }
+
+    @Test
+    public void openTruncatedFile() throws Exception {
+        File indexFile = File.createTempFile("vocabulary", ".idx");
+        indexFile.deleteOnExit();
+        MappedVocabularyIndex.write(snapshot, indexFile);
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        try {
+            MappedVocabularyIndex.open(indexFile);
+            fail("Expected an IOException for a truncated index file");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("Truncated vocabulary index"));
+        }
+    }
+}
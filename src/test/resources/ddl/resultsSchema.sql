@@ -40,6 +40,15 @@ CREATE TABLE @schemaName.cohort_censor_stats (
   lost_count BIGINT NOT NULL
 );
 
+CREATE TABLE @schemaName.cohort_stage_stats (
+  cohort_definition_id int NOT NULL,
+  stage_sequence int NOT NULL,
+  stage_name varchar(255) NOT NULL,
+  row_count bigint NULL,
+  start_time timestamp NULL,
+  end_time timestamp NULL
+);
+
 CREATE TABLE @schemaName.codesets (
   codeset_id int NOT NULL,
   concept_id int NOT NULL